@@ -0,0 +1,226 @@
+package org.javacint.at;
+
+//#if sdkns == "siemens"
+import com.siemens.icm.io.*;
+//#elif sdkns == "cinterion"
+//# import com.cinterion.io.*;
+//#endif
+import java.util.Hashtable;
+import org.javacint.logging.Logger;
+
+/**
+ * AT commands responses cache.
+ *
+ * Each command has its own time-to-live. Static identity queries (IMEI, chip
+ * identification) are kept forever, SIM related queries (IMSI, ICCID, number)
+ * are kept until the SIM card changes and signal/cell queries are kept for a
+ * few seconds so that bursts of readers share one modem round trip.<br />
+ * Only successful ("OK") responses are cached.<br />
+ * The SIM related queries are only cached once start() was called (at the
+ * application startup).
+ */
+public final class ATCommandCache {
+
+    private ATCommandCache() {
+    }
+
+    /**
+     * The response is kept until it is invalidated
+     */
+    public static final long TTL_FOREVER = -1;
+    private static final boolean LOG = false;
+    private static final Hashtable ttls = new Hashtable();
+    private static final Hashtable entries = new Hashtable();
+    private static final String[] SIM_COMMANDS = {"AT+CIMI", "AT^SCID", "AT+CNUM"};
+    private static final Object lock = new Object();
+    private static int nbHits, nbMisses;
+    private static boolean started;
+    /**
+     * Incremented by each invalidation: a response fetched before it isn't
+     * cached
+     */
+    private static volatile int generation;
+
+    /**
+     * Cached response of a command
+     */
+    private static class Entry {
+
+        private final String response;
+        private final long time;
+
+        Entry(String response, long time) {
+            this.response = response;
+            this.time = time;
+        }
+    }
+
+    /**
+     * SIM card changes listener
+     */
+    private static final ATCommandListener simListener = new ATCommandListener() {
+        public void ATEvent(String urc) {
+            // ^SCKS: SIM card holder status, ^SSIM READY: SIM data are available
+            if (urc.indexOf("^SCKS:") >= 0 || urc.indexOf("^SSIM READY") >= 0) {
+                invalidateSim();
+            }
+        }
+
+        public void RINGChanged(boolean bln) {
+        }
+
+        public void DCDChanged(boolean bln) {
+        }
+
+        public void DSRChanged(boolean bln) {
+        }
+
+        public void CONNChanged(boolean bln) {
+        }
+    };
+
+    static {
+        setTtl("AT+GSN", TTL_FOREVER);
+        setTtl("ATI", TTL_FOREVER);
+        setTtl("AT+CSQ", 2000);
+        setTtl("AT^SMONC", 2000);
+    }
+
+    /**
+     * Start the SIM card changes detection.
+     *
+     * The SIM related queries are only cached once it's started, as their
+     * responses are kept until the SIM card changes.
+     */
+    public static void start() {
+        synchronized (lock) {
+            if (started) {
+                return;
+            }
+            started = true;
+        }
+        ATCommands.addListener(simListener);
+        ATCommands.sendUrc("AT^SCKS=1");
+        for (int i = 0; i < SIM_COMMANDS.length; i++) {
+            setTtl(SIM_COMMANDS[i], TTL_FOREVER);
+        }
+    }
+
+    /**
+     * Define the time-to-live of a command's response.
+     *
+     * The command is also declared as a read-only query
+     * (ATCommands.addReadOnlyCommand): concurrent misses share one modem
+     * execution.
+     *
+     * @param cmd AT command (without the ending "\r")
+     * @param ttl Time-to-live (ms), TTL_FOREVER to keep it until it is
+     * invalidated, 0 to disable caching
+     */
+    public static void setTtl(String cmd, long ttl) {
+        if (ttl == 0) {
+            ttls.remove(cmd);
+            entries.remove(cmd);
+        } else {
+            ATCommands.addReadOnlyCommand(cmd);
+            ttls.put(cmd, new Long(ttl));
+        }
+    }
+
+    /**
+     * Send an AT command or get its cached response.
+     *
+     * Commands without time-to-live are always sent.
+     *
+     * @param cmd AT command (without the ending "\r")
+     * @return Response
+     */
+    public static String send(String cmd) {
+        Long ttl = (Long) ttls.get(cmd);
+        if (ttl == null) {
+            return ATCommands.send(cmd);
+        }
+
+        long now = System.currentTimeMillis();
+        long t = ttl.longValue();
+        Entry entry = (Entry) entries.get(cmd);
+        if (entry != null && now >= entry.time && (t == TTL_FOREVER || now - entry.time < t)) {
+            synchronized (lock) {
+                nbHits++;
+            }
+            return entry.response;
+        }
+        synchronized (lock) {
+            nbMisses++;
+        }
+        int gen = generation;
+        // Concurrent readers of the same command share the modem execution
+        String response = ATCommands.send(cmd);
+        if (response != null && response.trim().endsWith("OK")) {
+            synchronized (lock) {
+                if (gen == generation && ttls.containsKey(cmd)) {
+                    entries.put(cmd, new Entry(response, now));
+                }
+            }
+        }
+        return response;
+    }
+
+    /**
+     * Invalidate the cached response of a command.
+     *
+     * The responses being fetched at the same time won't be cached.
+     *
+     * @param cmd AT command
+     */
+    public static void invalidate(String cmd) {
+        synchronized (lock) {
+            generation++;
+            entries.remove(cmd);
+        }
+    }
+
+    /**
+     * Invalidate all the SIM related responses.
+     */
+    public static void invalidateSim() {
+        if (Logger.BUILD_DEBUG && LOG) {
+            Logger.log("ATCommandCache.invalidateSim();");
+        }
+        for (int i = 0; i < SIM_COMMANDS.length; i++) {
+            invalidate(SIM_COMMANDS[i]);
+        }
+    }
+
+    /**
+     * Invalidate all the cached responses.
+     */
+    public static void clear() {
+        synchronized (lock) {
+            generation++;
+            entries.clear();
+        }
+    }
+
+    /**
+     * Get the number of responses served from the cache.
+     *
+     * @return Number of cache hits
+     */
+    public static int getNbHits() {
+        synchronized (lock) {
+            return nbHits;
+        }
+    }
+
+    /**
+     * Get the number of responses fetched from the modem.
+     *
+     * @return Number of cache misses
+     */
+    public static int getNbMisses() {
+        synchronized (lock) {
+            return nbMisses;
+        }
+    }
+}
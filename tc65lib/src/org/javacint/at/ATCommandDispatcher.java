@@ -0,0 +1,96 @@
+package org.javacint.at;
+
+import java.util.Vector;
+import org.javacint.logging.Logger;
+
+/**
+ * Asynchronous AT commands dispatcher.
+ *
+ * A single thread takes the submitted commands by priority class, and in order
+ * within a class, and sends them asynchronously on the pooled instances. An
+ * instance goes back to the pool as soon as its response arrives, so the
+ * instances are kept busy back-to-back without any caller thread waiting on the
+ * modem.<br />
+ * The dispatcher never blocks on the pool: it is woken up by each release, so
+ * a critical command submitted after a bulk one doesn't wait behind it.
+ */
+final class ATCommandDispatcher implements Runnable {
+
+    private static final boolean LOG = false;
+    private final ATCommandPool pool;
+    private final Vector queue = new Vector();
+    private Thread thread;
+    private int nbSubmitted, nbDispatched;
+
+    ATCommandDispatcher(ATCommandPool pool) {
+        this.pool = pool;
+        pool.setReleaseListener(new Runnable() {
+            public void run() {
+                synchronized (queue) {
+                    queue.notify();
+                }
+            }
+        });
+    }
+
+    /**
+     * Queue a command.
+     *
+     * @param future Command to send
+     */
+    void submit(ATCommandFuture future) {
+        ATCommandPool.checkPriority(future.getPriority());
+        synchronized (queue) {
+            if (thread == null) {
+                thread = new Thread(this, "atd");
+                thread.start();
+            }
+            nbSubmitted++;
+            // We queue it after all the commands of the same or a higher priority
+            int i = queue.size();
+            while (i > 0 && ((ATCommandFuture) queue.elementAt(i - 1)).getPriority() > future.getPriority()) {
+                i--;
+            }
+            queue.insertElementAt(future, i);
+            queue.notify();
+        }
+    }
+
+    public void run() {
+        while (true) {
+            ATCommandFuture future = null;
+            ATCommandPooled atc = null;
+            synchronized (queue) {
+                while (atc == null) {
+                    if (!queue.isEmpty()) {
+                        future = (ATCommandFuture) queue.elementAt(0);
+                        atc = pool.tryAcquire(future.getPriority());
+                        if (atc != null) {
+                            queue.removeElementAt(0);
+                            nbDispatched++;
+                            break;
+                        }
+                    }
+                    try {
+                        queue.wait();
+                    } catch (InterruptedException ex) {
+                        if (Logger.BUILD_CRITICAL) {
+                            Logger.log(this, ex, 77);
+                        }
+                    }
+                }
+            }
+            pool.recordWait(future.getPriority(), System.currentTimeMillis() - future.getSubmissionTime());
+            if (Logger.BUILD_DEBUG && LOG) {
+                Logger.log(this + ": " + future + " on " + atc);
+            }
+            future.sendOn(atc);
+        }
+    }
+
+    public String toString() {
+        synchronized (queue) {
+            return "ATDispatcher{queued=" + queue.size() + ",submitted=" + nbSubmitted + ",dispatched=" + nbDispatched + "}";
+        }
+    }
+}
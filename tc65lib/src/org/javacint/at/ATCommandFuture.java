@@ -0,0 +1,147 @@
+package org.javacint.at;
+
+//#if sdkns == "siemens"
+import com.siemens.icm.io.*;
+//#elif sdkns == "cinterion"
+//# import com.cinterion.io.*;
+//#endif
+import org.javacint.logging.Logger;
+
+/**
+ * Handle on an asynchronously sent AT command.
+ *
+ * The result can either be waited for with get() or received through the
+ * listener given at submission. The listener is called from the modem response
+ * thread, it must return quickly (use an ATURCQueueHandler-like indirection if
+ * it doesn't).
+ */
+public class ATCommandFuture implements ATCommandResponseListener {
+
+    private final String cmd;
+    private final ATCommandResponseListener listener;
+    private final int priority;
+    private final long submitted = System.currentTimeMillis();
+    private ATCommandPooled atc;
+    private boolean done;
+    private String result;
+
+    ATCommandFuture(String cmd, ATCommandResponseListener listener, int priority) {
+        this.cmd = cmd;
+        this.listener = listener;
+        this.priority = priority;
+    }
+
+    /**
+     * Get the priority class of the command.
+     *
+     * @return Priority class
+     */
+    public int getPriority() {
+        return priority;
+    }
+
+    /**
+     * Get the command sent.
+     *
+     * @return Raw AT command
+     */
+    public String getCommand() {
+        return cmd;
+    }
+
+    /**
+     * Get the submission time.
+     *
+     * @return Submission time (ms)
+     */
+    public long getSubmissionTime() {
+        return submitted;
+    }
+
+    /**
+     * Check if the command has completed.
+     *
+     * @return true if the result is available
+     */
+    public synchronized boolean isDone() {
+        return done;
+    }
+
+    /**
+     * Wait for the result of the command.
+     *
+     * @return Result of the command (null if it failed)
+     */
+    public String get() {
+        return get(0);
+    }
+
+    /**
+     * Wait for the result of the command.
+     *
+     * @param timeout Maximum waiting time (ms), 0 to wait forever
+     * @return Result of the command (null if it failed or timed out)
+     */
+    public synchronized String get(long timeout) {
+        long end = System.currentTimeMillis() + timeout;
+        while (!done) {
+            long remaining = end - System.currentTimeMillis();
+            if (timeout > 0 && remaining <= 0) {
+                break;
+            }
+            try {
+                wait(timeout > 0 ? remaining : 0);
+            } catch (InterruptedException ex) {
+                if (Logger.BUILD_CRITICAL) {
+                    Logger.log(this + ".get", ex, true);
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Send the command on a pooled instance.
+     *
+     * The instance is given back to the pool once the response is received.
+     *
+     * @param atc Pooled instance to use
+     */
+    void sendOn(ATCommandPooled atc) {
+        synchronized (this) {
+            this.atc = atc;
+        }
+        if (!ATCommands.sendRawAsync(atc.atc(), cmd, this)) {
+            ATResponse(null);
+        }
+    }
+
+    public void ATResponse(String response) {
+        ATCommandPooled a;
+        synchronized (this) {
+            a = atc;
+            atc = null;
+        }
+        if (a != null) {
+            a.releaseToPool();
+        }
+        synchronized (this) {
+            result = response;
+            done = true;
+            notifyAll();
+        }
+        if (listener != null) {
+            try {
+                listener.ATResponse(response);
+            } catch (Throwable ex) {
+                if (Logger.BUILD_CRITICAL) {
+                    Logger.log(this + ".ATResponse", ex, true);
+                }
+            }
+        }
+    }
+
+    public String toString() {
+        return "ATFuture[" + cmd.trim() + "]";
+    }
+}
@@ -0,0 +1,433 @@
+package org.javacint.at;
+
+//#if sdkns == "siemens"
+import com.siemens.icm.io.*;
+//#elif sdkns == "cinterion"
+//# import com.cinterion.io.*;
+//#endif
+import java.util.Vector;
+import org.javacint.logging.Logger;
+
+/**
+ * Pool of ATCommand instances.
+ *
+ * Free instances are handed over to the waiting threads by priority class
+ * (critical, normal, bulk) and, within a class, in the order they asked for
+ * them (FIFO). Each waiting thread waits on its own monitor so that a release
+ * always wakes the right thread.<br />
+ * Bulk users never take the last free instance (unless it's the only one)
+ * and a number of instances can be reserved to critical users, so that long
+ * bulk commands (like reading all the SMS) can't make critical work wait.
+ */
+public final class ATCommandPool {
+
+    /**
+     * A thread waiting for an instance
+     */
+    private static class Waiter {
+
+        private final Thread thread = Thread.currentThread();
+        private final int priority;
+        private ATCommandPooled atc;
+
+        Waiter(int priority) {
+            this.priority = priority;
+        }
+    }
+    private static final int NB_PRIORITIES = 3;
+    private final Vector instances = new Vector();
+    private final Vector free = new Vector();
+    private final Vector waiters = new Vector();
+    private int maxWait;
+    private int reserved;
+    private Runnable releaseListener;
+    private final long creation = System.currentTimeMillis();
+    private int nbTimeouts;
+    private final int[] nbAcquired = new int[NB_PRIORITIES];
+    private final int[] nbWaited = new int[NB_PRIORITIES];
+    private final long[] waitTime = new long[NB_PRIORITIES];
+    private final long[] maxWaitTime = new long[NB_PRIORITIES];
+
+    ATCommandPool(int size, int maxWait) {
+        this.maxWait = maxWait;
+        setSize(size);
+    }
+
+    /**
+     * Set the number of instances of the pool.
+     *
+     * The pool can only grow, each ATCommand instance has a cost. This should
+     * be called at startup, before the AT traffic starts.
+     *
+     * @param size Number of instances
+     */
+    public void setSize(int size) {
+        synchronized (this) {
+            while (instances.size() < size) {
+                try {
+                    /*
+                     * From docs:
+                     * Each started listener thread uses 5 kbytes of RAM.
+                     *
+                     * That's why we use (false, false, ... false)
+                     */
+                    ATCommandPooled atc = new ATCommandPooled(new ATCommand(false, false, false, false, false, false), this, instances.size() + 1);
+                    instances.addElement(atc);
+                    free.addElement(atc);
+                } catch (Exception ex) {
+                    if (Logger.BUILD_CRITICAL) {
+                        Logger.log("ATCommandPool.setSize(" + size + ")", ex, true);
+                    }
+                    break;
+                }
+            }
+            handOver();
+        }
+        Runnable listener = releaseListener;
+        if (listener != null) {
+            listener.run();
+        }
+    }
+
+    /**
+     * Set the maximum time to wait for an instance.
+     *
+     * @param maxWait Maximum waiting time (ms)
+     */
+    public synchronized void setMaxWait(int maxWait) {
+        this.maxWait = maxWait;
+    }
+
+    /**
+     * Set the number of instances reserved to critical users.
+     *
+     * The normal and bulk users still get the last instance when all of them
+     * are free: the reserve is at most the number of instances minus one.
+     *
+     * @param reserved Number of reserved instances
+     */
+    public synchronized void setReserved(int reserved) {
+        this.reserved = reserved;
+    }
+
+    void setReleaseListener(Runnable listener) {
+        releaseListener = listener;
+    }
+
+    /**
+     * Get the number of instances of the pool.
+     *
+     * @return Number of instances
+     */
+    public int size() {
+        return instances.size();
+    }
+
+    /**
+     * Get an instance of the pool.
+     *
+     * @param i Index of the instance
+     * @return Pooled instance
+     */
+    public ATCommandPooled instanceAt(int i) {
+        return (ATCommandPooled) instances.elementAt(i);
+    }
+
+    /**
+     * Check if a free instance can be given to a priority class.
+     *
+     * Normal users keep the reserved instances free, bulk users keep one more.
+     * Both can always take an instance when all of them are free, whatever the
+     * number of reserved instances, so that they can't starve.
+     */
+    private boolean canTake(int priority) {
+        int keep = 0;
+        if (priority != ATCommands.PRIORITY_CRITICAL) {
+            keep = reserved;
+            if (priority == ATCommands.PRIORITY_BULK) {
+                keep++;
+            }
+            keep = Math.min(keep, instances.size() - 1);
+        }
+        return free.size() > keep;
+    }
+
+    /**
+     * Check that a priority class is defined.
+     *
+     * @param priority Priority class
+     * @throws IllegalArgumentException if it isn't PRIORITY_CRITICAL,
+     * PRIORITY_NORMAL or PRIORITY_BULK
+     */
+    static void checkPriority(int priority) {
+        if (priority < 0 || priority >= NB_PRIORITIES) {
+            throw new IllegalArgumentException("Invalid priority: " + priority);
+        }
+    }
+
+    /**
+     * Take a free instance if no waiting thread comes first.
+     */
+    private ATCommandPooled take(int priority) {
+        if ((waiters.isEmpty() || ((Waiter) waiters.elementAt(0)).priority > priority) && canTake(priority)) {
+            ATCommandPooled atc = (ATCommandPooled) free.elementAt(0);
+            free.removeElementAt(0);
+            atc.acquired(Thread.currentThread());
+            return atc;
+        }
+        return null;
+    }
+
+    /**
+     * Get an instance without waiting.
+     *
+     * @param priority Priority class
+     * @return Instance or null if none could be taken
+     */
+    synchronized ATCommandPooled tryAcquire(int priority) {
+        checkPriority(priority);
+        ATCommandPooled atc = take(priority);
+        if (atc != null) {
+            nbAcquired[priority]++;
+        }
+        return atc;
+    }
+
+    ATCommandPooled acquire(int priority) {
+        checkPriority(priority);
+        Waiter waiter;
+        synchronized (this) {
+            nbAcquired[priority]++;
+            ATCommandPooled atc = take(priority);
+            if (atc != null) {
+                return atc;
+            }
+            waiter = new Waiter(priority);
+            // We wait after all the waiters of the same or a higher priority
+            int i = waiters.size();
+            while (i > 0 && ((Waiter) waiters.elementAt(i - 1)).priority > priority) {
+                i--;
+            }
+            waiters.insertElementAt(waiter, i);
+        }
+
+        long start = System.currentTimeMillis();
+        long end = start + maxWait;
+        synchronized (waiter) {
+            long remaining;
+            while (waiter.atc == null && (remaining = end - System.currentTimeMillis()) > 0) {
+                try {
+                    waiter.wait(remaining);
+                } catch (InterruptedException ex) {
+                    if (Logger.BUILD_CRITICAL) {
+                        Logger.log(this + ".acquire", ex, true);
+                    }
+                }
+            }
+        }
+
+        synchronized (this) {
+            recordWait(priority, System.currentTimeMillis() - start);
+            if (waiter.atc == null) {
+                waiters.removeElement(waiter);
+                nbTimeouts++;
+                // Our leaving might let the next waiters take the free instances
+                handOver();
+                throw new RuntimeException("Could not get a PooledATCommand");
+            }
+            return waiter.atc;
+        }
+    }
+
+    /**
+     * Record a queueing delay.
+     *
+     * @param priority Priority class
+     * @param waited Waiting time (ms)
+     */
+    synchronized void recordWait(int priority, long waited) {
+        nbWaited[priority]++;
+        waitTime[priority] += waited;
+        if (waited > maxWaitTime[priority]) {
+            maxWaitTime[priority] = waited;
+        }
+    }
+
+    void release(ATCommandPooled atc) {
+        synchronized (this) {
+            atc.released();
+            free.addElement(atc);
+            handOver();
+        }
+        Runnable listener = releaseListener;
+        if (listener != null) {
+            listener.run();
+        }
+    }
+
+    /**
+     * Hand the free instances over to the waiting threads.
+     */
+    private void handOver() {
+        while (!waiters.isEmpty() && canTake(((Waiter) waiters.elementAt(0)).priority)) {
+            Waiter waiter = (Waiter) waiters.elementAt(0);
+            waiters.removeElementAt(0);
+            ATCommandPooled atc = (ATCommandPooled) free.elementAt(0);
+            free.removeElementAt(0);
+            atc.acquired(waiter.thread);
+            synchronized (waiter) {
+                waiter.atc = atc;
+                waiter.notify();
+            }
+        }
+    }
+
+    /**
+     * Get the number of acquisitions of a priority class.
+     *
+     * @param priority Priority class
+     * @return Number of acquisitions
+     */
+    public synchronized int getNbAcquired(int priority) {
+        checkPriority(priority);
+        return nbAcquired[priority];
+    }
+
+    /**
+     * Get the number of acquisitions.
+     *
+     * @return Number of acquisitions
+     */
+    public synchronized int getNbAcquired() {
+        return sum(nbAcquired);
+    }
+
+    /**
+     * Get the number of acquisitions of a priority class that had to wait.
+     *
+     * @param priority Priority class
+     * @return Number of waits
+     */
+    public synchronized int getNbWaited(int priority) {
+        checkPriority(priority);
+        return nbWaited[priority];
+    }
+
+    /**
+     * Get the number of acquisitions that had to wait for an instance.
+     *
+     * @return Number of waits
+     */
+    public synchronized int getNbWaited() {
+        return sum(nbWaited);
+    }
+
+    /**
+     * Get the number of acquisitions that timed out.
+     *
+     * @return Number of timeouts
+     */
+    public synchronized int getNbTimeouts() {
+        return nbTimeouts;
+    }
+
+    /**
+     * Get the total queueing delay of a priority class.
+     *
+     * @param priority Priority class
+     * @return Total waiting time (ms)
+     */
+    public synchronized long getTotalWaitTime(int priority) {
+        checkPriority(priority);
+        return waitTime[priority];
+    }
+
+    /**
+     * Get the total time spent waiting for an instance.
+     *
+     * @return Total waiting time (ms)
+     */
+    public synchronized long getTotalWaitTime() {
+        long total = 0;
+        for (int i = 0; i < NB_PRIORITIES; i++) {
+            total += waitTime[i];
+        }
+        return total;
+    }
+
+    /**
+     * Get the longest queueing delay of a priority class.
+     *
+     * @param priority Priority class
+     * @return Maximum waiting time (ms)
+     */
+    public synchronized long getMaxWaitTime(int priority) {
+        checkPriority(priority);
+        return maxWaitTime[priority];
+    }
+
+    /**
+     * Get the longest time spent waiting for an instance.
+     *
+     * @return Maximum waiting time (ms)
+     */
+    public synchronized long getMaxWaitTime() {
+        long max = 0;
+        for (int i = 0; i < NB_PRIORITIES; i++) {
+            max = Math.max(max, maxWaitTime[i]);
+        }
+        return max;
+    }
+
+    private static int sum(int[] values) {
+        int total = 0;
+        for (int i = 0; i < values.length; i++) {
+            total += values[i];
+        }
+        return total;
+    }
+
+    /**
+     * Get the number of threads currently waiting for an instance.
+     *
+     * @return Number of waiting threads
+     */
+    public synchronized int getNbWaiting() {
+        return waiters.size();
+    }
+
+    /**
+     * Get the utilization of an instance since the pool creation.
+     *
+     * @param i Index of the instance
+     * @return Utilization (per thousand)
+     */
+    public int getUtilization(int i) {
+        long elapsed = System.currentTimeMillis() - creation;
+        if (elapsed <= 0) {
+            return 0;
+        }
+        return (int) (instanceAt(i).getBusyTime() * 1000 / elapsed);
+    }
+
+    public synchronized String toString() {
+        StringBuffer sb = new StringBuffer();
+        sb.append("ATPool{size=").append(instances.size()).
+                append(",reserved=").append(reserved).
+                append(",free=").append(free.size()).
+                append(",waiting=").append(waiters.size()).
+                append(",timeouts=").append(nbTimeouts);
+        for (int p = 0; p < NB_PRIORITIES; p++) {
+            sb.append(",P").append(p).append("={acquired=").append(nbAcquired[p]).
+                    append(",waited=").append(nbWaited[p]).
+                    append(",waitTotal=").append(waitTime[p]).
+                    append(",waitMax=").append(maxWaitTime[p]).append('}');
+        }
+        for (int i = 0; i < instances.size(); i++) {
+            ATCommandPooled atc = instanceAt(i);
+            sb.append(',').append(atc).append("={uses=").append(atc.getNbUses()).
+                    append(",use=").append(getUtilization(i)).append("/1000}");
+        }
+        return sb.append('}').toString();
+    }
+}
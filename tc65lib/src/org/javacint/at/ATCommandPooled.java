@@ -14,10 +14,17 @@ import org.javacint.logging.Logger;
 public class ATCommandPooled {
 
     private final ATCommand atc;
+    private final ATCommandPool pool;
+    private final int number;
     private Thread blockingThread = null;
+    private long acquiredAt;
+    private long busyTime;
+    private int nbUses;
 
-    ATCommandPooled(ATCommand atc) {
+    ATCommandPooled(ATCommand atc, ATCommandPool pool, int number) {
         this.atc = atc;
+        this.pool = pool;
+        this.number = number;
     }
 
     /**
@@ -32,8 +39,39 @@ public class ATCommandPooled {
         return blockingThread;
     }
 
-    void setBlockingThread() {
-        blockingThread = Thread.currentThread();
+    void acquired(Thread thread) {
+        blockingThread = thread;
+        acquiredAt = System.currentTimeMillis();
+        nbUses++;
+    }
+
+    void released() {
+        if (blockingThread != null) {
+            busyTime += System.currentTimeMillis() - acquiredAt;
+            blockingThread = null;
+        }
+    }
+
+    /**
+     * Get the number of times this instance was acquired.
+     *
+     * @return Number of uses
+     */
+    public int getNbUses() {
+        return nbUses;
+    }
+
+    /**
+     * Get the total time this instance was held by a thread.
+     *
+     * @return Busy time (ms), including the current use
+     */
+    public long getBusyTime() {
+        long time = busyTime;
+        if (blockingThread != null) {
+            time += System.currentTimeMillis() - acquiredAt;
+        }
+        return time;
     }
 
     /**
@@ -62,10 +100,18 @@ public class ATCommandPooled {
 
     public void release() {
         if (Thread.currentThread() == blockingThread) {
-            synchronized (ATCommands.class) {
-                blockingThread = null;
-                ATCommands.class.notify();
-            }
+            pool.release(this);
         }
     }
+
+    /**
+     * Give the instance back to the pool, whatever thread is calling.
+     */
+    void releaseToPool() {
+        pool.release(this);
+    }
+
+    public String toString() {
+        return "AT" + number;
+    }
 }
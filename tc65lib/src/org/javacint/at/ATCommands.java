@@ -5,6 +5,7 @@ import com.siemens.icm.io.*;
 //#elif sdkns == "cinterion"
 //# import com.cinterion.io.*;
 //#endif
+import java.util.Hashtable;
 import org.javacint.logging.Logger;
 
 /**
@@ -15,20 +16,30 @@ import org.javacint.logging.Logger;
  * If you have a non-interrupting block, you should use getATCommand(), then use
  * that instance (it will be exclusively used by your thread), then run
  * release() method on it.</br>
- * Use sendUrc() to activate some URCs and addListener() to receive them.
+ * Use sendUrc() to activate some URCs and addListener() to receive them.</br>
+ * Listeners only interested in some URCs should be added with their names
+ * (addListener(String[], ATCommandListener)): they are then only called for
+ * these URCs, from the URC dispatcher thread.</br>
+ * </br>
+ * Concurrent send() calls of the same read-only query (like "AT+CSQ" or
+ * "AT+COPS?") share one modem execution and all receive the same response.
  */
 public final class ATCommands {
 
     private static final boolean LOG = false; // We don't want to log everything just because we're in debug
     private static final boolean DEBUG = Logger.BUILD_DEBUG && LOG;
-    private static final ATCommandPooled atCommand1, atCommand2;
+    private static final ATCommandPool pool;
     private static final ATCommand atCommandURC;
+    private static final ATCommandDispatcher dispatcher;
+    private static ATURCRouter router;
     //private static final ATCommand atCommandData;
+    private static final int POOL_DEFAULT_SIZE = 2;
+    private static final int POOL_MAX_WAIT = 10000; // 10s
 
     static {
         // We enforce the static final
-        ATCommandPooled atc1 = null, atc2 = null;
         ATCommand aturc = null, atdata = null;
+        pool = new ATCommandPool(POOL_DEFAULT_SIZE, POOL_MAX_WAIT);
         try {
             /*
              * From docs:
@@ -37,40 +48,75 @@ public final class ATCommands {
              * 
              * That's why we use (false, false, ... false)
              */
-            atc1 = new ATCommandPooled(new ATCommand(false, false, false, false, false, false));
-            atc2 = new ATCommandPooled(new ATCommand(false, false, false, false, false, false));
             aturc = new ATCommand(false, true, false, false, false, false); //One "true" to monitor URC's
             //atdata = new ATCommand(false, false, false, false, false, false);
         } catch (Exception e) {
             if (Logger.BUILD_CRITICAL) {
-                Logger.log("ATCommands:static " + atc1 + "," + atc2 + "," + aturc + "," + atdata, e);
+                Logger.log("ATCommands:static " + pool + "," + aturc + "," + atdata, e);
             }
         }
-        atCommand1 = atc1;
-        atCommand2 = atc2;
         atCommandURC = aturc;
         //atCommandData = atdata;
+        dispatcher = new ATCommandDispatcher(pool);
     }
-    private static final int POOL_MAX_WAIT = 10000; // 10s
 
-    public static synchronized ATCommandPooled getATCommand() {
-        if (atCommand1.getBlockingThread() != null && atCommand2.getBlockingThread() != null) { // If we have no available instance, we wait for one
-            try {
-                ATCommands.class.wait(POOL_MAX_WAIT);
-            } catch (InterruptedException ex) {
-                if (Logger.BUILD_CRITICAL) {
-                    Logger.log(ATCommands.class, ex, 69);
-                }
-            }
-        }
-        if (atCommand1.getBlockingThread() == null) {
-            atCommand1.setBlockingThread();
-            return atCommand1;
-        } else if (atCommand2.getBlockingThread() == null) {
-            atCommand2.setBlockingThread();
-            return atCommand2;
-        }
-        throw new RuntimeException("Could not get a PooledATCommand");
+    /**
+     * Critical priority: watchdog and URC-driven work
+     */
+    public static final int PRIORITY_CRITICAL = 0;
+    /**
+     * Normal priority: default
+     */
+    public static final int PRIORITY_NORMAL = 1;
+    /**
+     * Bulk priority: long commands (SMS listing, OTAP, ...)
+     */
+    public static final int PRIORITY_BULK = 2;
+
+    /**
+     * Get a pooled ATCommand instance.
+     *
+     * The instance is exclusively used by the calling thread until it calls
+     * release() on it. Instances are handed over in the order they were
+     * requested.
+     *
+     * @return Pooled ATCommand instance
+     */
+    public static ATCommandPooled getATCommand() {
+        return pool.acquire(PRIORITY_NORMAL);
+    }
+
+    /**
+     * Get a pooled ATCommand instance for a priority class.
+     *
+     * Higher priority classes are served first.
+     *
+     * @param priority PRIORITY_CRITICAL, PRIORITY_NORMAL or PRIORITY_BULK
+     * @return Pooled ATCommand instance
+     * @throws IllegalArgumentException for any other priority
+     */
+    public static ATCommandPooled getATCommand(int priority) {
+        return pool.acquire(priority);
+    }
+
+    /**
+     * Set the number of pooled ATCommand instances.
+     *
+     * This should be called at startup. The pool can only grow.
+     *
+     * @param size Number of instances
+     */
+    public static void setPoolSize(int size) {
+        pool.setSize(size);
+    }
+
+    /**
+     * Get the ATCommand instances pool.
+     *
+     * @return ATCommand pool (mostly for its statistics)
+     */
+    public static ATCommandPool getPool() {
+        return pool;
     }
     private static final int MAXIMUM_NUMBER_OF_TRIES = 10;
 
@@ -113,7 +159,125 @@ public final class ATCommands {
      * @return result
      */
     public static String send(String cmd) {
-        return sendRaw(cmd + '\r');
+        return send(cmd, PRIORITY_NORMAL);
+    }
+
+    /**
+     * Send an AT command with a priority class.
+     *
+     * @param cmd the intended AT command
+     * @param priority PRIORITY_CRITICAL, PRIORITY_NORMAL or PRIORITY_BULK
+     * @return result
+     */
+    public static String send(String cmd, int priority) {
+        if (isReadOnly(cmd)) {
+            return sendShared(cmd, priority);
+        }
+        return sendRaw(cmd + '\r', priority);
+    }
+
+    /**
+     * Shared execution of a read-only query
+     */
+    private static class Flight {
+
+        private boolean done;
+        private String result;
+    }
+    private static final Hashtable flights = new Hashtable();
+    private static final Hashtable readOnlyCommands = new Hashtable();
+    private static int nbShared, nbMerged;
+
+    static {
+        String[] cmds = {"AT+CSQ", "AT^SMONC", "AT^SMONP", "AT^SBV", "AT^SPIC", "AT+GSN", "AT+CIMI", "AT^SCID", "ATI", "AT+CNUM"};
+        for (int i = 0; i < cmds.length; i++) {
+            addReadOnlyCommand(cmds[i]);
+        }
+    }
+
+    /**
+     * Declare a command as a read-only query.
+     *
+     * Concurrent calls of read-only queries share one modem execution. Commands
+     * ending with "?" are always considered read-only.
+     *
+     * @param cmd AT command (without the ending "\r")
+     */
+    public static void addReadOnlyCommand(String cmd) {
+        readOnlyCommands.put(cmd, cmd);
+    }
+
+    private static boolean isReadOnly(String cmd) {
+        return cmd.endsWith("?") || readOnlyCommands.containsKey(cmd);
+    }
+
+    private static String sendShared(String cmd, int priority) {
+        Flight flight;
+        boolean leader = false;
+        synchronized (flights) {
+            flight = (Flight) flights.get(cmd);
+            if (flight == null) {
+                flight = new Flight();
+                flights.put(cmd, flight);
+                leader = true;
+                nbShared++;
+            } else {
+                nbMerged++;
+            }
+        }
+
+        if (leader) {
+            String result = null;
+            try {
+                result = sendRaw(cmd + '\r', priority);
+                return result;
+            } finally {
+                synchronized (flights) {
+                    flights.remove(cmd);
+                }
+                synchronized (flight) {
+                    flight.result = result;
+                    flight.done = true;
+                    flight.notifyAll();
+                }
+            }
+        }
+
+        synchronized (flight) {
+            while (!flight.done) {
+                try {
+                    flight.wait();
+                } catch (InterruptedException ex) {
+                    if (Logger.BUILD_CRITICAL) {
+                        Logger.log("ATCommands.sendShared", ex, true);
+                    }
+                }
+            }
+            return flight.result;
+        }
+    }
+
+    /**
+     * Get the number of read-only queries actually sent to the modem.
+     *
+     * @return Number of shared executions
+     */
+    public static int getNbShared() {
+        synchronized (flights) {
+            return nbShared;
+        }
+    }
+
+    /**
+     * Get the number of read-only queries merged into an execution already in
+     * progress.
+     *
+     * @return Number of merged requests
+     */
+    public static int getNbMerged() {
+        synchronized (flights) {
+            return nbMerged;
+        }
     }
 
     /**
@@ -124,12 +288,25 @@ public final class ATCommands {
      * @return result
      */
     public static String sendRaw(String cmd) {
+        return sendRaw(cmd, PRIORITY_NORMAL);
+    }
+
+    /**
+     * Send an AT command 'as-is' with a priority class.
+     *
+     * @param cmd the intended AT command
+     * @param priority PRIORITY_CRITICAL, PRIORITY_NORMAL or PRIORITY_BULK
+     * @return result
+     */
+    public static String sendRaw(String cmd, int priority) {
         ATCommandPooled atc = null;
         try {
-            atc = getATCommand();
+            atc = getATCommand(priority);
             return atc.sendRaw(cmd);
         } finally {
-            atc.release();
+            if (atc != null) {
+                atc.release();
+            }
         }
     }
 
@@ -142,30 +319,41 @@ public final class ATCommands {
     public static String sendAll(String cmd) {
         send(atCommandURC, cmd);
 //        send(atCommandData, ATCmd);
-        ATCommandPooled atc1 = null, atc2 = null;
-        try {
-            atc1 = getATCommand();
-            atc2 = getATCommand();
-            atc1.send(cmd);
-            return atc2.send(cmd);
-        } finally {
-            atc1.release();
-            atc2.release();
+        // We hold every instance until all of them received the command: the
+        // instances are taken at critical priority (reserved ones included) and
+        // one caller at a time, so that two callers can't each hold a part of them
+        synchronized (sendAllLock) {
+            ATCommandPooled[] atcs = new ATCommandPooled[pool.size()];
+            try {
+                String result = null;
+                for (int i = 0; i < atcs.length; i++) {
+                    atcs[i] = getATCommand(PRIORITY_CRITICAL);
+                    result = atcs[i].send(cmd);
+                }
+                return result;
+            } finally {
+                for (int i = 0; i < atcs.length; i++) {
+                    if (atcs[i] != null) {
+                        atcs[i].release();
+                    }
+                }
+            }
         }
     }
+    private static final Object sendAllLock = new Object();
 
     private static String atcInstanceToString(ATCommand atc) {
         if (atc == atCommandURC) {
             return "ATURC";
         } /*else if (atc == atCommandData) {
          return "ATData";
-         }*/ else if (atc == atCommand1.atc()) {
-            return "AT1";
-        } else if (atc == atCommand2.atc()) {
-            return "AT2";
-        } else {
-            return "ATUnk";
+         }*/
+        for (int i = 0; i < pool.size(); i++) {
+            if (atc == pool.instanceAt(i).atc()) {
+                return pool.instanceAt(i).toString();
+            }
         }
+        return "ATUnk";
     }
 
     //I don't see a reason making it public
@@ -196,16 +384,33 @@ public final class ATCommands {
     }
 
     public static String sendLong(String cmd) {
-        return sendLongRaw(cmd + '\r');
+        return sendLongRaw(cmd + '\r', PRIORITY_NORMAL);
+    }
+
+    /**
+     * Send a long AT command with a priority class.
+     *
+     * @param cmd the intended AT command
+     * @param priority PRIORITY_CRITICAL, PRIORITY_NORMAL or PRIORITY_BULK
+     * @return result
+     */
+    public static String sendLong(String cmd, int priority) {
+        return sendLongRaw(cmd + '\r', priority);
     }
 
     public static String sendLongRaw(String cmd) {
+        return sendLongRaw(cmd, PRIORITY_NORMAL);
+    }
+
+    public static String sendLongRaw(String cmd, int priority) {
         ATCommandPooled atc = null;
         try {
-            atc = getATCommand();
+            atc = getATCommand(priority);
             return atc.sendLongRaw(cmd);
         } finally {
-            atc.release();
+            if (atc != null) {
+                atc.release();
+            }
         }
     }
 
@@ -241,6 +446,70 @@ public final class ATCommands {
         return value;
     }
 
+    /**
+     * Queue an AT command without waiting for its result.
+     *
+     * @param cmd the intended AT command
+     * @return Handle on the command's result
+     */
+    public static ATCommandFuture sendAsync(String cmd) {
+        return sendRawAsync(cmd + '\r', null);
+    }
+
+    /**
+     * Queue an AT command without waiting for its result.
+     *
+     * @param cmd the intended AT command
+     * @param listener Listener receiving the result, called from the modem
+     * response thread (can be null)
+     * @return Handle on the command's result
+     */
+    public static ATCommandFuture sendAsync(String cmd, ATCommandResponseListener listener) {
+        return sendRawAsync(cmd + '\r', listener);
+    }
+
+    /**
+     * Queue an AT command, sent 'as-is', without waiting for its result.
+     *
+     * @param cmd the intended AT command
+     * @param listener Listener receiving the result, called from the modem
+     * response thread (can be null)
+     * @return Handle on the command's result
+     */
+    public static ATCommandFuture sendRawAsync(String cmd, ATCommandResponseListener listener) {
+        return sendRawAsync(cmd, listener, PRIORITY_NORMAL);
+    }
+
+    /**
+     * Queue an AT command, sent 'as-is', with a priority class.
+     *
+     * @param cmd the intended AT command
+     * @param listener Listener receiving the result, called from the modem
+     * response thread (can be null)
+     * @param priority PRIORITY_CRITICAL, PRIORITY_NORMAL or PRIORITY_BULK
+     * @return Handle on the command's result
+     */
+    public static ATCommandFuture sendRawAsync(String cmd, ATCommandResponseListener listener, int priority) {
+        ATCommandFuture future = new ATCommandFuture(cmd, listener, priority);
+        dispatcher.submit(future);
+        return future;
+    }
+
+    static boolean sendRawAsync(ATCommand atc, String cmd, ATCommandResponseListener listener) {
+        try {
+            if (DEBUG) {
+                Logger.log(atcInstanceToString(atc) + " <~~ " + cmd);
+            }
+            atc.send(cmd, listener);
+            return true;
+        } catch (Exception ex) {
+            if (Logger.BUILD_CRITICAL) {
+                Logger.log("ATCommands.sendRawAsync(" + atc + "," + cmd + ")", ex, true);
+            }
+            return false;
+        }
+    }
+
     public static void addListener(ATCommandListener listener) {
         atCommandURC.addListener(listener);
     }
@@ -248,4 +517,31 @@ public final class ATCommands {
     public static void removeListener(ATCommandListener listener) {
         atCommandURC.removeListener(listener);
     }
+
+    /**
+     * Get the URC router.
+     *
+     * @return URC router, listening on the URC instance
+     */
+    public static synchronized ATURCRouter getRouter() {
+        if (router == null) {
+            router = new ATURCRouter(ATURCDispatcher.getDefault());
+            atCommandURC.addListener(router);
+        }
+        return router;
+    }
+
+    /**
+     * Add a listener of some URCs.
+     *
+     * @param names Names of the URCs ("+CMTI", "^SYSSTART", "RING", ...)
+     * @param listener Listener, called from the URC dispatcher thread
+     */
+    public static void addListener(String[] names, ATCommandListener listener) {
+        getRouter().addListener(names, listener);
+    }
+
+    public static void removeListener(String[] names, ATCommandListener listener) {
+        getRouter().removeListener(names, listener);
+    }
 }
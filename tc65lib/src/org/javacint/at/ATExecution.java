@@ -22,6 +22,21 @@ public class ATExecution {
 
     private static final String THIS = "ATExec";
 
+    /**
+     * Get a parser positioned on a line of a response.
+     *
+     * @param ret Response
+     * @param n Line number
+     * @return Parser on the line
+     */
+    private static ATResponseParser line(String ret, int n) {
+        ATResponseParser p = new ATResponseParser(ret);
+        if (!p.line(n)) {
+            throw new IllegalArgumentException("No line " + n);
+        }
+        return p;
+    }
+
     /**
      * Get gsm cell monitoring data.
      *
@@ -29,9 +44,12 @@ public class ATExecution {
      */
     public static String[] getMONC() {
         try {
-            String ret = ATCommands.send("AT^SMONC");
-            String[] spl = Strings.split('\n', ret);
-            spl = Strings.split(',', spl[1].substring(7).trim());
+            ATResponseParser p = line(ATCommandCache.send("AT^SMONC"), 1);
+            p.skip("^SMONC:");
+            String[] spl = new String[p.countFields()];
+            for (int i = 0; i < spl.length; i++) {
+                spl[i] = p.readField();
+            }
             return spl;
         } catch (Exception ex) {
             if (Logger.BUILD_CRITICAL) {
@@ -47,16 +65,23 @@ public class ATExecution {
      * @return RSSI level
      */
     public static int getRssi() {
+        return parseRssi(ATCommandCache.send("AT+CSQ"));
+    }
+
+    /**
+     * Parse the response of the AT+CSQ command.
+     *
+     * @param ret Response of the AT+CSQ command
+     * @return RSSI level
+     */
+    public static int parseRssi(String ret) {
         try {
-            String ret = ATCommands.send("AT+CSQ");
-            String tab[] = Strings.split('\n', ret);
-            ret = tab[1];
-            if (ret.equals("ERROR")) {
+            ATResponseParser p = line(ret, 1);
+            if (p.restEquals("ERROR")) {
                 return -1;
             }
-            tab = Strings.split(',', ret.substring(6).trim());
-            String rssi = tab[0];
-            return Integer.parseInt(rssi);
+            p.skip("+CSQ:");
+            return p.readInt();
         } catch (Exception ex) {
             if (Logger.BUILD_CRITICAL) {
                 Logger.log(THIS + ".getRssi", ex, true);
@@ -72,8 +97,7 @@ public class ATExecution {
      */
     public static String getImei() {
         try {
-            String tab[] = Strings.split('\n', ATCommands.send("AT+GSN"));
-            return (tab[1]).trim();
+            return line(ATCommandCache.send("AT+GSN"), 1).readRest();
         } catch (Exception ex) {
             if (Logger.BUILD_CRITICAL) {
                 Logger.log(THIS + ".getImei", ex);
@@ -89,13 +113,11 @@ public class ATExecution {
      */
     public static String getImsi() {
         try {
-            String tab[] = Strings.split('\n', ATCommands.send("AT+CIMI"));
-            String imsi = (tab[1]).trim();
-
-            if (imsi.equals("ERROR")) {
+            ATResponseParser p = line(ATCommandCache.send("AT+CIMI"), 1);
+            if (p.restEquals("ERROR")) {
                 return null;
             }
-            return imsi;
+            return p.readRest();
         } catch (Exception ex) {
             if (Logger.BUILD_CRITICAL) {
                 Logger.log(THIS + ".getImsi", ex);
@@ -111,15 +133,11 @@ public class ATExecution {
      */
     public static String getIccid() {
         try {
-            String tab[] = Strings.split('\n', ATCommands.send("AT^SCID"));
-            String scid = (tab[1]).trim().substring(7);
-//            if (Logger.BUILD_DEBUG) {
-//                Logger.log("Common.getIccid: \"" + scid + "\"");
-//            }
-            if (scid.equals("ERROR")) {
+            ATResponseParser p = line(ATCommandCache.send("AT^SCID"), 1);
+            if (!p.skip("^SCID:")) {
                 return null;
             }
-            return scid;
+            return p.readRest();
         } catch (Exception ex) {
             if (Logger.BUILD_CRITICAL) {
                 Logger.log(THIS + ".getIccid", ex);
@@ -221,7 +239,7 @@ public class ATExecution {
 
         // We setup, if possible the correct OTAP parameters
         if (apn != null && target != null) {
-            String ret = ATCommands.send("AT^SJOTAP=," + target + ",a:,,," + apn);
+            String ret = ATCommands.send("AT^SJOTAP=," + target + ",a:,,," + apn, ATCommands.PRIORITY_BULK);
             if (Logger.BUILD_DEBUG) {
                 Logger.log("ATCommandsWrapper.update: ret1=\"" + ret.replace('\r', '.').
                         replace('\n', '.') + "\"", true);
@@ -238,7 +256,7 @@ public class ATExecution {
             // We stop the watchdog code
             WatchdogManager.stop();
 
-            String ret = ATCommands.send("AT^SJOTAP");
+            String ret = ATCommands.send("AT^SJOTAP", ATCommands.PRIORITY_BULK);
             if (Logger.BUILD_DEBUG) {
                 Logger.log("ATCommandsWrapper.update: ret2=\"" + ret.replace('\r', '.').
                         replace('\n', '.') + "\"", true);
@@ -255,10 +273,7 @@ public class ATExecution {
      */
     public static boolean applyAPN(String apn) {
         try {
-            String ret = ATCommands.send("AT^SJNET=" + apn);
-            String[] spl = Strings.split('\n', ret);
-            ret = spl[1].trim();
-            return "OK".equals(ret);
+            return line(ATCommands.send("AT^SJNET=" + apn), 1).restEquals("OK");
         } catch (Exception ex) {
             if (Logger.BUILD_CRITICAL) {
                 Logger.log(THIS + ".applyAPN", ex);
@@ -274,11 +289,10 @@ public class ATExecution {
      */
     public static String getCopsOperator() {
         try {
-            String ret = ATCommands.send("AT+COPS?");
-            String[] spl = Strings.split('\n', ret);
-            ret = spl[1].trim();
-            ret = ret.substring(ret.indexOf('"') + 1, ret.length() - 1);
-            return ret;
+            ATResponseParser p = line(ATCommands.send("AT+COPS?"), 1);
+            p.skip("+COPS:");
+            p.skipFields(2);
+            return p.readField();
         } catch (Exception ex) {
             if (Logger.BUILD_CRITICAL) {
                 Logger.log(THIS + ".getCopsOperator", ex);
@@ -293,11 +307,20 @@ public class ATExecution {
      * @return Power input voltage (mV)
      */
     public static int getVoltage() {
+        return parseVoltage(ATCommands.send("AT^SBV"));
+    }
+
+    /**
+     * Parse the response of the AT^SBV command.
+     *
+     * @param ret Response of the AT^SBV command
+     * @return Power input voltage (mV)
+     */
+    public static int parseVoltage(String ret) {
         try {
-            String ret = ATCommands.send("AT^SBV");
-            String[] spl = Strings.split('\n', ret);
-            ret = spl[1].trim().substring("^SBV: ".length());
-            return Integer.parseInt(ret);
+            ATResponseParser p = line(ret, 1);
+            p.skip("^SBV:");
+            return p.readInt();
         } catch (Exception ex) {
             if (Logger.BUILD_CRITICAL) {
                 Logger.log(THIS + ".getVoltage", ex, true);
@@ -321,21 +344,25 @@ public class ATExecution {
      * @return Temperature of the chip (-500 in case of error)
      */
     public static int getTemp() {
-        String ret = "";
+        return parseTemp(ATCommands.send("AT^SCTM?"));
+    }
+
+    /**
+     * Parse the response of the AT^SCTM? command.
+     *
+     * @param ret Response of the AT^SCTM? command
+     * @return Temperature of the chip (-500 in case of error)
+     */
+    public static int parseTemp(String ret) {
         try {
-            ret = ATCommands.send("AT^SCTM?");
-            String tab[] = Strings.split('\n', ret.trim());
-//            Logger.log("getTemp:312 = " + tab[1]);
-            tab = Strings.split(':', tab[1]);
-//            Logger.log("getTemp:314 = " + tab[1]);
-            tab = Strings.split(',', tab[1]);
-//            Logger.log("getTemp:316 = " + tab[2]);
-            int value = Integer.parseInt(tab[2]);
-            return value;
+            ATResponseParser p = line(ret, 1);
+            p.skipTo(':');
+            p.skipFields(2);
+            return p.readInt();
         } catch (Exception ex) {
             if (Logger.BUILD_CRITICAL) {
-                Logger.log(THIS + ".tempGet:2/ret=\"" + ret.replace('\n', '.').
-                        replace('\r', '.') + "\"", ex, true);
+                Logger.log(THIS + ".tempGet:2/ret=\"" + (ret != null ? ret.replace('\n', '.').
+                        replace('\r', '.') : null) + "\"", ex, true);
             }
             return -500;
         }
@@ -343,21 +370,21 @@ public class ATExecution {
 
     public static String getChipIdentification() {
         try {
-            String[] spl = Strings.split('\n', ATCommands.send("ATI").trim());
-            String make = spl[1].trim();
-            String model = spl[2].trim();
-            String version = spl[3].trim();
+            String ret = ATCommandCache.send("ATI");
+            String make = line(ret, 1).readRest();
+            String model = line(ret, 2).readRest();
+            ATResponseParser p = line(ret, 3);
+            p.skipTo(' '); // "REVISION 03.001" gives "3.001"
+            while (p.skip("0")) {
+                // We remove the leading zeros
+            }
+            String version = p.readRest();
             {
-                spl = Strings.split(' ', version);
-                if (spl.length > 1) {
-                    version = spl[1];
-                }
-                while (version.startsWith("0")) {
-                    version = version.substring(1);
-                }
-                while (version.endsWith("0")) {
-                    version = version.substring(0, version.length() - 1);
+                int end = version.length();
+                while (end > 0 && version.charAt(end - 1) == '0') {
+                    end--;
                 }
+                version = version.substring(0, end);
             }
 
             return make + "-" + model + "/" + version;
@@ -375,13 +402,10 @@ public class ATExecution {
      */
     public static String getSimNum() {
         try {
-            String ret = ATCommands.send("AT+CNUM");
-            String[] spl = Strings.split('\n', ret);
-            ret = spl[1].trim();
-            spl = Strings.split(',', ret);
-            ret = spl[1].trim();
-            ret = ret.substring(1, ret.length() - 2);
-            return ret;
+            ATResponseParser p = line(ATCommandCache.send("AT+CNUM"), 1);
+            p.skip("+CNUM:");
+            p.skipFields(1);
+            return p.readField();
         } catch (Exception ex) {
             if (Logger.BUILD_CRITICAL) {
                 Logger.log(THIS + ".getSimNum", ex, true);
@@ -447,10 +471,7 @@ public class ATExecution {
                 pinSend(code);
             }
             try {
-                String ret = ATCommands.send("AT+CLCK=\"SC\"," + (lock ? "1" : "0") + ",\"" + code + "\"");
-                String[] spl = Strings.split('\n', ret);
-                ret = spl[1].trim();
-                return "OK".equals(ret);
+                return line(ATCommands.send("AT+CLCK=\"SC\"," + (lock ? "1" : "0") + ",\"" + code + "\""), 1).restEquals("OK");
             } catch (Exception ex) {
                 if (Logger.BUILD_CRITICAL) {
                     Logger.log(THIS + ".pinSet( atc, " + lock + ", \"" + code + "\" );");
@@ -483,17 +504,13 @@ public class ATExecution {
         public static int pinStatus() {
             try {
 //                synchronized (atc) {
-                String ret = ATCommands.send("AT+CPIN?");
-//				Logger.log("ret = " + ret);
-                String[] spl = Strings.split('\n', ret);
-                ret = spl[1].trim();
-                ret = ret.substring("+CPIN: ".length()).trim();
-//				Logger.log("status = " + ret);
-                if ("READY".equals(ret)) {
+                ATResponseParser p = line(ATCommands.send("AT+CPIN?"), 1);
+                p.skip("+CPIN:");
+                if (p.restEquals("READY")) {
                     return PINSTATUS_READY;
-                } else if ("SIM PIN".equals(ret)) {
+                } else if (p.restEquals("SIM PIN")) {
                     return PINSTATUS_SIMPIN;
-                } else if ("SIM PUK".equals(ret)) {
+                } else if (p.restEquals("SIM PUK")) {
                     return PINSTATUS_SIMPUK;
                 } else {
                     return PINSTATUS_UNKNOWN;
@@ -516,11 +533,7 @@ public class ATExecution {
         public static boolean pinSend(String code) {
             try {
 //                synchronized (atc) {
-                String ret = ATCommands.send("AT+CPIN=" + code);
-//				Logger.log(ret);
-                String[] spl = Strings.split('\n', ret);
-                ret = spl[1].trim();
-                return "OK".equals(ret);
+                return line(ATCommands.send("AT+CPIN=" + code), 1).restEquals("OK");
 //                }
             } catch (Exception ex) {
                 if (Logger.BUILD_CRITICAL) {
@@ -540,10 +553,7 @@ public class ATExecution {
         public static boolean pinChange(String oldPin, String newPin) {
             try {
 //                synchronized (atc) {
-                String ret = ATCommands.send("AT+CPWD=\"SC\",\"" + oldPin + "\",\"" + newPin + "\"");
-                String[] spl = Strings.split('\n', ret);
-                ret = spl[1].trim();
-                return "OK".equals(ret);
+                return line(ATCommands.send("AT+CPWD=\"SC\",\"" + oldPin + "\",\"" + newPin + "\""), 1).restEquals("OK");
 //                }
             } catch (Exception ex) {
                 if (Logger.BUILD_CRITICAL) {
@@ -561,11 +571,9 @@ public class ATExecution {
         public static int pinNbTriesLeft() {
             try {
 //                synchronized (atc) {
-                String ret = ATCommands.send("AT^SPIC");
-//				Logger.log(ret);
-                String[] spl = Strings.split('\n', ret);
-                ret = spl[1].trim().substring("^SPIC: ".length());
-                return Integer.parseInt(ret);
+                ATResponseParser p = line(ATCommands.send("AT^SPIC"), 1);
+                p.skip("^SPIC:");
+                return p.readInt();
 //                }
             } catch (Exception ex) {
                 if (Logger.BUILD_CRITICAL) {
@@ -0,0 +1,296 @@
+package org.javacint.at;
+
+/**
+ * AT command response parser.
+ *
+ * This is a cursor on a response: it selects a line, skips prefixes and fields
+ * and reads integers in place. Unlike Strings.split, it doesn't build any
+ * intermediate Vector, array or string. Strings are only created when a value
+ * is actually returned as a string.<br />
+ * The parser can be reused with reset().
+ *
+ * <pre>
+ * ATResponseParser p = new ATResponseParser(ATCommands.send("AT+CSQ"));
+ * if (p.line(1) &amp;&amp; p.skip("+CSQ:")) {
+ *     rssi = p.readInt();
+ * }
+ * </pre>
+ */
+public final class ATResponseParser {
+
+    private String str;
+    private int pos, lineEnd;
+
+    public ATResponseParser() {
+    }
+
+    public ATResponseParser(String response) {
+        reset(response);
+    }
+
+    /**
+     * Parse a new response.
+     *
+     * @param response Response to parse (can be null)
+     * @return this parser
+     */
+    public ATResponseParser reset(String response) {
+        str = response;
+        pos = 0;
+        lineEnd = 0;
+        return this;
+    }
+
+    /**
+     * Select a line of the response.
+     *
+     * Lines are counted the same way Strings.split('\n', response) does: the
+     * first line is usually the echoed command. The selected line is trimmed.
+     *
+     * @param n Line number
+     * @return true if the line exists
+     */
+    public boolean line(int n) {
+        if (str == null) {
+            return false;
+        }
+        // We ignore the white spaces around the response, like split does
+        int len = str.length();
+        while (len > 0 && str.charAt(len - 1) <= ' ') {
+            len--;
+        }
+        int start = 0;
+        while (start < len && str.charAt(start) <= ' ') {
+            start++;
+        }
+        if (start >= len) {
+            return false;
+        }
+        for (int i = 0; i < n; i++) {
+            start = str.indexOf('\n', start);
+            if (start < 0 || start >= len) {
+                return false;
+            }
+            start++;
+        }
+        int end = str.indexOf('\n', start);
+        if (end < 0 || end > len) {
+            end = len;
+        }
+        pos = start;
+        lineEnd = end;
+        trim();
+        return true;
+    }
+
+    /**
+     * Select the first line starting with a prefix and move after the prefix.
+     *
+     * @param prefix Prefix of the line (like "+CSQ:")
+     * @return true if the line was found
+     */
+    public boolean lineStartingWith(String prefix) {
+        if (str == null) {
+            return false;
+        }
+        int start = 0;
+        int len = str.length();
+        while (start < len) {
+            int end = str.indexOf('\n', start);
+            if (end < 0) {
+                end = len;
+            }
+            pos = start;
+            lineEnd = end;
+            trim();
+            if (skip(prefix)) {
+                return true;
+            }
+            start = end + 1;
+        }
+        return false;
+    }
+
+    private void trim() {
+        while (pos < lineEnd && str.charAt(pos) <= ' ') {
+            pos++;
+        }
+        while (lineEnd > pos && str.charAt(lineEnd - 1) <= ' ') {
+            lineEnd--;
+        }
+    }
+
+    /**
+     * Skip a prefix (and the spaces following it) if it is at the cursor.
+     *
+     * @param prefix Prefix to skip
+     * @return true if the prefix was found
+     */
+    public boolean skip(String prefix) {
+        int l = prefix.length();
+        if (lineEnd - pos < l || !str.regionMatches(false, pos, prefix, 0, l)) {
+            return false;
+        }
+        pos += l;
+        skipSpaces();
+        return true;
+    }
+
+    /**
+     * Move the cursor after the next occurrence of a char in the line.
+     *
+     * @param c Char to look for
+     * @return true if the char was found
+     */
+    public boolean skipTo(char c) {
+        for (int i = pos; i < lineEnd; i++) {
+            if (str.charAt(i) == c) {
+                pos = i + 1;
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Skip the spaces at the cursor.
+     */
+    public void skipSpaces() {
+        while (pos < lineEnd && str.charAt(pos) == ' ') {
+            pos++;
+        }
+    }
+
+    /**
+     * Skip comma separated fields.
+     *
+     * @param n Number of fields to skip
+     * @return true if the fields could be skipped
+     */
+    public boolean skipFields(int n) {
+        for (int i = 0; i < n; i++) {
+            if (!skipTo(',')) {
+                return false;
+            }
+        }
+        skipSpaces();
+        return true;
+    }
+
+    /**
+     * Check if the rest of the line equals a string.
+     *
+     * @param value String to compare
+     * @return true if it's equal
+     */
+    public boolean restEquals(String value) {
+        int l = value.length();
+        return lineEnd - pos == l && str.regionMatches(false, pos, value, 0, l);
+    }
+
+    /**
+     * Check if there is something left on the line.
+     *
+     * @return true if the line has more chars
+     */
+    public boolean hasMore() {
+        return pos < lineEnd;
+    }
+
+    /**
+     * Read an integer at the cursor and move after the following comma.
+     *
+     * @return Integer value
+     * @throws NumberFormatException if there is no integer at the cursor
+     */
+    public int readInt() {
+        skipSpaces();
+        boolean negative = false;
+        if (pos < lineEnd && str.charAt(pos) == '-') {
+            negative = true;
+            pos++;
+        }
+        int start = pos;
+        int value = 0;
+        while (pos < lineEnd) {
+            char c = str.charAt(pos);
+            if (c < '0' || c > '9') {
+                break;
+            }
+            value = value * 10 + (c - '0');
+            pos++;
+        }
+        if (pos == start) {
+            throw new NumberFormatException("No integer at " + pos);
+        }
+        endField();
+        return negative ? -value : value;
+    }
+
+    /**
+     * Read a field at the cursor and move after the following comma.
+     *
+     * The surrounding quotes of the field are removed.
+     *
+     * @return Field value
+     */
+    public String readField() {
+        skipSpaces();
+        int start = pos, end;
+        if (pos < lineEnd && str.charAt(pos) == '"') {
+            start = ++pos;
+            while (pos < lineEnd && str.charAt(pos) != '"') {
+                pos++;
+            }
+            end = pos;
+        } else {
+            while (pos < lineEnd && str.charAt(pos) != ',') {
+                pos++;
+            }
+            end = pos;
+            while (end > start && str.charAt(end - 1) == ' ') {
+                end--;
+            }
+        }
+        endField();
+        return str.substring(start, end);
+    }
+
+    /**
+     * Count the remaining comma separated fields of the line.
+     *
+     * @return Number of fields
+     */
+    public int countFields() {
+        if (pos >= lineEnd) {
+            return 0;
+        }
+        int n = 1;
+        for (int i = pos; i < lineEnd; i++) {
+            if (str.charAt(i) == ',') {
+                n++;
+            }
+        }
+        return n;
+    }
+
+    /**
+     * Read the rest of the line.
+     *
+     * @return Rest of the line
+     */
+    public String readRest() {
+        String value = str.substring(pos, lineEnd);
+        pos = lineEnd;
+        return value;
+    }
+
+    private void endField() {
+        while (pos < lineEnd && str.charAt(pos) != ',') {
+            pos++;
+        }
+        if (pos < lineEnd) {
+            pos++;
+        }
+    }
+}
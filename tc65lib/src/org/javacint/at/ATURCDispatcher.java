@@ -0,0 +1,269 @@
+package org.javacint.at;
+
+//#if sdkns == "siemens"
+import com.siemens.icm.io.*;
+//#elif sdkns == "cinterion"
+//# import com.cinterion.io.*;
+//#endif
+import org.javacint.logging.Logger;
+
+/**
+ * URC dispatcher.
+ *
+ * URCs are queued in a fixed size ring buffer and delivered to their listeners
+ * by a dedicated thread, so that the URC thread of the SDK is never blocked
+ * and no object is allocated per URC.<br />
+ * The queued URCs are taken by batches: the lock is only taken once for a
+ * whole burst of URCs.<br />
+ * When the buffer is full, either the oldest queued URC or the new one is
+ * dropped (see setPolicy). Dropped URCs are counted, only the first one of
+ * each overflow is logged.
+ */
+public final class ATURCDispatcher implements Runnable {
+
+    /**
+     * Drop the oldest queued URC to make room for the new one
+     */
+    public static final int POLICY_DROP_OLDEST = 0;
+    /**
+     * Drop the new URC
+     */
+    public static final int POLICY_DROP_NEWEST = 1;
+    private static final int DEFAULT_CAPACITY = 32;
+    private static final int BATCH_SIZE = 8;
+    private static final boolean LOG = false;
+    private static ATURCDispatcher instance;
+    private final String[] urcs;
+    private final ATCommandListener[] targets;
+    private final long[] times;
+    private final String[] batchUrcs = new String[BATCH_SIZE];
+    private final ATCommandListener[] batchTargets = new ATCommandListener[BATCH_SIZE];
+    private final long[] batchTimes = new long[BATCH_SIZE];
+    private long queueTime;
+    private final String name;
+    private int policy;
+    private int head, count;
+    private Thread thread;
+    private boolean overflow;
+    private int nbQueued, nbDelivered, nbDropped, nbBatches, nbErrors, maxQueued;
+
+    /**
+     * Get the default dispatcher.
+     *
+     * @return Dispatcher shared by the ATURCQueueHandler instances
+     */
+    public static synchronized ATURCDispatcher getDefault() {
+        if (instance == null) {
+            instance = new ATURCDispatcher("urc", DEFAULT_CAPACITY, POLICY_DROP_OLDEST);
+        }
+        return instance;
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param name Name of the delivery thread
+     * @param capacity Maximum number of queued URCs
+     * @param policy POLICY_DROP_OLDEST or POLICY_DROP_NEWEST
+     */
+    public ATURCDispatcher(String name, int capacity, int policy) {
+        this.name = name;
+        this.urcs = new String[capacity];
+        this.targets = new ATCommandListener[capacity];
+        this.times = new long[capacity];
+        this.policy = policy;
+    }
+
+    /**
+     * Define what to do when the buffer is full.
+     *
+     * @param policy POLICY_DROP_OLDEST or POLICY_DROP_NEWEST
+     */
+    public synchronized void setPolicy(int policy) {
+        this.policy = policy;
+    }
+
+    /**
+     * Queue a URC.
+     *
+     * @param target Listener to deliver the URC to
+     * @param urc URC
+     * @return false if the URC was dropped
+     */
+    public boolean queue(ATCommandListener target, String urc) {
+        String dropped = null;
+        boolean accepted = true;
+        synchronized (this) {
+            if (thread == null) {
+                thread = new Thread(this, name);
+                thread.start();
+            }
+            if (count == urcs.length) {
+                nbDropped++;
+                if (!overflow) {
+                    overflow = true;
+                    dropped = policy == POLICY_DROP_NEWEST ? urc : urcs[head];
+                }
+                if (policy == POLICY_DROP_NEWEST) {
+                    accepted = false;
+                } else {
+                    head = (head + 1) % urcs.length;
+                    count--;
+                }
+            }
+            if (accepted) {
+                int tail = (head + count) % urcs.length;
+                urcs[tail] = urc;
+                targets[tail] = target;
+                times[tail] = System.currentTimeMillis();
+                count++;
+                nbQueued++;
+                if (count > maxQueued) {
+                    maxQueued = count;
+                }
+                notify();
+            }
+        }
+        if (dropped != null && Logger.BUILD_WARNING) {
+            Logger.log(this + ": dropped \"" + dropped + "\"");
+        }
+        return accepted;
+    }
+
+    public void run() {
+        while (true) {
+            int n;
+            synchronized (this) {
+                while (count == 0) {
+                    try {
+                        wait();
+                    } catch (InterruptedException ex) {
+                        if (Logger.BUILD_CRITICAL) {
+                            Logger.log(this, ex, 142);
+                        }
+                    }
+                }
+                n = count < BATCH_SIZE ? count : BATCH_SIZE;
+                for (int i = 0; i < n; i++) {
+                    batchUrcs[i] = urcs[head];
+                    batchTargets[i] = targets[head];
+                    batchTimes[i] = times[head];
+                    urcs[head] = null;
+                    targets[head] = null;
+                    head = (head + 1) % urcs.length;
+                }
+                count -= n;
+                if (count == 0) {
+                    overflow = false;
+                }
+                nbBatches++;
+            }
+            for (int i = 0; i < n; i++) {
+                queueTime = batchTimes[i];
+                deliver(batchTargets[i], batchUrcs[i]);
+                batchUrcs[i] = null;
+                batchTargets[i] = null;
+            }
+        }
+    }
+
+    private void deliver(ATCommandListener target, String urc) {
+        if (LOG && Logger.BUILD_DEBUG) {
+            Logger.log(this + ": " + target + ".ATEvent(\"" + urc + "\")");
+        }
+        try {
+            target.ATEvent(urc);
+            synchronized (this) {
+                nbDelivered++;
+            }
+        } catch (Throwable ex) {
+            synchronized (this) {
+                nbErrors++;
+            }
+            if (Logger.BUILD_CRITICAL) {
+                Logger.log(this + ".deliver(\"" + urc + "\")", ex, true);
+            }
+        }
+    }
+
+    /**
+     * Get the time at which the URC being delivered was queued.
+     *
+     * Only meaningful from the listener receiving the URC.
+     *
+     * @return Time (ms)
+     */
+    public long getQueueTime() {
+        return queueTime;
+    }
+
+    /**
+     * Check if a URC starts with a prefix.
+     *
+     * The line delimiters and spaces surrounding the URC are ignored.
+     *
+     * @param urc URC
+     * @param prefix Prefix (like "+CMTI:")
+     * @return true if it matches
+     */
+    public static boolean startsWith(String urc, String prefix) {
+        int start = 0, len = urc.length();
+        while (start < len && urc.charAt(start) <= ' ') {
+            start++;
+        }
+        return urc.regionMatches(false, start, prefix, 0, prefix.length());
+    }
+
+    public synchronized int getNbQueued() {
+        return nbQueued;
+    }
+
+    public synchronized int getNbDelivered() {
+        return nbDelivered;
+    }
+
+    public synchronized int getNbDropped() {
+        return nbDropped;
+    }
+
+    public synchronized int getNbErrors() {
+        return nbErrors;
+    }
+
+    public synchronized int getNbBatches() {
+        return nbBatches;
+    }
+
+    /**
+     * Get the maximum number of URCs that were queued at the same time.
+     *
+     * @return Maximum queue size
+     */
+    public synchronized int getMaxQueued() {
+        return maxQueued;
+    }
+
+    /**
+     * Get the number of URCs waiting for delivery.
+     *
+     * @return Queue size
+     */
+    public synchronized int size() {
+        return count;
+    }
+
+    /**
+     * Reset the counters.
+     */
+    public synchronized void resetCounters() {
+        nbQueued = nbDelivered = nbDropped = nbErrors = nbBatches = 0;
+        maxQueued = count;
+    }
+
+    public synchronized String toString() {
+        return "URCDispatcher{queued=" + count + "/" + urcs.length
+                + ",total=" + nbQueued + ",delivered=" + nbDelivered
+                + ",dropped=" + nbDropped + ",errors=" + nbErrors
+                + ",batches=" + nbBatches + ",max=" + maxQueued + "}";
+    }
+}
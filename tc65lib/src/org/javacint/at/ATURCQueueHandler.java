@@ -8,16 +8,21 @@ import com.siemens.icm.io.*;
 import java.util.Timer;
 import java.util.TimerTask;
 import org.javacint.logging.Logger;
-import org.javacint.task.Timers;
 
 /**
  * AT URC Queue handler.
  * This class queues URC events and send them to an other ATCommandListener.
+ *
+ * The URCs are queued on an ATURCDispatcher (the default one unless
+ * specified). When prefixes are given, only the URCs starting with one of them
+ * are queued, the other ones are ignored right away.
  */
 public class ATURCQueueHandler implements ATCommandListener {
 
     private final ATCommandListener listener;
     private final Timer timer;
+    private final ATURCDispatcher dispatcher;
+    private final String[] prefixes;
     private static final boolean LOG = true;
 
     private class URCTask extends TimerTask {
@@ -40,19 +45,74 @@ public class ATURCQueueHandler implements ATCommandListener {
     }
 
     public ATURCQueueHandler(ATCommandListener listener) {
-        this(listener, Timers.getSlow());
+        this(listener, ATURCDispatcher.getDefault(), null);
     }
 
+    /**
+     * Constructor.
+     *
+     * @param listener Listener
+     * @param prefixes Prefixes of the URCs to forward (like "+CMTI:")
+     */
+    public ATURCQueueHandler(ATCommandListener listener, String[] prefixes) {
+        this(listener, ATURCDispatcher.getDefault(), prefixes);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param listener Listener
+     * @param dispatcher Dispatcher delivering the URCs
+     * @param prefixes Prefixes of the URCs to forward, null for all of them
+     */
+    public ATURCQueueHandler(ATCommandListener listener, ATURCDispatcher dispatcher, String[] prefixes) {
+        this.listener = listener;
+        this.timer = null;
+        this.dispatcher = dispatcher;
+        this.prefixes = prefixes;
+    }
+
+    /**
+     * Constructor delivering the URCs with a timer (one task per URC).
+     *
+     * @param listener Listener
+     * @param timer Timer
+     * @deprecated A timer task is created for each URC and a burst of URCs
+     * delays all the other tasks of the timer, use
+     * {@link #ATURCQueueHandler(ATCommandListener, ATURCDispatcher, String[])}
+     * instead.
+     */
     public ATURCQueueHandler(ATCommandListener listener, Timer timer) {
         this.listener = listener;
         this.timer = timer;
+        this.dispatcher = null;
+        this.prefixes = null;
+    }
+
+    private boolean accepts(String urc) {
+        if (prefixes == null) {
+            return true;
+        }
+        for (int i = 0; i < prefixes.length; i++) {
+            if (ATURCDispatcher.startsWith(urc, prefixes[i])) {
+                return true;
+            }
+        }
+        return false;
     }
 
     public void ATEvent(String urc) {
+        if (!accepts(urc)) {
+            return;
+        }
         if (LOG && Logger.BUILD_DEBUG) {
             Logger.log("ATURCQueueHandler.ATEvent(\"" + urc + "\");");
         }
-        timer.schedule(new URCTask(urc), 0);
+        if (dispatcher != null) {
+            dispatcher.queue(listener, urc);
+        } else {
+            timer.schedule(new URCTask(urc), 0);
+        }
     }
 
     public void RINGChanged(boolean bln) {
@@ -0,0 +1,278 @@
+package org.javacint.at;
+
+//#if sdkns == "siemens"
+import com.siemens.icm.io.*;
+//#elif sdkns == "cinterion"
+//# import com.cinterion.io.*;
+//#endif
+import java.util.Enumeration;
+import java.util.Hashtable;
+import org.javacint.logging.Logger;
+
+/**
+ * URC router.
+ *
+ * Listeners are registered for URC names ("+CMTI", "^SYSSTART", "RING", ...).
+ * The name of each received URC (what's before the ':', or the whole line) is
+ * looked up in a table and the URC is only queued, on an ATURCDispatcher, for
+ * the route of this name. The other listeners never see it.<br />
+ * Each route counts its URCs and their delivery latency: the time between the
+ * reception of the URC and the end of its handling by the route's listeners.
+ */
+public final class ATURCRouter implements ATCommandListener {
+
+    private static final boolean LOG = false;
+    private final Hashtable routes = new Hashtable();
+    private final ATURCDispatcher dispatcher;
+    private int nbRouted, nbUnrouted;
+
+    /**
+     * Route of a URC name.
+     */
+    private final class Route implements ATCommandListener {
+
+        private final String name;
+        private ATCommandListener[] listeners = new ATCommandListener[0];
+        private int nbDelivered;
+        private long totalLatency, maxLatency;
+
+        Route(String name) {
+            this.name = name;
+        }
+
+        public void ATEvent(String urc) {
+            ATCommandListener[] targets;
+            synchronized (this) {
+                targets = listeners;
+            }
+            for (int i = 0; i < targets.length; i++) {
+                try {
+                    targets[i].ATEvent(urc);
+                } catch (Throwable ex) {
+                    if (Logger.BUILD_CRITICAL) {
+                        Logger.log(this + ".ATEvent(\"" + urc + "\")", ex, true);
+                    }
+                }
+            }
+            long latency = System.currentTimeMillis() - dispatcher.getQueueTime();
+            synchronized (this) {
+                nbDelivered++;
+                totalLatency += latency;
+                if (latency > maxLatency) {
+                    maxLatency = latency;
+                }
+            }
+        }
+
+        public void RINGChanged(boolean bln) {
+        }
+
+        public void DCDChanged(boolean bln) {
+        }
+
+        public void DSRChanged(boolean bln) {
+        }
+
+        public void CONNChanged(boolean bln) {
+        }
+
+        public synchronized String toString() {
+            return name + "{listeners=" + listeners.length + ",delivered=" + nbDelivered
+                    + ",avg=" + (nbDelivered > 0 ? totalLatency / nbDelivered : 0)
+                    + "ms,max=" + maxLatency + "ms}";
+        }
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param dispatcher Dispatcher delivering the routed URCs
+     */
+    public ATURCRouter(ATURCDispatcher dispatcher) {
+        this.dispatcher = dispatcher;
+    }
+
+    /**
+     * Get the name of a URC.
+     *
+     * @param urc URC, possibly surrounded by line delimiters
+     * @return Name of the URC: "+CMTI" for "+CMTI: "SM",3", "RING" for "RING"
+     */
+    public static String nameOf(String urc) {
+        int len = urc.length(), start = 0;
+        while (start < len && urc.charAt(start) <= ' ') {
+            start++;
+        }
+        int end = start;
+        while (end < len) {
+            char c = urc.charAt(end);
+            if (c == ':' || c <= ' ') {
+                break;
+            }
+            end++;
+        }
+        return urc.substring(start, end);
+    }
+
+    private static String normalize(String name) {
+        return name.endsWith(":") ? name.substring(0, name.length() - 1) : name;
+    }
+
+    /**
+     * Add a listener of some URCs.
+     *
+     * @param names Names of the URCs ("+CMTI", "RING", ...)
+     * @param listener Listener
+     */
+    public void addListener(String[] names, ATCommandListener listener) {
+        for (int i = 0; i < names.length; i++) {
+            String name = normalize(names[i]);
+            Route route;
+            synchronized (routes) {
+                route = (Route) routes.get(name);
+                if (route == null) {
+                    route = new Route(name);
+                    routes.put(name, route);
+                }
+            }
+            synchronized (route) {
+                ATCommandListener[] l = new ATCommandListener[route.listeners.length + 1];
+                System.arraycopy(route.listeners, 0, l, 0, route.listeners.length);
+                l[route.listeners.length] = listener;
+                route.listeners = l;
+            }
+        }
+    }
+
+    /**
+     * Remove a listener of some URCs.
+     *
+     * @param names Names of the URCs
+     * @param listener Listener
+     */
+    public void removeListener(String[] names, ATCommandListener listener) {
+        for (int i = 0; i < names.length; i++) {
+            Route route = (Route) routes.get(normalize(names[i]));
+            if (route == null) {
+                continue;
+            }
+            synchronized (route) {
+                ATCommandListener[] old = route.listeners;
+                for (int j = 0; j < old.length; j++) {
+                    if (old[j] == listener) {
+                        ATCommandListener[] l = new ATCommandListener[old.length - 1];
+                        System.arraycopy(old, 0, l, 0, j);
+                        System.arraycopy(old, j + 1, l, j, old.length - j - 1);
+                        route.listeners = l;
+                        break;
+                    }
+                }
+            }
+        }
+    }
+
+    public void ATEvent(String urc) {
+        Route route = (Route) routes.get(nameOf(urc));
+        if (LOG && Logger.BUILD_DEBUG) {
+            Logger.log("ATURCRouter.ATEvent(\"" + urc + "\"): " + route);
+        }
+        synchronized (this) {
+            if (route == null) {
+                nbUnrouted++;
+                return;
+            }
+            nbRouted++;
+        }
+        dispatcher.queue(route, urc);
+    }
+
+    public void RINGChanged(boolean bln) {
+    }
+
+    public void DCDChanged(boolean bln) {
+    }
+
+    public void DSRChanged(boolean bln) {
+    }
+
+    public void CONNChanged(boolean bln) {
+    }
+
+    /**
+     * Get the number of URCs delivered on a route.
+     *
+     * @param name URC name
+     * @return Number of URCs
+     */
+    public int getNbDelivered(String name) {
+        Route route = getRoute(name);
+        if (route == null) {
+            return 0;
+        }
+        synchronized (route) {
+            return route.nbDelivered;
+        }
+    }
+
+    /**
+     * Get the average delivery latency of a route.
+     *
+     * @param name URC name
+     * @return Latency (ms)
+     */
+    public long getAverageLatency(String name) {
+        Route route = getRoute(name);
+        if (route == null) {
+            return 0;
+        }
+        synchronized (route) {
+            return route.nbDelivered > 0 ? route.totalLatency / route.nbDelivered : 0;
+        }
+    }
+
+    /**
+     * Get the maximum delivery latency of a route.
+     *
+     * @param name URC name
+     * @return Latency (ms)
+     */
+    public long getMaxLatency(String name) {
+        Route route = getRoute(name);
+        if (route == null) {
+            return 0;
+        }
+        synchronized (route) {
+            return route.maxLatency;
+        }
+    }
+
+    private Route getRoute(String name) {
+        return (Route) routes.get(normalize(name));
+    }
+
+    public synchronized int getNbRouted() {
+        return nbRouted;
+    }
+
+    /**
+     * Get the number of URCs that no listener registered for.
+     *
+     * @return Number of URCs
+     */
+    public synchronized int getNbUnrouted() {
+        return nbUnrouted;
+    }
+
+    public String toString() {
+        StringBuffer sb = new StringBuffer("URCRouter{routed=");
+        synchronized (this) {
+            sb.append(nbRouted).append(",unrouted=").append(nbUnrouted);
+        }
+        synchronized (routes) {
+            for (Enumeration en = routes.elements(); en.hasMoreElements();) {
+                sb.append(',').append(en.nextElement());
+            }
+        }
+        return sb.append('}').toString();
+    }
+}
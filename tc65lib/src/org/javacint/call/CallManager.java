@@ -18,13 +18,14 @@ import org.javacint.gsm.GSMEventConsumer;
  */
 public class CallManager implements ATCommandListener, ATCommandResponseListener {
 
+    private static final String[] URCS = {"^SLCC", "+CIEV", "RING"};
     CallConsumer callConsumer;
     String callingPhoneNumber;
     int nbRings;
     boolean callInAction;
 
     public void start() {
-        ATCommands.addListener(this);
+        ATCommands.addListener(URCS, this);
     }
 
     public void ATEvent(String event) {
@@ -110,7 +111,7 @@ public class CallManager implements ATCommandListener, ATCommandResponseListener
 
     public void answerCall() {
         try {
-            ATCommands.send("ATA");
+            ATCommands.send("ATA", ATCommands.PRIORITY_CRITICAL);
         } catch (Exception ex) {
             if (Logger.BUILD_CRITICAL) {
                 Logger.log("GSMManagement.answerCall", ex, true);
@@ -198,10 +198,22 @@ public class Bytes {
      * This used for debug logging
      */
     public static String byteArrayToPrettyString(byte[] data) {
+        return byteArrayToPrettyString(data, 0, data.length);
+    }
+
+    /**
+     * Convert a part of an array of bytes to a pretty string
+     *
+     * @param data Array of byte to show
+     * @param offset Offset of the first byte
+     * @param length Number of bytes
+     * @return pretty display of the bytes
+     */
+    public static String byteArrayToPrettyString(byte[] data, int offset, int length) {
         StringBuffer sb = new StringBuffer();
         sb.append("[ ");
-        sb.append(data.length);
-        for (int i = 0; i < data.length; i++) {
+        sb.append(length);
+        for (int i = offset; i < offset + length; i++) {
             sb.append(" 0x").
                     append(byteToHex(data[i]));
         }
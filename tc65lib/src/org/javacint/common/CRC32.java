@@ -30,8 +30,7 @@ package org.javacint.common;
 /**
  * Computes a CRC32 from one or more byte arrays.
  *
- * This class is currently *NOT* used anywhere in the tc65lib code. But it's
- * very frequently required. It will be removed by proguard.
+ * It is used by the SafeQueue records.
  *
  * @author Sun Microsystems
  */
@@ -121,7 +120,7 @@ public class CRC32 {
     }
 
     public void update(byte[] s, int off, int len) {
-        for (int i = off; i < len; i++) {
+        for (int i = off, end = off + len; i < end; i++) {
             crc32val = crc32_tab[(crc32val ^ s[i]) & 0xff] ^ (crc32val >>> 8);
         }
     }
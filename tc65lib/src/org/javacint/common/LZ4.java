@@ -0,0 +1,203 @@
+package org.javacint.common;
+
+/**
+ * LZ4 block compression.
+ *
+ * The blocks follow the LZ4 block format, they can be decompressed by any LZ4
+ * implementation (knowing the uncompressed size). The compression is the
+ * simple greedy one, with a small hash table (8 KB) that is kept by the
+ * instance.
+ */
+public class LZ4 {
+
+    private static final int MIN_MATCH = 4;
+    private static final int LAST_LITERALS = 5;
+    private static final int MF_LIMIT = 12;
+    private static final int MAX_OFFSET = 0xFFFF;
+    private static final int HASH_LOG = 11;
+    /**
+     * Positions (+1) of the last sequences of 4 bytes having each hash
+     */
+    private final int[] table = new int[1 << HASH_LOG];
+
+    /**
+     * Get the maximum size of a compressed block.
+     *
+     * @param length Size of the data
+     * @return Maximum size of the compressed data
+     */
+    public static int maxCompressedLength(int length) {
+        return length + length / 255 + 16;
+    }
+
+    private static int read32(byte[] b, int off) {
+        return (b[off] & 0xFF) | ((b[off + 1] & 0xFF) << 8) | ((b[off + 2] & 0xFF) << 16) | (b[off + 3] << 24);
+    }
+
+    private static int hash(int v) {
+        return (v * -1640531535) >>> (32 - HASH_LOG);
+    }
+
+    private static int writeLength(byte[] dst, int dp, int length) {
+        for (; length >= 255; length -= 255) {
+            dst[dp++] = (byte) 255;
+        }
+        dst[dp++] = (byte) length;
+        return dp;
+    }
+
+    /**
+     * Compress some data.
+     *
+     * @param src Data
+     * @param srcOff Offset of the data
+     * @param srcLen Size of the data
+     * @param dst Compressed data, maxCompressedLength(srcLen) bytes at least
+     * @param dstOff Offset of the compressed data
+     * @return Size of the compressed data
+     */
+    public int compress(byte[] src, int srcOff, int srcLen, byte[] dst, int dstOff) {
+        int srcEnd = srcOff + srcLen;
+        int anchor = srcOff, sp = srcOff, dp = dstOff;
+        if (srcLen > MF_LIMIT) {
+            for (int i = 0; i < table.length; i++) {
+                table[i] = 0;
+            }
+            // The last match must start 12 bytes before the end and stop 5 bytes before it
+            int mfLimit = srcEnd - MF_LIMIT;
+            int matchLimit = srcEnd - LAST_LITERALS;
+            while (sp < mfLimit) {
+                int h = hash(read32(src, sp));
+                int ref = table[h] - 1 + srcOff;
+                table[h] = sp - srcOff + 1;
+                if (ref < srcOff || sp - ref > MAX_OFFSET || read32(src, ref) != read32(src, sp)) {
+                    sp++;
+                    continue;
+                }
+                while (sp > anchor && ref > srcOff && src[sp - 1] == src[ref - 1]) {
+                    sp--;
+                    ref--;
+                }
+                int length = MIN_MATCH;
+                while (sp + length < matchLimit && src[sp + length] == src[ref + length]) {
+                    length++;
+                }
+                int literals = sp - anchor;
+                int token = dp++;
+                dst[token] = (byte) ((Math.min(literals, 15) << 4) | Math.min(length - MIN_MATCH, 15));
+                if (literals >= 15) {
+                    dp = writeLength(dst, dp, literals - 15);
+                }
+                System.arraycopy(src, anchor, dst, dp, literals);
+                dp += literals;
+                dst[dp++] = (byte) (sp - ref);
+                dst[dp++] = (byte) ((sp - ref) >> 8);
+                if (length - MIN_MATCH >= 15) {
+                    dp = writeLength(dst, dp, length - MIN_MATCH - 15);
+                }
+                sp += length;
+                anchor = sp;
+            }
+        }
+        int literals = srcEnd - anchor;
+        dst[dp++] = (byte) (Math.min(literals, 15) << 4);
+        if (literals >= 15) {
+            dp = writeLength(dst, dp, literals - 15);
+        }
+        System.arraycopy(src, anchor, dst, dp, literals);
+        dp += literals;
+        return dp - dstOff;
+    }
+
+    /**
+     * Compress some data.
+     *
+     * @param data Data
+     * @return Compressed data
+     */
+    public byte[] compress(byte[] data) {
+        byte[] buffer = new byte[maxCompressedLength(data.length)];
+        int length = compress(data, 0, data.length, buffer, 0);
+        byte[] compressed = new byte[length];
+        System.arraycopy(buffer, 0, compressed, 0, length);
+        return compressed;
+    }
+
+    /**
+     * Decompress some data.
+     *
+     * @param src Compressed data
+     * @param srcOff Offset of the compressed data
+     * @param srcLen Size of the compressed data
+     * @param dst Data
+     * @param dstOff Offset of the data
+     * @param dstLen Size of the data
+     * @return Size of the data
+     * @throws IllegalArgumentException If the compressed data is malformed
+     */
+    public static int decompress(byte[] src, int srcOff, int srcLen, byte[] dst, int dstOff, int dstLen) {
+        int sp = srcOff, srcEnd = srcOff + srcLen;
+        int dp = dstOff, dstEnd = dstOff + dstLen;
+        try {
+            while (true) {
+                int token = src[sp++] & 0xFF;
+                int literals = token >>> 4;
+                if (literals == 15) {
+                    int b;
+                    do {
+                        b = src[sp++] & 0xFF;
+                        literals += b;
+                    } while (b == 255);
+                }
+                if (sp + literals > srcEnd || dp + literals > dstEnd) {
+                    throw new IllegalArgumentException("Literals out of bounds");
+                }
+                System.arraycopy(src, sp, dst, dp, literals);
+                sp += literals;
+                dp += literals;
+                if (sp >= srcEnd) {
+                    return dp - dstOff;
+                }
+                int ref = dp - ((src[sp] & 0xFF) | ((src[sp + 1] & 0xFF) << 8));
+                sp += 2;
+                if (ref < dstOff || ref == dp) {
+                    throw new IllegalArgumentException("Offset out of bounds");
+                }
+                int length = token & 0x0F;
+                if (length == 15) {
+                    int b;
+                    do {
+                        b = src[sp++] & 0xFF;
+                        length += b;
+                    } while (b == 255);
+                }
+                length += MIN_MATCH;
+                if (dp + length > dstEnd) {
+                    throw new IllegalArgumentException("Match out of bounds");
+                }
+                // The match can overlap what it produces
+                while (length-- > 0) {
+                    dst[dp++] = dst[ref++];
+                }
+            }
+        } catch (ArrayIndexOutOfBoundsException ex) {
+            throw new IllegalArgumentException("Truncated block");
+        }
+    }
+
+    /**
+     * Decompress some data.
+     *
+     * @param data Compressed data
+     * @param length Size of the data
+     * @return Data
+     * @throws IllegalArgumentException If the compressed data is malformed
+     */
+    public static byte[] decompress(byte[] data, int length) {
+        byte[] decompressed = new byte[length];
+        if (decompress(data, 0, data.length, decompressed, 0, length) != length) {
+            throw new IllegalArgumentException("Decompressed size mismatch");
+        }
+        return decompressed;
+    }
+}
@@ -0,0 +1,501 @@
+package org.javacint.common.safequeue;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Hashtable;
+import org.javacint.common.CRC32;
+import org.javacint.common.LZ4;
+import org.javacint.logging.Logger;
+
+/**
+ * Binary records of the segments.
+ *
+ * Each record is: kind (1 byte), payload length (2 bytes), channel id (1
+ * byte), payload, CRC32 of all the previous bytes (4 bytes).<br />
+ * Channel names are only written once per segment, in a channel record that
+ * associates an id to the name. An id can be redefined later in the same
+ * segment (after a restart for instance).<br />
+ * A record with a priority other than the normal one or an expiry time is
+ * preceded by a meta record holding them.<br />
+ * The records of a flush can be compressed in one compressed record holding
+ * their size and their LZ4 block. A read position can't be inside it.<br />
+ * Each flush ends with a commit record holding the size of the segment after
+ * it. What follows the last commit record was torn by a power loss and is
+ * truncated when the queue is opened.<br />
+ * An instance is used either to encode (in a reused buffer) or to decode
+ * records.
+ */
+final class RecordCodec {
+
+    static final int KIND_LINE = 'L';
+    static final int KIND_DATA = 'D';
+    static final int KIND_ARRAY = 'A';
+    static final int KIND_CHANNEL = 'C';
+    static final int KIND_COMMIT = 'K';
+    static final int KIND_META = 'M';
+    static final int KIND_COMPRESSED = 'Z';
+    static final int HEADER_SIZE = 4;
+    static final int CRC_SIZE = 4;
+    static final int MAX_PAYLOAD = 0xFFFF;
+    static final int COMMIT_SIZE = HEADER_SIZE + 4 + CRC_SIZE;
+    private final CRC32 crc = new CRC32();
+    /**
+     * Encoding: channel name to id. Decoding: channel id to name.
+     */
+    private final Hashtable channels = new Hashtable();
+    private int nextChannel;
+    // Encoding
+    byte[] buf;
+    int len;
+    private LZ4 lz4;
+    private byte[] compressed;
+    // Decoding
+    private final byte[] header = new byte[HEADER_SIZE];
+    private byte[] payload = new byte[64];
+    private int recordSize, recordChannel;
+    /**
+     * Decoding: offset following the last record read
+     */
+    long position;
+    /**
+     * Decoding: priority and expiry of the next record
+     */
+    private int priority = SafeQueueRecord.PRIORITY_NORMAL;
+    private long expiry;
+    /**
+     * Decoding: records of the compressed record being read, and the offset
+     * following it
+     */
+    private DataInputStream block;
+    private byte[] blockBuf;
+    private long blockEnd;
+
+    RecordCodec(int capacity) {
+        buf = new byte[capacity];
+    }
+
+    /**
+     * Forget the channels (when starting a new segment).
+     */
+    void resetChannels() {
+        channels.clear();
+        nextChannel = 0;
+    }
+
+    void reset() {
+        len = 0;
+    }
+
+    private void ensure(int n) {
+        if (len + n > buf.length) {
+            byte[] b = new byte[Math.max(len + n, buf.length * 2)];
+            System.arraycopy(buf, 0, b, 0, len);
+            buf = b;
+        }
+    }
+
+    private void put8(int v) {
+        buf[len++] = (byte) v;
+    }
+
+    private void put16(int v) {
+        buf[len++] = (byte) (v >> 8);
+        buf[len++] = (byte) v;
+    }
+
+    private void put32(int v) {
+        buf[len++] = (byte) (v >> 24);
+        buf[len++] = (byte) (v >> 16);
+        buf[len++] = (byte) (v >> 8);
+        buf[len++] = (byte) v;
+    }
+
+    /**
+     * Start a record.
+     *
+     * @return Position of the record
+     */
+    private int begin(int kind, int channel, int size) {
+        if (size > MAX_PAYLOAD) {
+            throw new IllegalArgumentException("Record too big: " + size);
+        }
+        ensure(HEADER_SIZE + size + CRC_SIZE);
+        int start = len;
+        put8(kind);
+        put16(size);
+        put8(channel);
+        return start;
+    }
+
+    private void end(int start) {
+        crc.reset();
+        crc.update(buf, start, len - start);
+        put32(crc.value());
+    }
+
+    /**
+     * Get the payload size of an element.
+     *
+     * @param element Line (String) or SafeQueueRecord
+     * @return Size of the payload
+     */
+    static int payloadSize(Object element) {
+        if (element instanceof String) {
+            return ((String) element).getBytes().length;
+        }
+        SafeQueueRecord r = (SafeQueueRecord) element;
+        if (r.isLine()) {
+            return payloadSize(r.line);
+        }
+        if (!r.array) {
+            return r.data[0].length;
+        }
+        int size = 1;
+        for (int i = 0; i < r.data.length; i++) {
+            size += 2 + r.data[i].length;
+        }
+        return size;
+    }
+
+    /**
+     * Check that a record can be encoded.
+     *
+     * @param r Record
+     * @throws IllegalArgumentException If it's too big
+     */
+    static void check(SafeQueueRecord r) {
+        if (r.array && r.data.length > 0xFF) {
+            throw new IllegalArgumentException("Too many elements: " + r.data.length);
+        }
+        int size = payloadSize(r);
+        if (size > MAX_PAYLOAD) {
+            throw new IllegalArgumentException("Record too big: " + size);
+        }
+    }
+
+    private int channelId(String name) {
+        Integer id = (Integer) channels.get(name);
+        if (id == null) {
+            if (nextChannel > 0xFF) {
+                // We restart the numbering, ids are redefined
+                resetChannels();
+            }
+            id = new Integer(nextChannel++);
+            channels.put(name, id);
+            byte[] b = name.getBytes();
+            int start = begin(KIND_CHANNEL, id.intValue(), b.length);
+            System.arraycopy(b, 0, buf, len, b.length);
+            len += b.length;
+            end(start);
+        }
+        return id.intValue();
+    }
+
+    /**
+     * Encode an element of the memory queue.
+     *
+     * @param element Line (String) or SafeQueueRecord
+     */
+    void encode(Object element) {
+        if (element instanceof String) {
+            byte[] b = ((String) element).getBytes();
+            int start = begin(KIND_LINE, 0, b.length);
+            System.arraycopy(b, 0, buf, len, b.length);
+            len += b.length;
+            end(start);
+            return;
+        }
+        SafeQueueRecord r = (SafeQueueRecord) element;
+        int channel = r.isLine() ? 0 : channelId(r.channel);
+        if (r.priority != SafeQueueRecord.PRIORITY_NORMAL || r.expiry != 0) {
+            int start = begin(KIND_META, 0, 5);
+            put8(r.priority);
+            put32((int) r.expiry);
+            end(start);
+        }
+        if (r.isLine()) {
+            encode(r.line);
+            return;
+        }
+        if (!r.array) {
+            byte[] b = r.data[0];
+            int start = begin(KIND_DATA, channel, b.length);
+            System.arraycopy(b, 0, buf, len, b.length);
+            len += b.length;
+            end(start);
+        } else {
+            int start = begin(KIND_ARRAY, channel, payloadSize(r));
+            put8(r.data.length);
+            for (int i = 0; i < r.data.length; i++) {
+                put16(r.data[i].length);
+                System.arraycopy(r.data[i], 0, buf, len, r.data[i].length);
+                len += r.data[i].length;
+            }
+            end(start);
+        }
+    }
+
+    /**
+     * Compress the records encoded since a position of the buffer in one
+     * record.
+     *
+     * Nothing is done if it doesn't make them smaller.
+     *
+     * @param start Position of the first record
+     */
+    void compress(int start) {
+        int size = len - start;
+        if (lz4 == null) {
+            lz4 = new LZ4();
+        }
+        int max = LZ4.maxCompressedLength(size);
+        if (compressed == null || compressed.length < max) {
+            compressed = new byte[max];
+        }
+        int n = lz4.compress(buf, start, size, compressed, 0);
+        if (4 + n > MAX_PAYLOAD || HEADER_SIZE + 4 + n + CRC_SIZE >= size) {
+            return;
+        }
+        len = start;
+        int s = begin(KIND_COMPRESSED, 0, 4 + n);
+        put32(size);
+        System.arraycopy(compressed, 0, buf, len, n);
+        len += n;
+        end(s);
+    }
+
+    /**
+     * End a flush.
+     *
+     * @param offset Size of the segment before the flush
+     */
+    void commit(long offset) {
+        int start = begin(KIND_COMMIT, 0, 4);
+        put32((int) (offset + start + COMMIT_SIZE));
+        end(start);
+    }
+
+    /**
+     * Read the next record in the header and payload buffers.
+     *
+     * @param dis Segment stream
+     * @param log Log the torn and corrupted records
+     * @return Kind of the record, or -1 at the end of the segment or on a
+     * corrupted record
+     */
+    private int next(DataInputStream dis, boolean log) throws IOException {
+        if (block != null && block.available() == 0) {
+            endBlock();
+        }
+        DataInputStream in = block != null ? block : dis;
+        int kind = in.read();
+        if (kind < 0) {
+            return -1;
+        }
+        int value;
+        try {
+            header[0] = (byte) kind;
+            in.readFully(header, 1, HEADER_SIZE - 1);
+            recordSize = ((header[1] & 0xFF) << 8) | (header[2] & 0xFF);
+            recordChannel = header[3] & 0xFF;
+            if (payload.length < recordSize) {
+                payload = new byte[recordSize];
+            }
+            in.readFully(payload, 0, recordSize);
+            value = in.readInt();
+        } catch (EOFException ex) {
+            if (Logger.BUILD_WARNING && log) {
+                Logger.log("RecordCodec.next: Truncated record");
+            }
+            return -1;
+        }
+        crc.reset();
+        crc.update(header, 0, HEADER_SIZE);
+        crc.update(payload, 0, recordSize);
+        if (crc.value() != value) {
+            if (Logger.BUILD_WARNING && log) {
+                Logger.log("RecordCodec.next: Corrupted record");
+            }
+            return -1;
+        }
+        if (block == null) {
+            position += HEADER_SIZE + recordSize + CRC_SIZE;
+        } else if (block.available() == 0) {
+            // The position follows the last record of the block
+            endBlock();
+        }
+        return kind;
+    }
+
+    /**
+     * Start reading the records of the compressed record just read.
+     *
+     * The position stays before it until its last record is read.
+     */
+    private void openBlock() throws IOException {
+        int size = readInt(payload, 0);
+        if (blockBuf == null || blockBuf.length < size) {
+            blockBuf = new byte[size];
+        }
+        try {
+            if (LZ4.decompress(payload, 4, recordSize - 4, blockBuf, 0, size) != size) {
+                throw new IOException("Compressed record size mismatch");
+            }
+        } catch (IllegalArgumentException ex) {
+            throw new IOException("Corrupted compressed record: " + ex.getMessage());
+        }
+        blockEnd = position;
+        position -= HEADER_SIZE + recordSize + CRC_SIZE;
+        block = new DataInputStream(new ByteArrayInputStream(blockBuf, 0, size));
+    }
+
+    private void endBlock() {
+        block = null;
+        position = blockEnd;
+    }
+
+    /**
+     * Check if the last record read is in a compressed record that wasn't
+     * entirely read.
+     *
+     * @return true if the position is still before the compressed record
+     */
+    boolean inBlock() {
+        return block != null;
+    }
+
+    /**
+     * Skip the records preceding an offset, keeping their channels.
+     *
+     * @param dis Segment stream
+     * @param offset Offset of a record
+     */
+    void skipTo(DataInputStream dis, long offset) throws IOException {
+        int kind;
+        while (position < offset && (kind = next(dis, true)) >= 0) {
+            if (kind == KIND_CHANNEL) {
+                defineChannel();
+            } else if (kind == KIND_COMPRESSED) {
+                openBlock();
+            }
+        }
+        priority = SafeQueueRecord.PRIORITY_NORMAL;
+        expiry = 0;
+    }
+
+    private SafeQueueRecord withMeta(SafeQueueRecord r) {
+        r.priority = priority;
+        r.expiry = expiry;
+        priority = SafeQueueRecord.PRIORITY_NORMAL;
+        expiry = 0;
+        return r;
+    }
+
+    private void defineChannel() {
+        channels.put(new Integer(recordChannel), new String(payload, 0, recordSize));
+    }
+
+    /**
+     * Check if a segment ends with a valid commit record.
+     *
+     * Only the last bytes of the segment are read.
+     *
+     * @param is Segment stream
+     * @param length Size of the segment
+     * @return true if the last flush is complete
+     */
+    boolean isCommitted(InputStream is, long length) throws IOException {
+        if (length < COMMIT_SIZE) {
+            return length == 0;
+        }
+        long skip = length - COMMIT_SIZE;
+        while (skip > 0) {
+            long n = is.skip(skip);
+            if (n <= 0) {
+                return false;
+            }
+            skip -= n;
+        }
+        DataInputStream dis = new DataInputStream(is);
+        return next(dis, false) == KIND_COMMIT && recordSize == 4 && readInt(payload, 0) == length;
+    }
+
+    /**
+     * Get the size of the committed part of a segment.
+     *
+     * @param dis Segment stream
+     * @return Offset following the last valid commit record
+     */
+    long committedLength(DataInputStream dis) throws IOException {
+        long committed = position = 0;
+        int kind;
+        while ((kind = next(dis, false)) >= 0) {
+            if (kind == KIND_COMMIT) {
+                committed = position;
+            }
+        }
+        return committed;
+    }
+
+    private static int readInt(byte[] b, int off) {
+        return ((b[off] & 0xFF) << 24) | ((b[off + 1] & 0xFF) << 16) | ((b[off + 2] & 0xFF) << 8) | (b[off + 3] & 0xFF);
+    }
+
+    /**
+     * Decode the next record of a segment.
+     *
+     * @param dis Segment stream
+     * @return Record, or null at the end of the segment or on a corrupted
+     * record
+     */
+    SafeQueueRecord decode(DataInputStream dis) throws IOException {
+        while (true) {
+            int kind = next(dis, true);
+            if (kind < 0) {
+                return null;
+            }
+            switch (kind) {
+                case KIND_LINE:
+                    return withMeta(new SafeQueueRecord(new String(payload, 0, recordSize)));
+                case KIND_CHANNEL:
+                    defineChannel();
+                    break;
+                case KIND_COMMIT:
+                    break;
+                case KIND_COMPRESSED:
+                    openBlock();
+                    break;
+                case KIND_META:
+                    priority = payload[0];
+                    expiry = readInt(payload, 1) & 0xFFFFFFFFL;
+                    break;
+                case KIND_DATA: {
+                    byte[] data = new byte[recordSize];
+                    System.arraycopy(payload, 0, data, 0, recordSize);
+                    return withMeta(new SafeQueueRecord(channelName(recordChannel), data));
+                }
+                case KIND_ARRAY: {
+                    byte[][] data = new byte[payload[0] & 0xFF][];
+                    for (int i = 0, p = 1; i < data.length; i++) {
+                        int l = ((payload[p] & 0xFF) << 8) | (payload[p + 1] & 0xFF);
+                        data[i] = new byte[l];
+                        System.arraycopy(payload, p + 2, data[i], 0, l);
+                        p += 2 + l;
+                    }
+                    return withMeta(new SafeQueueRecord(channelName(recordChannel), data));
+                }
+                default:
+                    // Unknown kinds are skipped, to allow new ones later
+                    break;
+            }
+        }
+    }
+
+    private String channelName(int id) {
+        String name = (String) channels.get(new Integer(id));
+        return name != null ? name : "#" + id;
+    }
+}
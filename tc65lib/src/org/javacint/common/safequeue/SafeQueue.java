@@ -5,14 +5,54 @@ import com.siemens.icm.io.file.FileConnection;
 //# import com.cinterion.io.file.FileConnection;
 //#endif
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
-import java.io.OutputStreamWriter;
 import java.util.Enumeration;
 import java.util.Vector;
 import javax.microedition.io.Connector;
 import org.javacint.logging.Logger;
 
 /**
+ * Queue of lines and records safely stored in flash files.
+ *
+ * Lines (addLine) and records (addRecord) are first kept in memory and saved,
+ * by sets, in files when the memory queue is full or when saveMemoryInFile() is
+ * called. The sets of lines are then read (getFirstItemsSetWaiting) and deleted
+ * once handled (deleteFirstItemsListWaiting).<br />
+ * <br />
+ * Two storages are available:
+ * <ul>
+ * <li>Rotation (default): text files 0.log to n.log, deleting the first file
+ * renames all the other ones. Data records are written as Base64 lines.</li>
+ * <li>Segments (setSegmented, see SegmentStorage): monotonically numbered
+ * files that are never renamed, and a small index file holding the first and
+ * last segment numbers. Deleting the first file is one delete and one index
+ * update. The segments contain binary records (see RecordCodec), data is
+ * stored as it is. The records of each flush can be compressed
+ * (setCompression).</li>
+ * </ul>
+ * Writes torn by a power loss are removed when the queue is opened: the half
+ * written line of the last file in the rotation storage, and the records
+ * following the last commit record of the last segment.<br />
+ * The state of the directory (files and their sizes) is loaded once and then
+ * maintained in memory, a flush opens only the file it writes to.<br />
+ * <br />
+ * Records have a priority and can expire (SafeQueueRecord.setPriority). When
+ * the memory queue can't be saved, expired records and then the oldest record
+ * of the lowest priority are dropped to make room. When the segments are full,
+ * they are compacted oldest first: expired records are removed, then the low
+ * priority records, then the normal ones. High priority records are only
+ * removed when a segment contains nothing else. The segments are limited in
+ * size (files number times file size) rather than in number.<br />
+ * <br />
+ * By default, the producer adding the line that fills the memory queue saves
+ * it. With a flush thread (startFlushThread), the full memory queue is handed
+ * to the thread in a second buffer and the producers don't wait for the
+ * flash. When both buffers are full, a producer waits for the thread up to a
+ * maximum time and then drops a record.<br />
+ * <br />
+ * The metrics of the queue (getMetrics) are updated on each operation, they
+ * don't require to read the directory.
  *
  * @author Florent Clairambault / www.webingenia.com
  */
@@ -24,18 +64,103 @@ public class SafeQueue {
     private int maxFileNb = 20;
     private int maxMemoryQueueSize = 61;
     private boolean filesRotation = true;
+    /**
+     * Lines and records added, also the lock of the two buffers
+     */
     private final Vector memoryQueue = new Vector();
+    /**
+     * Lines and records being saved
+     */
+    private final Vector pending = new Vector();
+    private Thread flushThread;
+    /**
+     * The flush thread couldn't save the pending buffer, producers don't wait
+     * for it
+     */
+    private boolean flushFailed;
+    private int maxWait;
+    private static final int FLUSH_RETRY_DELAY = 10000;
     private static final boolean LOG = false;
+    /**
+     * Segments storage, null for the files rotation
+     */
+    private SegmentStorage segments;
+    private boolean compression;
+    /**
+     * Sizes of the files (rotation) or of the segments head to tail (segments),
+     * -1 for a missing file. Loaded once (loadState), then maintained on each
+     * flush and deletion. null when it has to be loaded.
+     */
+    private Vector sizes;
+    private long usedSize;
+    /**
+     * Size and content summary of a file, used to find the records to evict
+     */
+    static final class FileInfo {
+
+        int size;
+        /**
+         * The summary is known (the file was written or read since the
+         * state was loaded)
+         */
+        boolean known;
+        int minPriority = Integer.MAX_VALUE;
+        long minExpiry = Long.MAX_VALUE;
+        /**
+         * Time (seconds since 1970) of the first record, 0 if not known
+         */
+        long time;
+
+        FileInfo(int size) {
+            this.size = size;
+            known = size <= 0;
+        }
+
+        void add(Object element) {
+            if (priorityOf(element) < minPriority) {
+                minPriority = priorityOf(element);
+            }
+            if (element instanceof SafeQueueRecord) {
+                long expiry = ((SafeQueueRecord) element).expiry;
+                if (expiry != 0 && expiry < minExpiry) {
+                    minExpiry = expiry;
+                }
+            }
+        }
+
+        /**
+         * Check if the file might contain records to evict.
+         */
+        boolean hasCandidates(int level, long now) {
+            return size > 0 && (!known || minPriority <= level || minExpiry <= now);
+        }
+    }
+    /**
+     * Metrics, protected by the memory queue lock
+     */
+    private final SafeQueueMetrics metrics;
+    /**
+     * Time (seconds since 1970) of the first record of the memory queue, of
+     * the pending buffer and of the files, protected by the memory queue lock
+     */
+    private long memoryTime, pendingTime, filesTime;
+    /**
+     * Files (or segments) containing data
+     */
+    private int nbFiles;
 
     public SafeQueue(String name) {
         dirName = name;
+        metrics = new SafeQueueMetrics(name);
+        metrics.flashCapacity = (long) maxFileNb * maxFileSize;
     }
 
     public SafeQueue(String name, int memoryQueueSize, int fileNb, int fileSize) {
-        dirName = name;
+        this(name);
         maxMemoryQueueSize = memoryQueueSize;
         maxFileNb = fileNb;
         maxFileSize = fileSize;
+        metrics.flashCapacity = (long) maxFileNb * maxFileSize;
     }
 
     public boolean hasData() {
@@ -46,21 +171,375 @@ public class SafeQueue {
         filesRotation = fr;
     }
 
-    public synchronized void addLine(String data) {
+    /**
+     * Use the segments storage.
+     *
+     * The files of the rotation storage (0.log, 1.log...) are taken over as
+     * the first segments.
+     *
+     * @param s true for segments, false for the files rotation
+     */
+    public synchronized void setSegmented(boolean s) {
+        segments = s ? new SegmentStorage(this, dirName, maxFileNb, maxFileSize) : null;
+        if (segments != null) {
+            segments.compression = compression;
+        }
+        sizes = null;
+    }
+
+    /**
+     * Compress the records saved in the segments.
+     *
+     * The records of each flush are compressed together (LZ4). The readers
+     * decompress them, the segments can contain compressed and uncompressed
+     * records.
+     *
+     * @param c true to compress
+     */
+    public synchronized void setCompression(boolean c) {
+        compression = c;
+        if (segments != null) {
+            segments.compression = c;
+        }
+    }
+
+    /**
+     * Save the memory queue in a thread.
+     *
+     * @param maxWait Maximum time (ms) a producer waits for the thread when
+     * both buffers are full, before dropping a record
+     */
+    public void startFlushThread(int maxWait) {
+        synchronized (memoryQueue) {
+            this.maxWait = maxWait;
+            flushFailed = false;
+            if (flushThread != null) {
+                return;
+            }
+            flushThread = new Thread(new Runnable() {
+                public void run() {
+                    flushLoop();
+                }
+            }, "sq-" + dirName);
+            flushThread.start();
+        }
+    }
+
+    /**
+     * Stop the flush thread and save what's in memory.
+     */
+    public void stopFlushThread() {
+        Thread t;
+        synchronized (memoryQueue) {
+            t = flushThread;
+            flushThread = null;
+            memoryQueue.notifyAll();
+        }
+        if (t != null) {
+            try {
+                t.join();
+            } catch (InterruptedException ex) {
+                if (Logger.BUILD_CRITICAL) {
+                    Logger.log(this + ".stopFlushThread", ex);
+                }
+            }
+        }
+        saveMemoryInFile();
+    }
+
+    private void flushLoop() {
+        Thread current = Thread.currentThread();
+        try {
+            while (true) {
+                synchronized (memoryQueue) {
+                    while (flushThread == current && pending.isEmpty()) {
+                        memoryQueue.wait();
+                    }
+                    if (flushThread != current) {
+                        // What's left is saved by stopFlushThread
+                        return;
+                    }
+                }
+                boolean saved = savePendingOrRestore();
+                synchronized (memoryQueue) {
+                    flushFailed = !saved;
+                    memoryQueue.notifyAll();
+                    if (!saved && flushThread == current) {
+                        memoryQueue.wait(FLUSH_RETRY_DELAY);
+                        flushFailed = false;
+                        if (memoryQueue.size() >= maxMemoryQueueSize) {
+                            moveToPending();
+                        }
+                    }
+                }
+            }
+        } catch (InterruptedException ex) {
+            if (Logger.BUILD_CRITICAL) {
+                Logger.log(this + ".flushLoop", ex);
+            }
+        }
+    }
+
+    public void addLine(String data) {
         if (Logger.BUILD_DEBUG && LOG) {
             Logger.log(this + ".addLine( \"" + data + "\" );");
         }
+        addElement(data);
+    }
+
+    /**
+     * Add some data of a channel.
+     *
+     * @param channel Channel name
+     * @param data Data (65535 bytes at most)
+     */
+    public void addRecord(String channel, byte[] data) {
+        addRecord(new SafeQueueRecord(channel, data));
+    }
+
+    /**
+     * Add an array of data of a channel.
+     *
+     * @param channel Channel name
+     * @param data Data (255 elements and 65535 bytes at most)
+     */
+    public void addRecord(String channel, byte[][] data) {
+        addRecord(new SafeQueueRecord(channel, data));
+    }
+
+    /**
+     * Add some data of a channel with a priority.
+     *
+     * @param channel Channel name
+     * @param data Data (65535 bytes at most)
+     * @param priority Priority (SafeQueueRecord.PRIORITY_LOW to PRIORITY_HIGH)
+     * @param ttl Time to live in seconds, 0 if it doesn't expire
+     */
+    public void addRecord(String channel, byte[] data, int priority, int ttl) {
+        addRecord(new SafeQueueRecord(channel, data).setPriority(priority, ttl));
+    }
+
+    /**
+     * Add an array of data of a channel with a priority.
+     *
+     * @param channel Channel name
+     * @param data Data (255 elements and 65535 bytes at most)
+     * @param priority Priority (SafeQueueRecord.PRIORITY_LOW to PRIORITY_HIGH)
+     * @param ttl Time to live in seconds, 0 if it doesn't expire
+     */
+    public void addRecord(String channel, byte[][] data, int priority, int ttl) {
+        addRecord(new SafeQueueRecord(channel, data).setPriority(priority, ttl));
+    }
+
+    /**
+     * Add a record.
+     *
+     * @param record Record
+     * @throws IllegalArgumentException If the record is too big
+     */
+    public void addRecord(SafeQueueRecord record) {
+        if (Logger.BUILD_DEBUG && LOG) {
+            Logger.log(this + ".addRecord( " + record + " );");
+        }
+        RecordCodec.check(record);
+        addElement(record);
+    }
+
+    private void addElement(Object element) {
+        synchronized (memoryQueue) {
+            if (flushThread != null) {
+                addToBuffer(element);
+                return;
+            }
+        }
+        synchronized (this) {
+            boolean full;
+            synchronized (memoryQueue) {
+                addToBuffer(element);
+                full = memoryQueue.size() >= maxMemoryQueueSize;
+            }
+            if (full) {
+                saveMemoryInFile();
+            }
+        }
+    }
 
-        if (memoryQueue.size() < maxMemoryQueueSize) {
-            memoryQueue.addElement(data);
+    /**
+     * Add an element to the memory queue, with the memory queue lock.
+     *
+     * With the flush thread, the full memory queue is moved to the pending
+     * buffer. If it's still being saved, we wait for it up to maxWait.
+     */
+    private void addToBuffer(Object element) {
+        if (flushThread != null && !flushFailed && memoryQueue.size() >= maxMemoryQueueSize) {
+            long end = System.currentTimeMillis() + maxWait;
+            try {
+                for (long w = maxWait; !pending.isEmpty() && !flushFailed && w > 0; w = end - System.currentTimeMillis()) {
+                    memoryQueue.wait(w);
+                }
+            } catch (InterruptedException ex) {
+                if (Logger.BUILD_CRITICAL) {
+                    Logger.log(this + ".addToBuffer", ex);
+                }
+            }
+            moveToPending();
+        }
+        if (memoryQueue.size() < maxMemoryQueueSize || dropFromMemory(priorityOf(element))) {
+            if (memoryQueue.isEmpty()) {
+                memoryTime = System.currentTimeMillis() / 1000;
+            }
+            memoryQueue.addElement(element);
         } else {
+            metrics.dropped++;
             if (Logger.BUILD_WARNING) {
                 Logger.log(this + ".addLine: Already too much elements...");
             }
         }
+        if (flushThread != null && !flushFailed && memoryQueue.size() >= maxMemoryQueueSize) {
+            moveToPending();
+        }
+    }
 
-        if (memoryQueue.size() >= maxMemoryQueueSize) {
-            saveMemoryInFile();
+    /**
+     * Move the memory queue to the pending buffer if it's empty, with the
+     * memory queue lock.
+     */
+    private void moveToPending() {
+        if (!pending.isEmpty() || memoryQueue.isEmpty()) {
+            return;
+        }
+        for (int i = 0; i < memoryQueue.size(); i++) {
+            pending.addElement(memoryQueue.elementAt(i));
+        }
+        pendingTime = memoryTime;
+        memoryQueue.setSize(0);
+        memoryQueue.notifyAll();
+    }
+
+    /**
+     * Drop an element of the full memory queue to make room for a new one,
+     * with the memory queue lock.
+     *
+     * An expired element is dropped first, then the oldest element of the
+     * lowest priority if it isn't above a priority.
+     *
+     * @param priority Priority of the new element
+     * @return true if an element was dropped
+     */
+    private boolean dropFromMemory(int priority) {
+        long now = System.currentTimeMillis() / 1000;
+        int victim = -1, lowest = priority + 1;
+        for (int i = 0; i < memoryQueue.size(); i++) {
+            Object o = memoryQueue.elementAt(i);
+            if (o instanceof SafeQueueRecord && ((SafeQueueRecord) o).isExpired(now)) {
+                memoryQueue.removeElementAt(i);
+                metrics.expired++;
+                return true;
+            }
+            if (priorityOf(o) < lowest) {
+                lowest = priorityOf(o);
+                victim = i;
+            }
+        }
+        if (victim < 0) {
+            return false;
+        }
+        if (Logger.BUILD_DEBUG) {
+            Logger.log(this + ".dropFromMemory: Dropping " + memoryQueue.elementAt(victim));
+        }
+        memoryQueue.removeElementAt(victim);
+        metrics.dropped++;
+        return true;
+    }
+
+    private static int priorityOf(Object element) {
+        return element instanceof SafeQueueRecord ? ((SafeQueueRecord) element).priority : SafeQueueRecord.PRIORITY_NORMAL;
+    }
+
+    /**
+     * Get the number of records dropped because the memory queue was full.
+     *
+     * @return Number of records
+     */
+    public int getNbDropped() {
+        synchronized (memoryQueue) {
+            return metrics.dropped;
+        }
+    }
+
+    /**
+     * Get the number of expired records removed from the queue.
+     *
+     * @return Number of records
+     */
+    public int getNbExpired() {
+        synchronized (memoryQueue) {
+            return metrics.expired;
+        }
+    }
+
+    /**
+     * Get the number of records removed from the files to make room.
+     *
+     * @return Number of records
+     */
+    public int getNbEvicted() {
+        synchronized (memoryQueue) {
+            return metrics.evicted;
+        }
+    }
+
+    /**
+     * Count expired records skipped by a reader.
+     *
+     * @param nb Number of records
+     */
+    void expired(int nb) {
+        synchronized (memoryQueue) {
+            metrics.expired += nb;
+        }
+    }
+
+    /**
+     * Count records removed from the files to make room.
+     *
+     * @param nb Number of records
+     */
+    void evicted(int nb) {
+        synchronized (memoryQueue) {
+            metrics.evicted += nb;
+        }
+    }
+
+    /**
+     * Count a deleted file.
+     */
+    void rotated() {
+        synchronized (memoryQueue) {
+            metrics.rotations++;
+        }
+    }
+
+    /**
+     * Get the metrics of the queue.
+     *
+     * This doesn't wait for a save of the memory queue in progress.
+     *
+     * @return Copy of the metrics
+     */
+    public SafeQueueMetrics getMetrics() {
+        synchronized (memoryQueue) {
+            SafeQueueMetrics m = metrics.copy();
+            m.memoryRecords = memoryQueue.size() + pending.size();
+            long time = m.flashSize > 0 ? filesTime : 0;
+            if (!pending.isEmpty() && (time == 0 || pendingTime < time)) {
+                time = pendingTime;
+            }
+            if (!memoryQueue.isEmpty() && (time == 0 || memoryTime < time)) {
+                time = memoryTime;
+            }
+            m.oldestTime = time;
+            return m;
         }
     }
 
@@ -79,10 +558,13 @@ public class SafeQueue {
 
             if (Logger.BUILD_VERBOSE) {
                 Logger.log(this + ".getFirstItemsListWaiting: IS url=\"" + fc.
-                        getURL() + "\", size=\"" + fc.fileSize() + "\"");
+                        getURL() + "\", size=\"" + sizeOf(0) + "\"");
             }
 
-            return new SafeQueueLineReader(fc);
+            if (segments != null) {
+                return segments.getFirstReader(fc);
+            }
+            return new SafeQueueLineReader(fc, this, 0);
         } catch (Exception ex) {
             if (Logger.BUILD_CRITICAL) {
                 Logger.log(this + ".deleteFirstItemsListWaiting", ex);
@@ -91,6 +573,12 @@ public class SafeQueue {
         }
     }
 
+    /**
+     * Reader of the memory returned by getFirstItemsSetWaiting, null if it was
+     * a file
+     */
+    private SafeQueueLineReader memoryReader;
+
     /**
      * Returns the first set of items waiting to be sent
      *
@@ -110,22 +598,33 @@ public class SafeQueue {
                         size() + "]");
             }
 
-            return new SafeQueueLineReader(memoryQueue);
+            memoryReader = new SafeQueueLineReader(memoryQueue, this);
+            return memoryReader;
         } // If we have something in files, we return a file
         else {
+            memoryReader = null;
             return getFirstItemsSetWaitingFile();
         }
     }
 
     /**
      * Delete the first set of items that must have been returned earlier
+     *
+     * When they were read from the memory, only these records are deleted:
+     * the ones added since then (the producers don't wait for the reader) are
+     * kept.
      */
     public synchronized void deleteFirstItemsListWaiting() {
         if (Logger.BUILD_VERBOSE && LOG) {
             Logger.log(this + ".deleteFirstItemsListWaiting();");
         }
-        if (!memoryQueue.isEmpty()) {
-            memoryQueue.setSize(0);
+        if (memoryReader != null) {
+            try {
+                memoryReader.delete();
+            } catch (IOException ex) {
+                // Not for the memory
+            }
+            memoryReader = null;
         } else {
             try {
                 rotateFiles();
@@ -149,21 +648,88 @@ public class SafeQueue {
         }
     }
 
+    /**
+     * Save the memory queue in the files.
+     *
+     * What the flush thread didn't save yet is saved first.
+     *
+     * @return true if everything was saved
+     */
     public synchronized boolean saveMemoryInFile() {
         if (Logger.BUILD_VERBOSE) {
             Logger.log(this + ".saveMemoryInFile();");
         }
+        if (!savePendingOrRestore()) {
+            return false;
+        }
+        synchronized (memoryQueue) {
+            moveToPending();
+        }
+        return savePendingOrRestore();
+    }
+
+    /**
+     * Save the pending buffer in the files, or put it back in the memory
+     * queue (where it can be read).
+     *
+     * @return true if it was saved
+     */
+    private synchronized boolean savePendingOrRestore() {
+        if (savePending()) {
+            return true;
+        }
+        synchronized (memoryQueue) {
+            for (int i = pending.size() - 1; i >= 0; i--) {
+                memoryQueue.insertElementAt(pending.elementAt(i), 0);
+            }
+            pending.setSize(0);
+            memoryTime = pendingTime;
+            while (memoryQueue.size() > maxMemoryQueueSize && dropFromMemory(SafeQueueRecord.PRIORITY_HIGH)) {
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Save the pending buffer in the files.
+     *
+     * @return true if it was saved
+     */
+    private synchronized boolean savePending() {
+        if (pending.isEmpty()) {
+            return true;
+        }
+        long start = System.currentTimeMillis();
+        boolean saved = writePending();
+        int time = (int) (System.currentTimeMillis() - start);
+        synchronized (memoryQueue) {
+            metrics.flushes++;
+            if (!saved) {
+                metrics.failedFlushes++;
+            }
+            metrics.lastFlushTime = time;
+            if (time > metrics.maxFlushTime) {
+                metrics.maxFlushTime = time;
+            }
+        }
+        updateMetrics();
+        return saved;
+    }
+
+    private boolean writePending() {
         try {
+            FileConnection fc = findNextFile();
+
             // If we don't have enough space left on device
-            if (!enoughSpaceLeftOnDevice()) {
+            if (fc != null && !enoughSpaceLeftOnDevice(fc)) {
                 if (Logger.BUILD_NOTICE) {
                     Logger.log(this + ".saveMemoryInFile: Not enough space left on device");
                 }
-                if (filesRotation) {
+                if (makeRoom()) {
                     if (Logger.BUILD_VERBOSE && LOG) {
-                        Logger.log(this + ".saveMemoryInFile: Rotating files (1)");
+                        Logger.log(this + ".saveMemoryInFile: Made room (1)");
                     }
-                    rotateFiles();
+                    fc = findNextFile();
                 } else {
                     if (Logger.BUILD_DEBUG) {
                         Logger.log(this + ".saveMemoryInFile: Cancelling");
@@ -172,16 +738,14 @@ public class SafeQueue {
                 }
             }
 
-            FileConnection fc = findNextFile();
             if (fc == null) {
                 if (Logger.BUILD_NOTICE) {
                     Logger.log(this + ".saveMemoryInFile: We've reached the last file");
                 }
-                if (filesRotation) {
+                if (makeRoom()) {
                     if (Logger.BUILD_VERBOSE && LOG) {
-                        Logger.log(this + ".saveMemoryInFile: Rotating files (2)");
+                        Logger.log(this + ".saveMemoryInFile: Made room (2)");
                     }
-                    rotateFiles();
                 } else {
                     if (Logger.BUILD_DEBUG) {
                         Logger.log(this + ".saveMemoryInFile: Cancelling");
@@ -192,7 +756,15 @@ public class SafeQueue {
             }
 
             if (fc != null) {
-                saveStringVectorToFile(memoryQueue, fc);
+                if (segments != null) {
+                    segments.saveRecordsToFile(pending, fc);
+                } else {
+                    saveStringVectorToFile(pending, fc);
+                }
+                synchronized (memoryQueue) {
+                    pending.setSize(0);
+                    memoryQueue.notifyAll();
+                }
             }
             return true;
 
@@ -205,10 +777,52 @@ public class SafeQueue {
         return false;
     }
 
+    /**
+     * Make room in the files.
+     *
+     * Without the files rotation, only the expired records are removed.
+     *
+     * @return true if some room was made
+     */
+    private boolean makeRoom() throws IOException {
+        loadState();
+        if (segments != null) {
+            return segments.evict(filesRotation ? SafeQueueRecord.PRIORITY_HIGH : -1);
+        }
+        if (!filesRotation) {
+            return false;
+        }
+        if (!sizes.isEmpty() && sizeOf(0) > 0) {
+            evicted(countLines((FileConnection) Connector.open("file:///a:/" + dirName + "/0.log")));
+        }
+        rotateFiles();
+        return true;
+    }
+
+    private int countLines(FileConnection fc) throws IOException {
+        int nb = 0;
+        byte[] buffer = new byte[128];
+        InputStream is = fc.openInputStream();
+        try {
+            int n;
+            while ((n = is.read(buffer)) > 0) {
+                for (int i = 0; i < n; i++) {
+                    if (buffer[i] == '\n') {
+                        nb++;
+                    }
+                }
+            }
+        } finally {
+            is.close();
+            fc.close();
+        }
+        return nb;
+    }
+
     public synchronized long usedSize() {
         try {
-            FileConnection dir = (FileConnection) Connector.open("file:///a:/" + dirName + "/");
-            return dir.directorySize(true);
+            loadState();
+            return usedSize + (segments != null ? SegmentStorage.INDEX_SIZE : 0);
         } catch (Exception ex) {
             if (Logger.BUILD_VERBOSE) {
                 Logger.log(this + ".usedSize", ex);
@@ -218,6 +832,15 @@ public class SafeQueue {
     }
 
     public synchronized void deleteEverything() throws IOException {
+        if (segments != null) {
+            loadState();
+            segments.deleteEverything();
+        }
+        sizes = null;
+        synchronized (memoryQueue) {
+            metrics.flashSize = 0;
+            metrics.files = 0;
+        }
         for (int i = 0; i < maxFileNb; i++) {
             FileConnection fc = (FileConnection) Connector.open("file:///a:/" + dirName + "/" + i + ".log");
             if (fc.exists()) {
@@ -232,53 +855,272 @@ public class SafeQueue {
     }
 
     private boolean checkHasData() {
-        if (!memoryQueue.isEmpty()) {
+        if (!memoryQueue.isEmpty() || !pending.isEmpty()) {
             return true;
         }
 
-        if (getFirstFile() != null) {
-            return true;
+        try {
+            loadState();
+            for (int i = 0; i < sizes.size(); i++) {
+                if (sizeOf(i) > (i == 0 ? readOffset() : 0)) {
+                    return true;
+                }
+            }
+        } catch (IOException ex) {
+            if (Logger.BUILD_CRITICAL) {
+                Logger.log(this + ".checkHasData", ex, true);
+            }
         }
 
         return false;
     }
 
+    // <editor-fold desc="Directory state">
+    /**
+     * Load the state of the directory if it's not known.
+     */
+    private void loadState() throws IOException {
+        if (sizes != null) {
+            return;
+        }
+        checkDir();
+        sizes = new Vector();
+        usedSize = 0;
+        nbFiles = 0;
+        try {
+            if (segments != null) {
+                segments.loadSegments();
+            } else {
+                loadFiles();
+            }
+        } catch (IOException ex) {
+            sizes = null;
+            throw ex;
+        }
+        updateMetrics();
+    }
+
+    /**
+     * Delete a file of the rotation storage, the next files are renamed.
+     *
+     * @param nb Number of the file
+     */
+    synchronized void deleteFile(int nb) throws IOException {
+        rotateFiles(nb);
+    }
+
+    /**
+     * Delete a segment.
+     *
+     * @param nb Number of the segment
+     */
+    synchronized void deleteSegment(int nb) throws IOException {
+        if (segments != null) {
+            loadState();
+            segments.deleteSegment(nb);
+        }
+    }
+
+    /**
+     * Acknowledge the records of a segment preceding an offset.
+     *
+     * @param nb Number of the segment
+     * @param position Offset following the last acknowledged record
+     * @param generation Number of compactions when the reader was created
+     */
+    synchronized void acknowledge(int nb, long position, int generation) throws IOException {
+        if (segments != null) {
+            loadState();
+            segments.acknowledge(nb, position, generation);
+        }
+    }
+
+    /**
+     * Forget the state of the directory, it's loaded again when needed.
+     */
+    void unloadState() {
+        sizes = null;
+    }
+
+    /**
+     * Get the acknowledged size of the first file (the read cursor of the
+     * first segment).
+     */
+    private long readOffset() {
+        return segments != null ? segments.offset : 0;
+    }
+
+    /**
+     * Update the metrics of the files.
+     */
+    void updateMetrics() {
+        if (sizes == null) {
+            return;
+        }
+        long time = 0;
+        for (int i = 0; i < sizes.size() && time == 0; i++) {
+            if (sizeOf(i) > (i == 0 ? readOffset() : 0)) {
+                time = info(i).time;
+            }
+        }
+        synchronized (memoryQueue) {
+            metrics.flashSize = usedSize - readOffset();
+            metrics.files = nbFiles;
+            filesTime = time;
+        }
+    }
+
+    /**
+     * Set the time of the last file to the time of the pending buffer if it
+     * doesn't have one.
+     */
+    void setLastTime() {
+        FileInfo info = info(sizes.size() - 1);
+        if (info.time == 0) {
+            synchronized (memoryQueue) {
+                info.time = pendingTime;
+            }
+        }
+    }
+
+    FileInfo info(int i) {
+        return (FileInfo) sizes.elementAt(i);
+    }
+
+    int sizeOf(int i) {
+        return info(i).size;
+    }
+
+    int lastSize() {
+        return sizeOf(sizes.size() - 1);
+    }
+
+    int nbSizes() {
+        return sizes.size();
+    }
+
+    /**
+     * Get the size of the files, without the index.
+     */
+    long filesSize() {
+        return usedSize;
+    }
+
+    void setSize(int i, int size) {
+        usedSize += Math.max(size, 0) - Math.max(sizeOf(i), 0);
+        nbFiles += (size > 0 ? 1 : 0) - (sizeOf(i) > 0 ? 1 : 0);
+        if (size <= 0) {
+            sizes.setElementAt(new FileInfo(size), i);
+        } else {
+            info(i).size = size;
+        }
+    }
+
+    /**
+     * Replace the summary of a file, its size included.
+     */
+    void setInfo(int i, FileInfo info) {
+        usedSize += info.size - Math.max(sizeOf(i), 0);
+        sizes.setElementAt(info, i);
+    }
+
+    void removeFirstSize() {
+        removeSize(0);
+    }
+
+    private void removeSize(int i) {
+        usedSize -= Math.max(sizeOf(i), 0);
+        if (sizeOf(i) > 0) {
+            nbFiles--;
+        }
+        sizes.removeElementAt(i);
+    }
+
+    void addSize(int size) {
+        sizes.addElement(new FileInfo(size));
+        usedSize += Math.max(size, 0);
+        if (size > 0) {
+            nbFiles++;
+        }
+    }
+
+    /**
+     * Add the size of a file found when loading the state, its time is its
+     * modification time.
+     */
+    void addFile(FileConnection fc) throws IOException {
+        if (!fc.exists()) {
+            addSize(-1);
+            return;
+        }
+        addSize((int) fc.fileSize());
+        info(sizes.size() - 1).time = fc.lastModified() / 1000;
+    }
+    // </editor-fold>
+
     private void rotateFiles() throws IOException {
+        if (segments != null) {
+            loadState();
+            segments.deleteSegment(segments.head);
+            return;
+        }
+        rotateFiles(0);
+    }
+
+    /**
+     * Delete a file of the rotation storage and rename the next ones.
+     *
+     * @param first Number of the file
+     */
+    private void rotateFiles(int first) throws IOException {
         if (Logger.BUILD_VERBOSE) {
-            Logger.log(this + ".rotateFiles()");
+            Logger.log(this + ".rotateFiles( " + first + " )");
         }
-        for (int i = 0; i < maxFileNb; i++) {
+        loadState();
+        for (int i = first; i < sizes.size(); i++) {
+            if (sizeOf(i) < 0) {
+                continue;
+            }
             String fileName = "a:/" + dirName + "/" + i + ".log";
             try {
                 FileConnection fc = (FileConnection) Connector.open("file:///" + fileName);
-                if (fc.exists()) {
-                    if (i == 0) {
-                        if (Logger.BUILD_DEBUG) {
-                            Logger.log(this + ".rotateFiles: Deleting " + fileName + "...");
-                        }
-                        fc.delete(); // First file is deleted
-                    } else {
-                        String newfilename = "" + (i - 1) + ".log";
-                        // String newfilename = "a:/" + _dirName + "/" + (i - 1) + ".log";
-                        if (Logger.BUILD_DEBUG) {
-                            Logger.log(this + ".rotateFiles: Renaming \"" + fileName + "\" to \"" + newfilename + "\".");
-                        }
-                        fc.rename(newfilename); // Next files are renammed
+                if (i == first) {
+                    if (Logger.BUILD_DEBUG) {
+                        Logger.log(this + ".rotateFiles: Deleting " + fileName + "...");
+                    }
+                    fc.delete(); // First file is deleted
+                } else {
+                    String newfilename = "" + (i - 1) + ".log";
+                    // String newfilename = "a:/" + _dirName + "/" + (i - 1) + ".log";
+                    if (Logger.BUILD_DEBUG) {
+                        Logger.log(this + ".rotateFiles: Renaming \"" + fileName + "\" to \"" + newfilename + "\".");
                     }
+                    fc.rename(newfilename); // Next files are renammed
                 }
             } catch (Exception ex) {
                 if (Logger.BUILD_CRITICAL) {
                     Logger.log(this + ".rotateFiles: fileName=\"" + fileName + "\"", ex, true);
                 }
+                // We don't know what the files look like anymore
+                sizes = null;
+                return;
             }
         }
+        if (first < sizes.size()) {
+            removeSize(first);
+            rotated();
+        }
+        updateMetrics();
     }
 
     private FileConnection getFirstFile() {
         try {
-            FileConnection fc = (FileConnection) Connector.open("file:///a:/" + dirName + "/0.log");
-            if (fc.exists()) {
-                return fc;
+            loadState();
+            if (segments != null) {
+                return segments.getFirstSegment();
+            }
+            if (!sizes.isEmpty() && sizeOf(0) > 0) {
+                return (FileConnection) Connector.open("file:///a:/" + dirName + "/0.log");
             }
         } catch (IOException ex) {
             if (Logger.BUILD_CRITICAL) {
@@ -288,34 +1130,29 @@ public class SafeQueue {
         return null;
     }
 
-    public int getNbFiles() {
-        int nb = 0;
-        for (int i = 0; i < maxFileNb; i++) {
-            FileConnection fc;
-            try {
-                fc = (FileConnection) Connector.open("file:///a:/" + dirName + "/" + i + ".log");
-                if (fc.exists()) {
-                    nb++;
-                } else {
-                    break;
-                }
-            } catch (IOException ex) {
-                if (Logger.BUILD_CRITICAL) {
-                    Logger.log(this + ".getNbFiles", ex, true);
-                }
+    public synchronized int getNbFiles() {
+        try {
+            loadState();
+        } catch (IOException ex) {
+            if (Logger.BUILD_CRITICAL) {
+                Logger.log(this + ".getNbFiles", ex, true);
             }
+            return 0;
         }
-        return nb;
+        return nbFiles;
     }
 
-    public SafeQueueLineReader getFile(int nb) {
+    public synchronized SafeQueueLineReader getFile(int nb) {
         try {
-            FileConnection fc = (FileConnection) Connector.open("file:///a:/" + dirName + "/" + nb + ".log");
-            if (fc.exists()) {
-                return new SafeQueueLineReader(fc);
-            } else {
+            loadState();
+            if (nb < 0 || nb >= sizes.size() || sizeOf(nb) < 0) {
                 return null;
             }
+            if (segments != null) {
+                return segments.getReader(nb);
+            }
+            FileConnection fc = (FileConnection) Connector.open("file:///a:/" + dirName + "/" + nb + ".log");
+            return new SafeQueueLineReader(fc, this, nb);
         } catch (Exception ex) {
             if (Logger.BUILD_CRITICAL) {
                 Logger.log(this + ".getFile", ex);
@@ -324,32 +1161,36 @@ public class SafeQueue {
         }
     }
 
-    private FileConnection findNextFile() {
-        try {
-            { // We check the dir
-                FileConnection dir = (FileConnection) Connector.open("file:///a:/" + dirName + "/");
+    private void checkDir() throws IOException {
+        FileConnection dir = (FileConnection) Connector.open("file:///a:/" + dirName + "/");
 
-                // If this is a file, we delete it
-                if (dir.exists() && !dir.isDirectory()) {
-                    dir.delete();
-                }
+        // If this is a file, we delete it
+        if (dir.exists() && !dir.isDirectory()) {
+            dir.delete();
+        }
 
-                if (!dir.exists()) {
-                    dir.mkdir();
-                }
-            }
+        if (!dir.exists()) {
+            dir.mkdir();
+        }
+    }
 
-            // We try to get the file
-            for (int i = 0; i < maxFileNb; i++) {
-                FileConnection fc = (FileConnection) Connector.open("file:///a:/" + dirName + "/" + i + ".log");
+    private FileConnection findNextFile() {
+        try {
+            loadState();
+            if (segments != null) {
+                return segments.findNextSegment();
+            }
 
-                // If current file is too big, we skip to the next file
-                if (fc.exists() && fc.fileSize() >= maxFileSize) {
-                    continue;
+            // If the last file is too big, we skip to the next file
+            int nb = sizes.size() - 1;
+            if (nb < 0 || lastSize() >= maxFileSize) {
+                if (nb + 1 >= maxFileNb) {
+                    return null;
                 }
-
-                return fc;
+                nb++;
+                addSize(-1);
             }
+            return (FileConnection) Connector.open("file:///a:/" + dirName + "/" + nb + ".log");
         } catch (Exception ex) {
             if (Logger.BUILD_CRITICAL) {
                 Logger.log(this + ".findNextFile", ex);
@@ -359,45 +1200,122 @@ public class SafeQueue {
         return null;
     }
 
-    private long spaceLeftOnDevice() throws IOException {
-        FileConnection device = (FileConnection) Connector.open("file:///a:");
-        long availableSize = device.availableSize();
+    /**
+     * Load the sizes of the files.
+     *
+     * The half written line at the end of the last file is removed, only the
+     * end of the file is read.
+     */
+    private void loadFiles() throws IOException {
+        FileConnection last = null;
+        for (int i = 0; i < maxFileNb; i++) {
+            FileConnection fc = (FileConnection) Connector.open("file:///a:/" + dirName + "/" + i + ".log");
+            if (!fc.exists()) {
+                break;
+            }
+            addFile(fc);
+            last = fc;
+        }
+        if (last == null) {
+            return;
+        }
+        long size = lastSize();
+        byte[] buffer = new byte[128];
+        for (long pos = size; pos > 0;) {
+            int n = (int) Math.min(buffer.length, pos);
+            pos -= n;
+            InputStream is = last.openInputStream();
+            try {
+                for (long skip = pos; skip > 0;) {
+                    long s = is.skip(skip);
+                    if (s <= 0) {
+                        throw new IOException("Could not skip to " + pos);
+                    }
+                    skip -= s;
+                }
+                for (int r = 0; r < n;) {
+                    int s = is.read(buffer, r, n - r);
+                    if (s < 0) {
+                        throw new IOException("Could not read at " + (pos + r));
+                    }
+                    r += s;
+                }
+            } finally {
+                is.close();
+            }
+            for (int i = n - 1; i >= 0; i--) {
+                if (buffer[i] == '\n') {
+                    truncate(last, size, pos + i + 1);
+                    setSize(sizes.size() - 1, (int) (pos + i + 1));
+                    return;
+                }
+            }
+        }
+        truncate(last, size, 0);
+        setSize(sizes.size() - 1, 0);
+    }
+
+    void truncate(FileConnection fc, long size, long length) throws IOException {
+        if (length < size) {
+            if (Logger.BUILD_WARNING) {
+                Logger.log(this + ".truncate: Truncating " + fc.getURL() + " from " + size + " to " + length + " bytes");
+            }
+            fc.truncate(length);
+        }
+    }
+
+    private long spaceLeftOnDevice(FileConnection fc) throws IOException {
+        // Any file of the file system gives its free space
+        long availableSize = fc.availableSize();
         if (Logger.BUILD_DEBUG) {
             Logger.log(this + ".spaceLeftOnDevice: " + availableSize);
         }
         return availableSize;
     }
 
-    private boolean enoughSpaceLeftOnDevice() throws IOException {
-        return spaceLeftOnDevice() > MIN_FREE_SPACE;
+    private boolean enoughSpaceLeftOnDevice(FileConnection fc) throws IOException {
+        return spaceLeftOnDevice(fc) > MIN_FREE_SPACE;
     }
 
+    /**
+     * Append lines to the last file, with one write.
+     */
     private void saveStringVectorToFile(Vector strVector, FileConnection fc) throws IOException {
         try {
             if (Logger.BUILD_VERBOSE) {
                 Logger.log(this + ".saveStringVectorToFile( Vector[" + strVector.
                         size() + "], " + fc + " );");
             }
-            if (!fc.exists()) {
+            int size = lastSize();
+            if (size < 0) {
                 fc.create();
+                size = 0;
+                setSize(sizes.size() - 1, 0);
             }
 
-            OutputStream os = fc.openOutputStream(fc.fileSize());
-            OutputStreamWriter osw = new OutputStreamWriter(os);
-
+            StringBuffer sb = new StringBuffer();
             Enumeration en = strVector.elements();
 
             while (en.hasMoreElements()) {
-                osw.write((String) en.nextElement() + "\n");
+                Object o = en.nextElement();
+                sb.append(o instanceof String ? (String) o : ((SafeQueueRecord) o).toLine()).append('\n');
             }
 
-            osw.close();
-
-            memoryQueue.setSize(0);
+            byte[] data = sb.toString().getBytes();
+            OutputStream os = fc.openOutputStream(size);
+            try {
+                os.write(data);
+            } finally {
+                os.close();
+            }
+            setSize(sizes.size() - 1, size + data.length);
+            setLastTime();
         } catch (Exception ex) {
             if (Logger.BUILD_CRITICAL) {
                 Logger.log(this + ".saveStringVectorToFile", ex, true);
             }
+            // We don't know how much was written
+            sizes = null;
             if (ex instanceof IOException) {
                 throw (IOException) ex;
             }
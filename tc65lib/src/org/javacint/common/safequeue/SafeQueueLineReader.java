@@ -5,8 +5,10 @@ import com.siemens.icm.io.file.FileConnection;
 //#elif sdkns == "cinterion"
 //# import com.cinterion.io.file.FileConnection;
 //#endif
+import java.io.DataInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.util.Vector;
 import javax.microedition.io.Connector;
 import org.javacint.common.BufferedReader;
@@ -15,6 +17,17 @@ import org.javacint.logging.Logger;
 /**
  * Allows to read data from a safe queue (without loading everything in memory)
  *
+ * The content can be read as lines (readLine) or as records (readRecord). Data
+ * records read as lines are converted to their text form.<br />
+ * What was read can be acknowledged (acknowledge) before reaching the end. The
+ * queue then keeps the position of the first record that wasn't acknowledged
+ * and the next reader starts there. The records of a compressed flush can only
+ * be acknowledged together (see inBlock). A position (mark) can also be
+ * acknowledged later, while the following records are being read.<br />
+ * A reader of the memory reads a copy of the records that were in memory when
+ * it was created. Acknowledging removes these records from the memory, if they
+ * are still there (they might have been saved in a file in the meantime).
+ *
  * @author Florent Clairambault / www.webingenia.com
  */
 public class SafeQueueLineReader {
@@ -22,11 +35,59 @@ public class SafeQueueLineReader {
     BufferedReader br;
     InputStream is;
     FileConnection fc;
+    /**
+     * Memory of the queue, and the records it held when the reader was created
+     */
     Vector mem;
+    private Vector records;
     int lineNumber;
+    SafeQueue queue;
+    /**
+     * Number of the segment, or of the file of the rotation storage
+     */
+    int segment;
+    DataInputStream dis;
+    RecordCodec codec;
+    /**
+     * Offset following the last record read from the segment
+     */
+    long position;
+    boolean finished;
+    /**
+     * Number of compactions of the queue when the reader was created
+     */
+    int generation;
+    /**
+     * Buffer of writeTo
+     */
+    private byte[] buffer;
+    private int buffered;
+    private static final int BUFFER_SIZE = 512;
+    /**
+     * Records of the memory acknowledged, and last position acknowledged
+     */
+    private int removed;
+    private long acknowledged;
 
     public SafeQueueLineReader(Vector v) {
         mem = v;
+        synchronized (v) {
+            records = new Vector(v.size());
+            for (int i = 0; i < v.size(); i++) {
+                records.addElement(v.elementAt(i));
+            }
+        }
+    }
+
+    /**
+     * Reader of the memory of a queue.
+     *
+     * @param v Memory
+     * @param queue Queue, told about the expired records
+     */
+    SafeQueueLineReader(Vector v, SafeQueue queue) {
+        this(v);
+        this.queue = queue;
     }
 
     public SafeQueueLineReader(FileConnection fc) throws IOException {
@@ -35,31 +96,125 @@ public class SafeQueueLineReader {
         br = new BufferedReader(is);
     }
 
-    public String readLine() {
-        if (mem != null) {
-            if (mem.size() == lineNumber) {
-                return null;
-            }
+    /**
+     * Reader of a file of a queue.
+     *
+     * @param fc File
+     * @param queue Queue, deleting the file
+     * @param nb Number of the file
+     */
+    SafeQueueLineReader(FileConnection fc, SafeQueue queue, int nb) throws IOException {
+        this(fc);
+        this.queue = queue;
+        this.segment = nb;
+    }
 
-            return (String) mem.elementAt(lineNumber++);
+    /**
+     * Reader of a segment of a queue.
+     *
+     * @param fc File of the segment
+     * @param queue Queue
+     * @param segment Number of the segment
+     * @param offset Offset of the first record to read
+     */
+    SafeQueueLineReader(FileConnection fc, SafeQueue queue, int segment, long offset) throws IOException {
+        this.fc = fc;
+        this.queue = queue;
+        this.segment = segment;
+        is = fc.openInputStream();
+        dis = new DataInputStream(is);
+        codec = new RecordCodec(0);
+        codec.skipTo(dis, offset);
+        position = codec.position;
+    }
+
+    public String readLine() {
+        if (br == null) {
+            SafeQueueRecord record = readRecord();
+            return record != null ? record.toLine() : null;
         } else {
             String line = br.readLine();
 
             if (line == null) {
-                try {
-                    is.close();
-                    fc.close();
-                } catch (Exception ex) {
-                    if (Logger.BUILD_CRITICAL) {
-                        Logger.log("SafeQueueLineReader.readLine: ", ex);
-                    }
-                }
+                finished = true;
+                closeFile();
             }
 
             return line;
         }
     }
 
+    /**
+     * Read the next record.
+     *
+     * Lines are returned as line records. Expired records are skipped.
+     *
+     * @return Record or null at the end
+     */
+    public SafeQueueRecord readRecord() {
+        long now = System.currentTimeMillis() / 1000;
+        SafeQueueRecord record;
+        while ((record = nextRecord()) != null && record.isExpired(now)) {
+            if (queue != null) {
+                queue.expired(1);
+            }
+        }
+        return record;
+    }
+
+    private SafeQueueRecord nextRecord() {
+        if (mem != null) {
+            if (records.size() <= lineNumber) {
+                return null;
+            }
+
+            Object o = records.elementAt(lineNumber++);
+            return o instanceof String ? new SafeQueueRecord((String) o) : (SafeQueueRecord) o;
+        } else if (codec != null) {
+            SafeQueueRecord record = null;
+            try {
+                record = codec.decode(dis);
+            } catch (IOException ex) {
+                if (Logger.BUILD_CRITICAL) {
+                    Logger.log("SafeQueueLineReader.readRecord", ex);
+                }
+            }
+            if (record == null) {
+                finished = true;
+                closeFile();
+            } else {
+                position = codec.position;
+            }
+            return record;
+        } else {
+            String line = readLine();
+            return line != null ? new SafeQueueRecord(line) : null;
+        }
+    }
+
+    private void closeFile() {
+        try {
+            is.close();
+            fc.close();
+        } catch (Exception ex) {
+            if (Logger.BUILD_CRITICAL) {
+                Logger.log("SafeQueueLineReader.readLine: ", ex);
+            }
+        }
+    }
+
+    /**
+     * Check if the last record read is part of compressed records that
+     * weren't all read.
+     *
+     * Acknowledging now would not acknowledge the records read from them.
+     *
+     * @return true if the compressed records were not all read
+     */
+    public boolean inBlock() {
+        return codec != null && codec.inBlock();
+    }
+
     public Vector toVector() {
         Vector v = new Vector();
         String line = null;
@@ -69,9 +224,162 @@ public class SafeQueueLineReader {
         return v;
     }
 
+    /**
+     * Read lines up to a size.
+     *
+     * @param maxSize Size of the lines (at least one line is read). The lines of
+     * compressed records are read until their end, the text files entirely.
+     * @return Lines
+     */
+    public Vector toVector(int maxSize) {
+        if (br != null) {
+            // The text files are only acknowledged once they were all read
+            return toVector();
+        }
+        Vector v = new Vector();
+        String line = null;
+        for (int size = 0; (size == 0 || size < maxSize || inBlock()) && (line = readLine()) != null; size += line.length() + 1) {
+            v.addElement(line);
+        }
+        return v;
+    }
+
+    /**
+     * Write lines up to a size in a stream, as text lines.
+     *
+     * The lines are written through a small buffer, without being kept. The
+     * text files (files rotation storage) are written entirely, as they can
+     * only be acknowledged once they were all read.
+     *
+     * @param os Stream
+     * @param maxSize Size of the lines (at least one line is written). The
+     * lines of compressed records are written until their end.
+     * @return Size written
+     */
+    public int writeTo(OutputStream os, int maxSize) throws IOException {
+        if (buffer == null) {
+            buffer = new byte[BUFFER_SIZE];
+        }
+        if (br != null) {
+            maxSize = Integer.MAX_VALUE;
+        }
+        int size = 0;
+        buffered = 0;
+        String line;
+        while ((size == 0 || size < maxSize || inBlock()) && (line = readLine()) != null) {
+            byte[] b = line.getBytes();
+            write(os, b);
+            write(os, NEW_LINE);
+            size += b.length + 1;
+        }
+        if (buffered > 0) {
+            os.write(buffer, 0, buffered);
+        }
+        return size;
+    }
+    private static final byte[] NEW_LINE = {'\n'};
+
+    private void write(OutputStream os, byte[] b) throws IOException {
+        if (buffered + b.length > buffer.length) {
+            os.write(buffer, 0, buffered);
+            buffered = 0;
+            if (b.length > buffer.length) {
+                os.write(b);
+                return;
+            }
+        }
+        System.arraycopy(b, 0, buffer, buffered, b.length);
+        buffered += b.length;
+    }
+
+    /**
+     * Acknowledge what was read.
+     *
+     * When everything was read, this is the same as delete(). The lines of the
+     * text files (files rotation storage) can only be acknowledged once they
+     * were all read.
+     */
+    public void acknowledge() throws IOException {
+        if (mem != null) {
+            removeFromMemory(lineNumber);
+        } else if (finished) {
+            delete();
+        } else if (codec != null) {
+            queue.acknowledge(segment, position, generation);
+        }
+    }
+
+    /**
+     * Get the position following what was read, to acknowledge it later.
+     *
+     * @return Position
+     */
+    public long mark() {
+        if (mem != null) {
+            return lineNumber;
+        } else if (finished) {
+            return Long.MAX_VALUE;
+        } else if (codec != null) {
+            return position;
+        }
+        // Text files are acknowledged as a whole
+        return 0;
+    }
+
+    /**
+     * Acknowledge what was read up to a position.
+     *
+     * This allows to read some more before the acknowledge of the previous
+     * records. The positions have to be acknowledged in order.
+     *
+     * @param mark Position returned by mark
+     */
+    public void acknowledge(long mark) throws IOException {
+        if (mark <= acknowledged) {
+            return;
+        }
+        acknowledged = mark;
+        if (mem != null) {
+            removeFromMemory((int) Math.min(mark, lineNumber));
+        } else if (mark == Long.MAX_VALUE) {
+            delete();
+        } else if (codec != null) {
+            queue.acknowledge(segment, mark, generation);
+        }
+    }
+
+    /**
+     * Remove the records of the reader from the memory, up to a position.
+     *
+     * The records are removed by identity, the ones that are not in the memory
+     * anymore are ignored.
+     *
+     * @param end Position following the last record to remove
+     */
+    private void removeFromMemory(int end) {
+        if (removed >= end) {
+            return;
+        }
+        synchronized (mem) {
+            for (; removed < end; removed++) {
+                Object o = records.elementAt(removed);
+                records.setElementAt(null, removed);
+                // They are usually the first ones
+                for (int i = 0; i < mem.size(); i++) {
+                    if (mem.elementAt(i) == o) {
+                        mem.removeElementAt(i);
+                        break;
+                    }
+                }
+            }
+            // Some room for the producers
+            mem.notifyAll();
+        }
+    }
+
     public void delete() throws IOException {
         if (mem != null) {
-            mem.setSize(0);
+            removeFromMemory(records.size());
         } else {
             String url = fc.getURL();
             try {
@@ -82,8 +390,15 @@ public class SafeQueueLineReader {
                     Logger.log("SafeQueueLineReader.delete:58", ex);
                 }
             }
-            FileConnection fileConn = (FileConnection) Connector.open(url);
-            fileConn.delete();
+            if (codec != null) {
+                queue.deleteSegment(segment);
+            } else if (queue != null) {
+                // The next files are renamed
+                queue.deleteFile(segment);
+            } else {
+                FileConnection fileConn = (FileConnection) Connector.open(url);
+                fileConn.delete();
+            }
         }
     }
 
@@ -91,5 +406,11 @@ public class SafeQueueLineReader {
         if (br != null) {
             br.close();
         }
+        if (dis != null) {
+            dis.close();
+        }
+        if (fc != null) {
+            fc.close();
+        }
     }
 }
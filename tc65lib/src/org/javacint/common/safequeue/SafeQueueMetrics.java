@@ -0,0 +1,107 @@
+package org.javacint.common.safequeue;
+
+/**
+ * Metrics of a safe queue.
+ *
+ * The queue updates its metrics on each operation, getMetrics() returns a copy
+ * of them. The flash metrics are the ones of the last operation on the files,
+ * they're not known before the state of the directory was loaded.
+ */
+public class SafeQueueMetrics {
+
+    /**
+     * Name of the queue
+     */
+    public final String name;
+    /**
+     * Records in memory (memory queue and records being saved)
+     */
+    public int memoryRecords;
+    /**
+     * Size of the data on flash that wasn't acknowledged
+     */
+    public long flashSize;
+    /**
+     * Size of the data the files can contain
+     */
+    public long flashCapacity;
+    /**
+     * Files (or segments) containing data
+     */
+    public int files;
+    /**
+     * Saves of the memory queue in the files, and the failed ones
+     */
+    public int flushes, failedFlushes;
+    /**
+     * Duration (ms) of the last save and of the longest one
+     */
+    public int lastFlushTime, maxFlushTime;
+    /**
+     * Files (or segments) deleted
+     */
+    public int rotations;
+    /**
+     * Time (seconds since 1970) of the oldest record, 0 if the queue is empty.
+     * The time of the files is their modification time when they were written
+     * before the queue was opened.
+     */
+    public long oldestTime;
+    /**
+     * Records dropped from the memory queue, expired, and evicted from the
+     * files
+     */
+    public int dropped, expired, evicted;
+
+    SafeQueueMetrics(String name) {
+        this.name = name;
+    }
+
+    SafeQueueMetrics copy() {
+        SafeQueueMetrics m = new SafeQueueMetrics(name);
+        m.memoryRecords = memoryRecords;
+        m.flashSize = flashSize;
+        m.flashCapacity = flashCapacity;
+        m.files = files;
+        m.flushes = flushes;
+        m.failedFlushes = failedFlushes;
+        m.lastFlushTime = lastFlushTime;
+        m.maxFlushTime = maxFlushTime;
+        m.rotations = rotations;
+        m.oldestTime = oldestTime;
+        m.dropped = dropped;
+        m.expired = expired;
+        m.evicted = evicted;
+        return m;
+    }
+
+    /**
+     * Get the age of the oldest record.
+     *
+     * @return Age in seconds, 0 if the queue is empty
+     */
+    public long getOldestAge() {
+        return oldestTime != 0 ? Math.max(System.currentTimeMillis() / 1000 - oldestTime, 0) : 0;
+    }
+
+    /**
+     * Get the usage of the files.
+     *
+     * @return Percentage of the capacity used
+     */
+    public int getFlashUsage() {
+        return flashCapacity > 0 ? (int) (flashSize * 100 / flashCapacity) : 0;
+    }
+
+    /**
+     * Get the text form of the metrics.
+     *
+     * @return "mem=..,flash=..,usage=..%,files=..,flushes=..,failed=..,flush=..ms,flushMax=..ms,rotations=..,age=..s,dropped=..,expired=..,evicted=.."
+     */
+    public String toString() {
+        return "mem=" + memoryRecords + ",flash=" + flashSize + ",usage=" + getFlashUsage() + "%,files=" + files
+                + ",flushes=" + flushes + ",failed=" + failedFlushes + ",flush=" + lastFlushTime + "ms,flushMax=" + maxFlushTime
+                + "ms,rotations=" + rotations + ",age=" + getOldestAge() + "s,dropped=" + dropped + ",expired=" + expired
+                + ",evicted=" + evicted;
+    }
+}
@@ -0,0 +1,157 @@
+package org.javacint.common.safequeue;
+
+import org.javacint.common.Base64;
+
+/**
+ * Record of a safe queue.
+ *
+ * A record is either a text line or the binary data of a named channel (one
+ * byte array, or an array of byte arrays). It has a priority and can have an
+ * expiry time, they decide which records are dropped first when the queue is
+ * full.
+ */
+public class SafeQueueRecord {
+
+    /**
+     * Dropped first
+     */
+    public static final int PRIORITY_LOW = 0;
+    public static final int PRIORITY_NORMAL = 1;
+    /**
+     * Dropped last (alarms)
+     */
+    public static final int PRIORITY_HIGH = 2;
+
+    /**
+     * Line
+     */
+    public final String line;
+    /**
+     * Channel of the data
+     */
+    public final String channel;
+    /**
+     * Data (one element for a single byte array)
+     */
+    public final byte[][] data;
+    /**
+     * The data is an array of byte arrays
+     */
+    public final boolean array;
+    /**
+     * Priority (PRIORITY_LOW to PRIORITY_HIGH)
+     */
+    public int priority = PRIORITY_NORMAL;
+    /**
+     * Expiry time (seconds since 1970), 0 if it doesn't expire
+     */
+    public long expiry;
+
+    /**
+     * Line record.
+     *
+     * @param line Line
+     */
+    public SafeQueueRecord(String line) {
+        this.line = line;
+        this.channel = null;
+        this.data = null;
+        this.array = false;
+    }
+
+    /**
+     * Data record.
+     *
+     * @param channel Channel name
+     * @param data Data
+     */
+    public SafeQueueRecord(String channel, byte[] data) {
+        this.line = null;
+        this.channel = channel;
+        this.data = new byte[][]{data};
+        this.array = false;
+    }
+
+    /**
+     * Data array record.
+     *
+     * @param channel Channel name
+     * @param data Data
+     */
+    public SafeQueueRecord(String channel, byte[][] data) {
+        this.line = null;
+        this.channel = channel;
+        this.data = data;
+        this.array = true;
+    }
+
+    public boolean isLine() {
+        return line != null;
+    }
+
+    /**
+     * Set the priority and the time to live.
+     *
+     * @param priority Priority (PRIORITY_LOW to PRIORITY_HIGH)
+     * @param ttl Time to live in seconds, 0 if it doesn't expire
+     * @return This record
+     */
+    public SafeQueueRecord setPriority(int priority, int ttl) {
+        this.priority = priority;
+        this.expiry = ttl > 0 ? System.currentTimeMillis() / 1000 + ttl : 0;
+        return this;
+    }
+
+    /**
+     * Check if the record has expired.
+     *
+     * @param now Current time (seconds since 1970)
+     * @return true if it has expired
+     */
+    public boolean isExpired(long now) {
+        return expiry != 0 && expiry <= now;
+    }
+
+    /**
+     * Get the size of the record content.
+     *
+     * @return Size of the line or of the data
+     */
+    public int size() {
+        if (line != null) {
+            return line.length();
+        }
+        int size = 0;
+        for (int i = 0; i < data.length; i++) {
+            size += data[i].length;
+        }
+        return size;
+    }
+
+    /**
+     * Get the text form of the record.
+     *
+     * Data records are written as "channel,base64" and data array records as
+     * ".channel,base64,base64...", as the lines of the files rotation storage.
+     *
+     * @return Line
+     */
+    public String toLine() {
+        if (line != null) {
+            return line;
+        }
+        StringBuffer sb = new StringBuffer();
+        if (array) {
+            sb.append('.');
+        }
+        sb.append(channel);
+        for (int i = 0; i < data.length; i++) {
+            sb.append(',').append(Base64.encode(data[i]));
+        }
+        return sb.toString();
+    }
+
+    public String toString() {
+        return line != null ? "Line(\"" + line + "\")" : "Data(" + channel + "," + data.length + (array ? ",array)" : ")");
+    }
+}
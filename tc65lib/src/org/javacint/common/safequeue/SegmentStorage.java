@@ -0,0 +1,633 @@
+package org.javacint.common.safequeue;
+//#if sdkns == "siemens"
+import com.siemens.icm.io.file.FileConnection;
+//#elif sdkns == "cinterion"
+//# import com.cinterion.io.file.FileConnection;
+//#endif
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Enumeration;
+import java.util.Vector;
+import javax.microedition.io.Connector;
+import org.javacint.common.BufferedReader;
+import org.javacint.common.CRC32;
+import org.javacint.logging.Logger;
+
+/**
+ * Segments storage of a queue.
+ *
+ * The segments are monotonically numbered files (n.seg) that are never
+ * renamed. The index file holds the first and last segment numbers, the read
+ * cursor of the first segment and the segment being compacted.<br />
+ * When the queue is opened, an interrupted compaction is completed and the
+ * records torn by a power loss at the end of the last segment are removed.
+ * <br />
+ * The sizes and summaries of the segments (head to tail) are kept in the
+ * directory state of the queue. The state is loaded and the queue lock is held
+ * when the methods are called, except for loadSegments which loads it.
+ */
+final class SegmentStorage {
+
+    private static final String SEGMENT_EXTENSION = ".seg";
+    private static final String INDEX_FILE = "index";
+    private static final String COMPACT_FILE = "compact.tmp";
+    static final int INDEX_SIZE = 20;
+    private final SafeQueue queue;
+    private final String dirName;
+    private final int maxFileNb, maxFileSize;
+    /**
+     * Compress the records of each flush
+     */
+    boolean compression;
+    /**
+     * First segment (the oldest one) and last segment (the one we append to).
+     * The index is only written when the first segment changes, the last
+     * segments are found when it's loaded.
+     */
+    int head, tail;
+    /**
+     * Read cursor: offset of the first record of the first segment that wasn't
+     * acknowledged. It's saved in the index.
+     */
+    long offset;
+    /**
+     * Records encoder, and the segment for which it has defined the channels
+     */
+    private RecordCodec codec;
+    private int channelsSegment = -1;
+    /**
+     * Segment being replaced by its compacted version (saved in the index),
+     * -1 if none
+     */
+    private int compacting = -1;
+    /**
+     * Number of compactions, the partial acknowledgments of the readers
+     * created before a compaction are ignored
+     */
+    int compactions;
+
+    SegmentStorage(SafeQueue queue, String dirName, int maxFileNb, int maxFileSize) {
+        this.queue = queue;
+        this.dirName = dirName;
+        this.maxFileNb = maxFileNb;
+        this.maxFileSize = maxFileSize;
+    }
+
+    private RecordCodec getCodec() {
+        if (codec == null) {
+            codec = new RecordCodec(1024);
+        }
+        return codec;
+    }
+
+    /**
+     * Append records to a segment, with one write.
+     */
+    void saveRecordsToFile(Vector records, FileConnection fc) throws IOException {
+        if (Logger.BUILD_VERBOSE) {
+            Logger.log(this + ".saveRecordsToFile( Vector[" + records.size() + "], " + fc + " );");
+        }
+        int last = queue.nbSizes() - 1;
+        int size = queue.lastSize();
+        if (size < 0) {
+            fc.create();
+            size = 0;
+            queue.setSize(last, 0);
+        }
+        RecordCodec c = getCodec();
+        c.reset();
+        // Channels are defined once per segment
+        if (channelsSegment != tail || size == 0) {
+            c.resetChannels();
+            channelsSegment = tail;
+        }
+        SafeQueue.FileInfo info = queue.info(last);
+        for (Enumeration en = records.elements(); en.hasMoreElements();) {
+            Object element = en.nextElement();
+            c.encode(element);
+            info.add(element);
+        }
+        if (compression) {
+            c.compress(0);
+        }
+        c.commit(size);
+        OutputStream os = null;
+        try {
+            os = fc.openOutputStream(size);
+            os.write(c.buf, 0, c.len);
+        } catch (IOException ex) {
+            // We don't know which channels and how much made it to the segment
+            channelsSegment = -1;
+            queue.unloadState();
+            throw ex;
+        } finally {
+            if (os != null) {
+                os.close();
+            }
+        }
+        queue.setSize(last, size + c.len);
+        queue.setLastTime();
+    }
+
+    private FileConnection openSegment(int nb) throws IOException {
+        return (FileConnection) Connector.open("file:///a:/" + dirName + "/" + nb + SEGMENT_EXTENSION);
+    }
+
+    /**
+     * Get a reader of a segment.
+     *
+     * @param i Position of the segment (0 for the first one)
+     * @return Reader
+     */
+    SafeQueueLineReader getReader(int i) throws IOException {
+        return getReader(openSegment(head + i), i);
+    }
+
+    /**
+     * Get a reader of the first segment (returned by getFirstSegment).
+     *
+     * The segment being read is closed, new records go to the next one.
+     *
+     * @param fc First segment
+     * @return Reader
+     */
+    SafeQueueLineReader getFirstReader(FileConnection fc) throws IOException {
+        if (head == tail) {
+            tail++;
+            queue.addSize(-1);
+        }
+        return getReader(fc, 0);
+    }
+
+    private SafeQueueLineReader getReader(FileConnection fc, int i) throws IOException {
+        SafeQueueLineReader reader = new SafeQueueLineReader(fc, queue, head + i, i == 0 ? offset : 0);
+        reader.generation = compactions;
+        return reader;
+    }
+
+    /**
+     * Load the segments index and the sizes of the segments.
+     *
+     * If there's no index, the segments are looked for in the directory.
+     */
+    void loadSegments() throws IOException {
+        FileConnection fc = (FileConnection) Connector.open("file:///a:/" + dirName + "/" + INDEX_FILE);
+        boolean indexed = false;
+        if (fc.exists() && fc.fileSize() >= INDEX_SIZE) {
+            DataInputStream dis = fc.openDataInputStream();
+            try {
+                head = dis.readInt();
+                tail = dis.readInt();
+                offset = dis.readInt();
+                compacting = dis.readInt();
+                indexed = head >= 0 && head <= tail && offset >= 0 && dis.readInt() == indexCrc();
+            } finally {
+                dis.close();
+            }
+        }
+        fc.close();
+        if (!indexed) {
+            scanSegments();
+        } else if (compacting >= 0) {
+            recoverCompaction();
+        }
+        // The index isn't written when a segment is started
+        while (openSegment(tail + 1).exists()) {
+            tail++;
+        }
+        recoverTail();
+        takeOverRotationFiles();
+        for (int i = head; i <= tail; i++) {
+            queue.addFile(openSegment(i));
+        }
+    }
+
+    private int indexCrc() {
+        byte[] b = new byte[16];
+        for (int i = 0; i < 4; i++) {
+            b[i] = (byte) (head >> (24 - i * 8));
+            b[i + 4] = (byte) (tail >> (24 - i * 8));
+            b[i + 8] = (byte) (offset >> (24 - i * 8));
+            b[i + 12] = (byte) (compacting >> (24 - i * 8));
+        }
+        return CRC32.crc32(b);
+    }
+
+    /**
+     * Truncate the last segment after its last commit record.
+     *
+     * Only the last segment is ever appended to, the other ones are not
+     * checked. When it ends with a commit record (the queue was properly
+     * stopped or the power loss didn't happen during a flush), only this
+     * record is read.
+     */
+    private void recoverTail() throws IOException {
+        FileConnection fc = openSegment(tail);
+        if (!fc.exists()) {
+            return;
+        }
+        long size = fc.fileSize();
+        RecordCodec c = new RecordCodec(0);
+        InputStream is = fc.openInputStream();
+        try {
+            if (c.isCommitted(is, size)) {
+                return;
+            }
+        } finally {
+            is.close();
+        }
+        long length;
+        DataInputStream dis = fc.openDataInputStream();
+        try {
+            length = c.committedLength(dis);
+        } finally {
+            dis.close();
+        }
+        queue.truncate(fc, size, length);
+        // The channels of the removed records might have been lost
+        channelsSegment = -1;
+    }
+
+    private void scanSegments() throws IOException {
+        if (Logger.BUILD_NOTICE) {
+            Logger.log(this + ".scanSegments: No index, scanning the directory");
+        }
+        int min = Integer.MAX_VALUE, max = -1;
+        FileConnection dir = (FileConnection) Connector.open("file:///a:/" + dirName + "/");
+        for (Enumeration en = dir.list(); en.hasMoreElements();) {
+            String name = (String) en.nextElement();
+            if (!name.endsWith(SEGMENT_EXTENSION)) {
+                continue;
+            }
+            try {
+                int nb = Integer.parseInt(name.substring(0, name.length() - SEGMENT_EXTENSION.length()));
+                if (nb < min) {
+                    min = nb;
+                }
+                if (nb > max) {
+                    max = nb;
+                }
+            } catch (NumberFormatException ex) {
+                // Not one of our files
+            }
+        }
+        dir.close();
+        offset = 0;
+        compacting = -1;
+        if (max < 0) {
+            head = tail = 0;
+        } else {
+            head = min;
+            tail = max;
+        }
+        writeIndex();
+    }
+
+    /**
+     * Convert the files of the rotation storage to the last segments.
+     *
+     * Each file becomes a segment of line records. The index is written before
+     * deleting each file so that an interrupted conversion is resumed.
+     */
+    private void takeOverRotationFiles() throws IOException {
+        for (int i = 0; i < maxFileNb; i++) {
+            FileConnection fc = (FileConnection) Connector.open("file:///a:/" + dirName + "/" + i + ".log");
+            if (!fc.exists()) {
+                break;
+            }
+            RecordCodec c = getCodec();
+            c.reset();
+            InputStream is = fc.openInputStream();
+            try {
+                BufferedReader br = new BufferedReader(is);
+                String line;
+                while ((line = br.readLine()) != null) {
+                    if (RecordCodec.payloadSize(line) <= RecordCodec.MAX_PAYLOAD) {
+                        c.encode(line);
+                    }
+                }
+            } finally {
+                is.close();
+            }
+            if (compression) {
+                c.compress(0);
+            }
+            c.commit(0);
+            int nb = openSegment(tail).exists() ? tail + 1 : tail;
+            FileConnection seg = openSegment(nb);
+            if (seg.exists()) {
+                // Left by an interrupted conversion
+                seg.delete();
+            }
+            seg.create();
+            OutputStream os = seg.openOutputStream();
+            try {
+                os.write(c.buf, 0, c.len);
+            } finally {
+                os.close();
+            }
+            // The next flush goes to a new segment
+            tail = nb + 1;
+            channelsSegment = -1;
+            writeIndex();
+            fc.delete();
+        }
+    }
+
+    private void writeIndex() throws IOException {
+        FileConnection fc = (FileConnection) Connector.open("file:///a:/" + dirName + "/" + INDEX_FILE);
+        if (!fc.exists()) {
+            fc.create();
+        }
+        DataOutputStream dos = fc.openDataOutputStream();
+        try {
+            dos.writeInt(head);
+            dos.writeInt(tail);
+            dos.writeInt((int) offset);
+            dos.writeInt(compacting);
+            dos.writeInt(indexCrc());
+        } finally {
+            dos.close();
+            fc.close();
+        }
+    }
+
+    /**
+     * Get the first segment containing data.
+     *
+     * @return First segment or null if there's no data
+     */
+    FileConnection getFirstSegment() throws IOException {
+        boolean moved = false;
+        try {
+            // Segments might have been deleted by their reader
+            for (; head < tail; head++, moved = true) {
+                if (queue.sizeOf(0) > 0) {
+                    return openSegment(head);
+                }
+                queue.removeFirstSize();
+                offset = 0;
+            }
+        } finally {
+            if (moved) {
+                writeIndex();
+            }
+        }
+        if (queue.sizeOf(0) > offset) {
+            return openSegment(tail);
+        }
+        return null;
+    }
+
+    /**
+     * Get the segment to append to.
+     *
+     * @return Last segment or null if the segments are full
+     */
+    FileConnection findNextSegment() throws IOException {
+        if (queue.lastSize() >= maxFileSize) {
+            // Compacted segments are smaller, the size of all of them is limited
+            if (queue.filesSize() >= (long) maxFileNb * maxFileSize) {
+                return null;
+            }
+            tail++;
+            queue.addSize(-1);
+        }
+        return openSegment(tail);
+    }
+
+    /**
+     * Delete a segment.
+     *
+     * @param nb Number of the segment
+     */
+    void deleteSegment(int nb) throws IOException {
+        int i = nb - head;
+        if (i >= 0 && i < queue.nbSizes() && queue.sizeOf(i) >= 0) {
+            FileConnection fc = openSegment(nb);
+            if (Logger.BUILD_DEBUG) {
+                Logger.log(this + ".deleteSegment: Deleting " + fc.getURL() + "...");
+            }
+            fc.delete();
+            queue.setSize(i, -1);
+            queue.rotated();
+        }
+        if (nb == head) {
+            boolean moved = offset > 0;
+            offset = 0;
+            if (head < tail) {
+                head++;
+                queue.removeFirstSize();
+                moved = true;
+            }
+            if (moved) {
+                writeIndex();
+            }
+        }
+        queue.updateMetrics();
+    }
+
+    /**
+     * Acknowledge the records of a segment preceding an offset.
+     *
+     * Only the first segment has a read cursor. When only the final commit
+     * record follows the offset, the segment is deleted.
+     *
+     * @param nb Number of the segment
+     * @param position Offset following the last acknowledged record
+     * @param generation Number of compactions when the reader was created, the
+     * offsets of the previous versions of a segment are ignored
+     */
+    void acknowledge(int nb, long position, int generation) throws IOException {
+        if (nb != head || position <= offset || generation != compactions) {
+            return;
+        }
+        if (position + RecordCodec.COMMIT_SIZE >= queue.sizeOf(0) && head < tail) {
+            deleteSegment(nb);
+        } else {
+            offset = position;
+            writeIndex();
+            queue.updateMetrics();
+        }
+    }
+
+    /**
+     * Delete the segments and the index.
+     */
+    void deleteEverything() throws IOException {
+        for (int i = 0; i < queue.nbSizes(); i++) {
+            if (queue.sizeOf(i) >= 0) {
+                openSegment(head + i).delete();
+            }
+        }
+        FileConnection index = (FileConnection) Connector.open("file:///a:/" + dirName + "/" + INDEX_FILE);
+        if (index.exists()) {
+            index.delete();
+        }
+        head = tail = 0;
+        offset = 0;
+        compacting = -1;
+    }
+
+    /**
+     * Evict records from the segments until some room was made.
+     *
+     * The segments are compacted oldest first, for each level: the expired
+     * records (level -1), then the records up to each priority. The content
+     * of the segments isn't known after a restart, they are read by the first
+     * eviction.
+     *
+     * @param maxLevel Highest priority that can be evicted, -1 for the expired
+     * records only
+     * @return true if some room was made
+     */
+    boolean evict(int maxLevel) throws IOException {
+        long now = System.currentTimeMillis() / 1000;
+        long budget = (long) maxFileNb * maxFileSize;
+        for (int level = -1; level <= maxLevel; level++) {
+            for (int i = 0; i < queue.nbSizes(); i++) {
+                if (!queue.info(i).hasCandidates(level, now)) {
+                    continue;
+                }
+                long before = queue.filesSize();
+                int nb = queue.nbSizes();
+                compact(head + i, level, now);
+                if (queue.filesSize() < before && queue.filesSize() < budget) {
+                    return true;
+                }
+                if (queue.nbSizes() < nb) {
+                    // The first segment was deleted
+                    i--;
+                }
+            }
+        }
+        if (Logger.BUILD_NOTICE) {
+            Logger.log(this + ".evict: Nothing to evict up to level " + maxLevel);
+        }
+        return false;
+    }
+
+    /**
+     * Rewrite a segment without its expired records and the records up to a
+     * priority.
+     *
+     * The compacted segment is written in a temporary file that replaces the
+     * segment. The index tells which segment is being replaced so that an
+     * interrupted replacement is completed when the queue is opened.
+     *
+     * @param nb Number of the segment
+     * @param level Highest priority to remove, -1 for the expired records only
+     * @param now Current time (seconds since 1970)
+     */
+    private void compact(int nb, int level, long now) throws IOException {
+        int i = nb - head;
+        FileConnection fc = openSegment(nb);
+        RecordCodec c = getCodec();
+        c.reset();
+        c.resetChannels();
+        // Channels are defined again in the compacted segment
+        channelsSegment = -1;
+        SafeQueue.FileInfo info = new SafeQueue.FileInfo(0);
+        int expired = 0, evicted = 0;
+        boolean acknowledged = i == 0 && offset > 0;
+        RecordCodec decoder = new RecordCodec(0);
+        DataInputStream dis = fc.openDataInputStream();
+        try {
+            if (acknowledged) {
+                decoder.skipTo(dis, offset);
+            }
+            SafeQueueRecord record;
+            while ((record = decoder.decode(dis)) != null) {
+                if (record.isExpired(now)) {
+                    expired++;
+                } else if (record.priority <= level) {
+                    evicted++;
+                } else {
+                    c.encode(record);
+                    info.add(record);
+                }
+            }
+        } finally {
+            dis.close();
+        }
+        info.time = queue.info(i).time;
+        if (expired + evicted == 0 && !acknowledged) {
+            // Nothing to remove, we now know what it contains
+            info.size = queue.sizeOf(i);
+            queue.setInfo(i, info);
+            return;
+        }
+        if (Logger.BUILD_DEBUG) {
+            Logger.log(this + ".compact: Segment " + nb + ": " + expired + " expired, " + evicted + " evicted");
+        }
+        queue.expired(expired);
+        queue.evicted(evicted);
+        compactions++;
+        if (c.len == 0) {
+            deleteSegment(nb);
+            return;
+        }
+        if (compression) {
+            c.compress(0);
+        }
+        c.commit(0);
+        try {
+            FileConnection tmp = (FileConnection) Connector.open("file:///a:/" + dirName + "/" + COMPACT_FILE);
+            if (tmp.exists()) {
+                // Left by an interrupted compaction
+                tmp.delete();
+            }
+            tmp.create();
+            OutputStream os = tmp.openOutputStream();
+            try {
+                os.write(c.buf, 0, c.len);
+            } finally {
+                os.close();
+            }
+            compacting = nb;
+            writeIndex();
+            fc.delete();
+            tmp.rename(nb + SEGMENT_EXTENSION);
+            compacting = -1;
+            if (i == 0) {
+                offset = 0;
+            }
+            writeIndex();
+        } catch (IOException ex) {
+            // The compaction is completed when the state is loaded again
+            queue.unloadState();
+            throw ex;
+        }
+        info.size = c.len;
+        queue.setInfo(i, info);
+    }
+
+    /**
+     * Complete the replacement of a segment by its compacted version.
+     */
+    private void recoverCompaction() throws IOException {
+        FileConnection tmp = (FileConnection) Connector.open("file:///a:/" + dirName + "/" + COMPACT_FILE);
+        if (tmp.exists()) {
+            if (Logger.BUILD_WARNING) {
+                Logger.log(this + ".recoverCompaction: Replacing segment " + compacting);
+            }
+            FileConnection fc = openSegment(compacting);
+            if (fc.exists()) {
+                fc.delete();
+            }
+            tmp.rename(compacting + SEGMENT_EXTENSION);
+        }
+        if (compacting == head) {
+            offset = 0;
+        }
+        compacting = -1;
+        writeIndex();
+    }
+
+    public String toString() {
+        return "SegmentStorage:" + dirName;
+    }
+}
@@ -0,0 +1,98 @@
+package org.javacint.console;
+
+import java.io.InputStream;
+import java.io.PrintStream;
+import org.javacint.at.ATResponseParser;
+import org.javacint.common.Strings;
+
+/**
+ * AT responses parsing micro-benchmark.
+ *
+ * Compares the Strings.split based parsing with the ATResponseParser on canned
+ * AT+CSQ, AT^SCTM? and AT^SBV responses. The allocations are measured from the
+ * free memory, they are only exact when no garbage collection happens during a
+ * run (keep the number of iterations low).
+ *
+ * This command is only intended for testing.
+ */
+public class ATParserBenchCommand implements ConsoleCommand {
+
+    private static final String CSQ = "AT+CSQ\r\r\n+CSQ: 20,99\r\n\r\nOK\r\n";
+    private static final String SCTM = "AT^SCTM?\r\r\n^SCTM: 1,0,34\r\n\r\nOK\r\n";
+    private static final String SBV = "AT^SBV\r\r\n^SBV: 12034\r\n\r\nOK\r\n";
+    private int sink;
+
+    public boolean consoleCommand(String command, InputStream is, PrintStream out) {
+        if (command.equals("bench atparser")) {
+            bench(out, 100);
+            return true;
+        } else if (command.startsWith("bench atparser ")) {
+            bench(out, Integer.parseInt(command.substring("bench atparser ".length())));
+            return true;
+        } else if (command.equals("help")) {
+            out.println("[HELP] bench atparser [<n>]             - AT responses parsing benchmark");
+        }
+        return false;
+    }
+
+    private void bench(PrintStream out, int n) {
+        for (int pass = 0; pass < 2; pass++) {
+            boolean split = (pass == 0);
+            Runtime rt = Runtime.getRuntime();
+            System.gc();
+            long free = rt.freeMemory();
+            long time = System.currentTimeMillis();
+            ATResponseParser parser = new ATResponseParser();
+            for (int i = 0; i < n; i++) {
+                if (split) {
+                    sink += splitCsq(CSQ) + splitSctm(SCTM) + splitSbv(SBV);
+                } else {
+                    sink += parseCsq(parser, CSQ) + parseSctm(parser, SCTM) + parseSbv(parser, SBV);
+                }
+            }
+            time = System.currentTimeMillis() - time;
+            long allocated = free - rt.freeMemory();
+            out.println("[BENCH] " + (split ? "split " : "parser") + " : " + n + " x 3 responses in " + time + "ms, "
+                    + (allocated / n) + " bytes/iteration" + (allocated < 0 ? " (GC happened, lower n)" : ""));
+        }
+    }
+
+    // The previous, Strings.split based, parsing code
+    private static int splitCsq(String ret) {
+        String tab[] = Strings.split('\n', ret);
+        tab = Strings.split(',', tab[1].substring(6).trim());
+        return Integer.parseInt(tab[0]);
+    }
+
+    private static int splitSctm(String ret) {
+        String tab[] = Strings.split('\n', ret.trim());
+        tab = Strings.split(':', tab[1]);
+        tab = Strings.split(',', tab[1]);
+        return Integer.parseInt(tab[2]);
+    }
+
+    private static int splitSbv(String ret) {
+        String[] spl = Strings.split('\n', ret);
+        return Integer.parseInt(spl[1].trim().substring("^SBV: ".length()));
+    }
+
+    // The ATResponseParser based parsing code
+    private static int parseCsq(ATResponseParser p, String ret) {
+        p.reset(ret).line(1);
+        p.skip("+CSQ:");
+        return p.readInt();
+    }
+
+    private static int parseSctm(ATResponseParser p, String ret) {
+        p.reset(ret).line(1);
+        p.skipTo(':');
+        p.skipFields(2);
+        return p.readInt();
+    }
+
+    private static int parseSbv(ATResponseParser p, String ret) {
+        p.reset(ret).line(1);
+        p.skip("^SBV:");
+        return p.readInt();
+    }
+}
@@ -0,0 +1,76 @@
+package org.javacint.console;
+
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.util.Enumeration;
+import java.util.Vector;
+import org.javacint.common.safequeue.SafeQueue;
+import org.javacint.common.safequeue.SafeQueueMetrics;
+import org.javacint.watchdog.WatchdogStatusProvider;
+
+/**
+ * Show the metrics of safe queues.
+ *
+ * It can also be added to the watchdog manager: the status is an error when
+ * the oldest record of a queue is too old or when its files are too full (the
+ * data isn't sent anymore).
+ */
+public class SafeQueueCommand implements ConsoleCommand, WatchdogStatusProvider {
+
+    private final Vector queues = new Vector();
+    private final int maxAge;
+    private final int maxUsage;
+
+    /**
+     * Constructor without watchdog limits.
+     */
+    public SafeQueueCommand() {
+        this(0, 0);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param maxAge Maximum age (s) of the oldest record, 0 for no limit
+     * @param maxUsage Maximum usage (%) of the files, 0 for no limit
+     */
+    public SafeQueueCommand(int maxAge, int maxUsage) {
+        this.maxAge = maxAge;
+        this.maxUsage = maxUsage;
+    }
+
+    /**
+     * Add a queue.
+     *
+     * @param queue Queue
+     */
+    public void add(SafeQueue queue) {
+        queues.addElement(queue);
+    }
+
+    public String getWorkingStatus() {
+        for (Enumeration en = queues.elements(); en.hasMoreElements();) {
+            SafeQueueMetrics metrics = ((SafeQueue) en.nextElement()).getMetrics();
+            if (maxAge > 0 && metrics.getOldestAge() > maxAge) {
+                return "Queue " + metrics.name + " not sent for " + metrics.getOldestAge() + "s";
+            }
+            if (maxUsage > 0 && metrics.getFlashUsage() > maxUsage) {
+                return "Queue " + metrics.name + " files " + metrics.getFlashUsage() + "% full";
+            }
+        }
+        return null;
+    }
+
+    public boolean consoleCommand(String command, InputStream is, PrintStream out) {
+        if (command.equals("queues")) {
+            for (Enumeration en = queues.elements(); en.hasMoreElements();) {
+                SafeQueueMetrics metrics = ((SafeQueue) en.nextElement()).getMetrics();
+                out.println("[QUEUE] " + metrics.name + ": " + metrics);
+            }
+            return true;
+        } else if (command.equals("help")) {
+            out.println("[HELP] queues                           - Show the queues metrics");
+        }
+        return false;
+    }
+}
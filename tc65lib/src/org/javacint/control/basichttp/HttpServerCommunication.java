@@ -1,5 +1,6 @@
 package org.javacint.control.basichttp;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
@@ -11,7 +12,9 @@ import javax.microedition.io.Connector;
 import javax.microedition.io.HttpConnection;
 import org.javacint.at.ATExecution;
 import org.javacint.common.BufferedReader;
+import org.javacint.common.LZ4;
 import org.javacint.common.safequeue.SafeQueue;
+import org.javacint.common.safequeue.SafeQueueLineReader;
 import org.javacint.logging.Logger;
 import org.javacint.logging.LoggingReceiver;
 import org.javacint.settings.Settings;
@@ -57,6 +60,11 @@ public class HttpServerCommunication implements SettingsProvider, LoggingReceive
     private final Thread thread = new Thread(this, "htt");
     private static final int FILE_SIZE = 4096;
     private static final int TOTAL_RESERVED_SIZE = 512 * 1024;
+    /**
+     * Maximum time (ms) to wait for the queue flush thread before dropping
+     * lines
+     */
+    private static final int FLUSH_MAX_WAIT = 5000;
     private SafeQueue queue = new SafeQueue("http", 30, TOTAL_RESERVED_SIZE / FILE_SIZE, FILE_SIZE);
     private final Vector dataToSend = new Vector();
     private long waitBeforeReceive = 1;
@@ -70,6 +78,21 @@ public class HttpServerCommunication implements SettingsProvider, LoggingReceive
     private final String SETTING_HTTP_URL = "http.url";
     private final String SETTING_HTTP_WAIT_MAX = "http.waitmax";
     private final String SETTING_HTTP_WAIT_MIN = "http.waitmin";
+    private final String SETTING_HTTP_CHUNK = "http.chunk";
+    private final String SETTING_HTTP_COMPRESS = "http.compress";
+    /**
+     * Maximum size of the lines sent in one request
+     */
+    private int chunkSize;
+    /**
+     * Requests bodies are compressed
+     */
+    private boolean compress;
+    private LZ4 lz4;
+    /**
+     * Body of the compressed requests
+     */
+    private final ByteArrayOutputStream body = new ByteArrayOutputStream();
     private String ident;
     private Vector receivers = new Vector();
     private String serverUrl;
@@ -102,9 +125,13 @@ public class HttpServerCommunication implements SettingsProvider, LoggingReceive
         Settings.addProvider(this);
         Logger.setLoggingReceiver(this);
         thread.setPriority(Thread.MIN_PRIORITY);
+        queue.setSegmented(true); // With 128 files, rotating them would be way too slow
         parseSetting(SETTING_HTTP_LOG);
         parseSetting(SETTING_HTTP_WAIT_MIN);
         parseSetting(SETTING_HTTP_WAIT_MAX);
+        parseSetting(SETTING_HTTP_CHUNK);
+        parseSetting(SETTING_HTTP_COMPRESS);
+        queue.setCompression(true);
         receivers.addElement(new CommandsReceiver());
     }
 
@@ -116,6 +143,24 @@ public class HttpServerCommunication implements SettingsProvider, LoggingReceive
         receivers.removeElement(receiver);
     }
 
+    private void writeBody(OutputStream os, Vector lines, SafeQueueLineReader reader) throws IOException {
+        if (reader != null) {
+            int size = reader.writeTo(os, chunkSize);
+            if (LOG) {
+                Logger.log("HTTP --> " + size + " bytes of " + reader);
+            }
+            return;
+        }
+        for (Enumeration en = lines.elements(); en.hasMoreElements();) {
+            String line = (String) en.nextElement();
+            if (LOG) {
+                Logger.log("HTTP --> " + line);
+            }
+            os.write(line.getBytes());
+            os.write('\n');
+        }
+    }
+
     /**
      * Perform an HTTP request
      *
@@ -127,13 +172,26 @@ public class HttpServerCommunication implements SettingsProvider, LoggingReceive
      * you have to use a front-end server.
      */
     public Vector httpRequest(String url, Vector lines) {
+        return httpRequest(url, lines, null);
+    }
+
+    /**
+     * Perform an HTTP request
+     *
+     * @param url Destination URL
+     * @param lines Lines to send
+     * @param reader Queue reader whose lines are sent (up to the chunk size)
+     * instead of the lines. They are written directly in the request.
+     * @return Lines of the answer
+     */
+    private Vector httpRequest(String url, Vector lines, SafeQueueLineReader reader) {
         lastRequestTime = System.currentTimeMillis() / 1000;
         if (lines == null) {
             lines = new Vector();
         }
 
         if (LOG) {
-            Logger.log("HTTP.httpRequest( \"" + url + "\", Vector.size()=" + lines.size() + " );");
+            Logger.log("HTTP.httpRequest( \"" + url + "\", " + (reader != null ? reader.toString() : "Vector.size()=" + lines.size()) + " );");
         }
         Vector vector = null;
 
@@ -147,15 +205,25 @@ public class HttpServerCommunication implements SettingsProvider, LoggingReceive
             conn = (HttpConnection) Connector.open(url);
             conn.setRequestMethod(HttpConnection.POST);
             conn.setRequestProperty("Content-Type", "application/x-www-form-urlencoded");
-            os = conn.openOutputStream();
 
-            for (Enumeration en = lines.elements(); en.hasMoreElements();) {
-                String line = (String) en.nextElement();
-                if (LOG) {
-                    Logger.log("HTTP --> " + line);
+            if (compress) {
+                // The body is compressed in one LZ4 block, the server needs the uncompressed size to decompress it
+                body.reset();
+                writeBody(body, lines, reader);
+                byte[] data = body.toByteArray();
+                if (data.length > 0) {
+                    if (lz4 == null) {
+                        lz4 = new LZ4();
+                    }
+                    conn.setRequestProperty("Content-Encoding", "x-lz4-block");
+                    conn.setRequestProperty("X-Uncompressed-Length", "" + data.length);
+                    data = lz4.compress(data);
                 }
-                os.write(line.getBytes());
-                os.write('\n');
+                os = conn.openOutputStream();
+                os.write(data);
+            } else {
+                os = conn.openOutputStream();
+                writeBody(os, lines, reader);
             }
 
             if (LOG) {
@@ -264,6 +332,10 @@ public class HttpServerCommunication implements SettingsProvider, LoggingReceive
             waitBeforeReceive = Settings.getInt(SETTING_HTTP_WAIT_MAX);
         } else if (name.compareTo(SETTING_HTTP_WAIT_MIN) == 0) {
             waitBeforeSend = Settings.getInt(SETTING_HTTP_WAIT_MIN);
+        } else if (name.compareTo(SETTING_HTTP_CHUNK) == 0) {
+            chunkSize = Settings.getInt(SETTING_HTTP_CHUNK);
+        } else if (name.compareTo(SETTING_HTTP_COMPRESS) == 0) {
+            compress = Settings.getBool(SETTING_HTTP_COMPRESS);
         } else if (name.compareTo(SETTING_HTTP_URL) == 0) {
             url = Settings.get(SETTING_HTTP_URL) + "/tc65?ident=" + ident;
         } else if (name.compareTo(SETTING_HTTP_LOG) == 0) {
@@ -276,6 +348,8 @@ public class HttpServerCommunication implements SettingsProvider, LoggingReceive
         settings.put(SETTING_HTTP_URL, serverUrl);
         settings.put(SETTING_HTTP_WAIT_MAX, "900");
         settings.put(SETTING_HTTP_WAIT_MIN, "1");
+        settings.put(SETTING_HTTP_CHUNK, "4096");
+        settings.put(SETTING_HTTP_COMPRESS, "0");
         settings.put(SETTING_HTTP_LOG, "1");
     }
 
@@ -421,9 +495,12 @@ public class HttpServerCommunication implements SettingsProvider, LoggingReceive
                 parseSetting(SETTING_HTTP_LOG);
                 parseSetting(SETTING_HTTP_WAIT_MAX);
                 parseSetting(SETTING_HTTP_WAIT_MIN);
+                parseSetting(SETTING_HTTP_CHUNK);
+                parseSetting(SETTING_HTTP_COMPRESS);
 
                 while (loop) {
                     Vector received = null;
+                    SafeQueueLineReader reader = null;
 
                     long time = System.currentTimeMillis() / 1000;
 
@@ -442,9 +519,19 @@ public class HttpServerCommunication implements SettingsProvider, LoggingReceive
                         if (LOG) {
                             Logger.log("HTTP: Sending data");
                         }
-                        received = httpRequest(url, queue.
-                                getFirstItemsSetWaiting().
-                                toVector());
+                        // The memory is being saved by the flush thread, the records
+                        // are read and acknowledged from the files (unless they can't
+                        // be saved)
+                        reader = queue.saveMemoryInFile() ? queue.getFirstItemsSetWaitingFile() : queue.getFirstItemsSetWaiting();
+                        if (reader != null) {
+                            // Only the lines sent are acknowledged, the next request continues after them
+                            received = httpRequest(url, null, reader);
+                            if (received == null) {
+                                // They weren't delivered
+                                reader.close();
+                                reader = null;
+                            }
+                        }
                     }
 
 
@@ -459,7 +546,9 @@ public class HttpServerCommunication implements SettingsProvider, LoggingReceive
                     if (received != null && received.size() > 0) {
                         String lastLine = (String) received.lastElement();
                         if (lastLine.compareTo("OK") == 0) {
-                            queue.deleteFirstItemsListWaiting();
+                            if (reader != null) {
+                                reader.acknowledge();
+                            }
                             treatReceivedLines(received);
                             waitBecauseOfError = 0;
                         } else {
@@ -467,6 +556,10 @@ public class HttpServerCommunication implements SettingsProvider, LoggingReceive
                         }
                     }
 
+                    if (reader != null) {
+                        reader.close();
+                    }
+
                     if (received != null) {
                         sleep((waitBeforeSend + waitBecauseOfError) * 1000);
                     } else {
@@ -485,7 +578,7 @@ public class HttpServerCommunication implements SettingsProvider, LoggingReceive
             waitBecauseOfError = 900;
         }
         // When the thread ends, we save memory content to file
-        queue.saveMemoryInFile();
+        queue.stopFlushThread();
     }
 // === /Runnable ===
 
@@ -513,6 +606,8 @@ public class HttpServerCommunication implements SettingsProvider, LoggingReceive
      */
     public void start() {
         loop = true;
+        // The lines are saved without blocking this thread
+        queue.startFlushThread(FLUSH_MAX_WAIT);
         synchronized (thread) {
             thread.start();
         }
@@ -546,6 +641,15 @@ public class HttpServerCommunication implements SettingsProvider, LoggingReceive
         queue.deleteEverything();
     }
 
+    /**
+     * Get the queue of the lines to send
+     *
+     * @return Queue
+     */
+    public SafeQueue getQueue() {
+        return queue;
+    }
+
     public String toString() {
         return "HttpServerCommunication";
     }
@@ -8,6 +8,7 @@ import org.javacint.at.ATCommands;
 import org.javacint.at.ATExecution;
 import org.javacint.common.Bytes;
 import org.javacint.common.Vectors;
+import org.javacint.common.safequeue.SafeQueue;
 import org.javacint.control.m2mp.data.Event;
 import org.javacint.control.m2mp.data.Message;
 import org.javacint.control.m2mp.data.NamedData;
@@ -32,10 +33,30 @@ public class M2MPClientImpl implements M2MPClient, SettingsProvider, M2MPEventsL
     static final String SETTING_M2MP_LOG = "m2mp.log";
     static final String SETTING_M2MP_SERVERS = "m2mp.servers";
     static final String SETTING_M2MP_KEEPALIVE = "m2mp.keepalive";
+    /**
+     * Time (ms) the messages wait for the next ones to be sent with them
+     */
+    static final String SETTING_M2MP_LINGER = "m2mp.linger";
+    /**
+     * Maximum number of messages waiting to be sent (256 by default)
+     */
+    static final String SETTING_M2MP_OUT_SIZE = "m2mp.out.size";
+    /**
+     * What happens when too many messages are waiting to be sent: "block" (the
+     * sender waits), "drop" (the default: the oldest message is dropped, it's
+     * never sent) or "spill" (the data is added to the spill queue, see
+     * setSpillQueue)
+     */
+    static final String SETTING_M2MP_OUT_POLICY = "m2mp.out.policy";
+    private SafeQueue spillQueue;
     private static final String CHANNEL_SETTING = "_set";
     private static final String CHANNEL_STATUS = "_sta";
     private static final String CHANNEL_COMMAND = "_cmd";
     private static final String STATUS_CAPABILITIES = "cap";
+    /**
+     * Status of the outbound queue: messages waiting, dropped and spilled
+     */
+    private static final String STATUS_OUT = "out";
 
     /**
      * Constructor
@@ -97,6 +118,18 @@ public class M2MPClientImpl implements M2MPClient, SettingsProvider, M2MPEventsL
         this.listener = listener;
     }
 
+    /**
+     * Define the listener receiving the data without copies.
+     *
+     * The data of the internal channels and the data it doesn't consume are
+     * still received as events.
+     *
+     * @param dataListener Listener
+     */
+    public void setDataListener(M2MPDataListener dataListener) {
+        network.setDataListener(dataListener);
+    }
+
     //int errorCounter = 0;
     private boolean onReceivedData(String channelName, byte[][] data) {
         try {
@@ -128,7 +161,7 @@ public class M2MPClientImpl implements M2MPClient, SettingsProvider, M2MPEventsL
             String statusName = new String(data[1]);
             Vector response = new Vector();
             response.addElement("g");
-            String value = (String) statuses.get(statusName);
+            String value = getStatus(statusName);
             if (value == null) {
                 value = "";
             }
@@ -268,6 +301,9 @@ public class M2MPClientImpl implements M2MPClient, SettingsProvider, M2MPEventsL
         parseSetting(SETTING_M2MP_LOG);
         parseSetting(SETTING_M2MP_SERVERS);
         parseSetting(SETTING_M2MP_KEEPALIVE);
+        parseSetting(SETTING_M2MP_LINGER);
+        parseSetting(SETTING_M2MP_OUT_SIZE);
+        parseSetting(SETTING_M2MP_OUT_POLICY);
         if (getIdent() == null) {
             throw new Exception("Ident must be defined !");
         }
@@ -308,6 +344,9 @@ public class M2MPClientImpl implements M2MPClient, SettingsProvider, M2MPEventsL
         settings.put(SETTING_M2MP_LOG, "0");
         settings.put(SETTING_M2MP_SERVERS, "188.165.213.210:3000,188.165.213.210:3010");
         settings.put(SETTING_M2MP_KEEPALIVE, "1200");
+        settings.put(SETTING_M2MP_LINGER, "0");
+        settings.put(SETTING_M2MP_OUT_SIZE, "" + NetworkHandler.QUEUE_SIZE);
+        settings.put(SETTING_M2MP_OUT_POLICY, "drop");
     }
 
     protected void parseSetting(String settingName) {
@@ -315,6 +354,12 @@ public class M2MPClientImpl implements M2MPClient, SettingsProvider, M2MPEventsL
             M2MPClientImpl.m2mpLog_ = Settings.getBool(SETTING_M2MP_LOG);
         } else if (settingName.equals(SETTING_M2MP_KEEPALIVE)) {
             network.setKeepAlive(Settings.getInt(SETTING_M2MP_KEEPALIVE));
+        } else if (settingName.equals(SETTING_M2MP_LINGER)) {
+            network.setLinger(Settings.getInt(SETTING_M2MP_LINGER));
+        } else if (settingName.equals(SETTING_M2MP_OUT_SIZE)) {
+            network.setQueueSize(Settings.getInt(SETTING_M2MP_OUT_SIZE));
+        } else if (settingName.equals(SETTING_M2MP_OUT_POLICY)) {
+            applyOutPolicy();
         }
     }
 
@@ -338,6 +383,62 @@ public class M2MPClientImpl implements M2MPClient, SettingsProvider, M2MPEventsL
         statuses.put(name, value);
     }
 
+    /**
+     * Define the queue receiving the data that couldn't be queued for sending,
+     * with the "spill" policy. The application has to send it later.
+     *
+     * @param queue Queue
+     */
+    public void setSpillQueue(SafeQueue queue) {
+        spillQueue = queue;
+        applyOutPolicy();
+    }
+
+    private void applyOutPolicy() {
+        String policy = Settings.get(SETTING_M2MP_OUT_POLICY);
+        if ("block".equals(policy)) {
+            network.setQueuePolicy(MessageQueue.POLICY_BLOCK, null);
+        } else if (("spill".equals(policy) || !canDropMessages()) && spillQueue != null) {
+            network.setQueuePolicy(MessageQueue.POLICY_SPILL, spillQueue);
+        } else {
+            network.setQueuePolicy(MessageQueue.POLICY_DROP_OLDEST, null);
+        }
+    }
+
+    /**
+     * Check if the oldest messages can be dropped when too many messages are
+     * waiting to be sent ("drop" policy).
+     *
+     * @return false to add them to the spill queue instead
+     */
+    boolean canDropMessages() {
+        return true;
+    }
+
+    /**
+     * Get a status requested by the server
+     *
+     * @param name Name of the status
+     * @return Value of the status, null if it's not defined
+     */
+    protected String getStatus(String name) {
+        if (STATUS_OUT.equals(name)) {
+            MessageQueue queue = network.getQueue();
+            return "size=" + queue.size() + ",dropped=" + queue.getNbDropped() + ",spilled=" + queue.getNbSpilled();
+        }
+        return (String) statuses.get(name);
+    }
+
+    /**
+     * Send a status to the server
+     *
+     * @param name Name of the status
+     * @param value Value of the status
+     */
+    public void sendStatus(String name, String value) {
+        send(new NamedDataArray(CHANNEL_STATUS, new String[]{"g", name + "=" + value}));
+    }
+
     public void sendCapabilities() {
         send(new NamedData(CHANNEL_STATUS, (String) statuses.get(STATUS_CAPABILITIES)));
     }
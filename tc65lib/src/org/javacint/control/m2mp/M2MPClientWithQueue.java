@@ -1,14 +1,15 @@
 package org.javacint.control.m2mp;
 
-import java.io.IOException;
 import java.util.Hashtable;
 import java.util.TimerTask;
 import java.util.Vector;
-import org.javacint.common.Base64;
 import org.javacint.common.Bytes;
 import org.javacint.common.safequeue.SafeQueue;
 import org.javacint.common.safequeue.SafeQueueLineReader;
 import org.javacint.control.m2mp.data.AcknowledgeRequest;
+import org.javacint.control.m2mp.data.AcknowledgeResponse;
+import org.javacint.control.m2mp.data.Disconnected;
+import org.javacint.control.m2mp.data.Event;
 import org.javacint.control.m2mp.data.Message;
 import org.javacint.control.m2mp.data.NamedData;
 import org.javacint.control.m2mp.data.NamedDataArray;
@@ -18,6 +19,14 @@ import org.javacint.task.Timers;
 import org.javacint.time.DateManagement;
 
 /**
+ * M2MP client keeping the data until the server acknowledged it.
+ *
+ * The real-time data and the data of the queue (replayed by QueueReplay) are
+ * sent together, within a window of acknowledge requests. The data that wasn't
+ * acknowledged in time is added to the queue.<br />
+ * The messages are never dropped from the outbound queue: when it's full, the
+ * data is added to the queue (unless the "block" policy is chosen). The window
+ * is limited to what fits in the outbound queue.
  *
  * @author Florent Clairambault / www.webingenia.com
  */
@@ -25,146 +34,217 @@ public class M2MPClientWithQueue extends M2MPClientImpl {
 
     private final Vector queue = new Vector();
     private final SafeQueue safeQueue = new SafeQueue("m2mp");
-    private int dataSent = 0;
+    /**
+     * Real-time messages sent since the last acknowledge request
+     */
+    private final Vector sent = new Vector();
     private static final int LIMIT_BEFORE_ACK = 10;
-    private long stateStartedTime = System.currentTimeMillis();
-    private byte currentState;
-    private static final byte STATE_SENDING_RT = 0;
-//	private static final long TIME_SENDING_RT = 7200000;
-    private static final byte STATE_SENDING_QUEUE = 1;
-    private static final long TIME_SENDING_QUEUE = 60000;
-    private static final byte STATE_WAITING_FOR_ACK_RT = 2;
-    private static final byte STATE_WAITING_FOR_ACK_QUEUE = 3;
     private static final long TIME_WAITING_FOR_ACK = 30000;
+    /**
+     * Time (ms) the last real-time messages wait for the next ones before
+     * their acknowledge request (at least TIME_BEFORE_ACK, or the linger time)
+     */
+    private static final long TIME_BEFORE_ACK = 2000;
+    private long ackDelay = TIME_BEFORE_ACK;
+    private long sentTime;
     private static final String SETTING_M2MP_LOGQUEUE = "m2mp.log.queue";
     private boolean logQueue = false;
+    private static final String SETTING_M2MP_COMPRESS_QUEUE = "m2mp.queue.compress";
+    /**
+     * Status of the queue metrics, sent when the queue starts being sent and
+     * once it was all sent
+     */
+    private static final String STATUS_QUEUE = "queue";
+    private boolean queueStatusSent;
+    private static final String SETTING_M2MP_QUEUE_WINDOW = "m2mp.queue.window";
+    /**
+     * Maximum number of acknowledge requests waiting for their response
+     */
+    private int windowSize = 4;
+    /**
+     * Acknowledge requests waiting for their response, oldest first
+     */
+    private final Vector window = new Vector();
+    private int requestNb;
+    /**
+     * Share (%) of the bytes sent used by the queue when there's some
+     * real-time data to send as well
+     */
+    private static final String SETTING_M2MP_QUEUE_SHARE = "m2mp.queue.share";
+    private int share = 50;
+    /**
+     * Maximum bytes per second of the queue, 0 for no limit
+     */
+    private static final String SETTING_M2MP_QUEUE_RATE = "m2mp.queue.rate";
+    private final QueueReplay replay = new QueueReplay(this, safeQueue);
+    /**
+     * Bytes of real-time and queue data sent while both had some data
+     */
+    private long rtBytes, queueBytes;
+    /**
+     * An ack was received since the connection, the queue can be sent
+     */
+    private boolean linkConfirmed;
+    /**
+     * The only task scheduled to run work(), and the time it runs
+     */
+    private WorkState wakeUpTask;
+    private long wakeUpTime;
+    private final Object wakeUpLock = new Object();
+
+    /**
+     * Acknowledge request waiting for its response, and what it acknowledges:
+     * some real-time messages, or the records of the queue read up to a mark.
+     * The server answers them in order, a response acknowledges the previous
+     * requests as well.
+     */
+    static class PendingAck {
+
+        final byte nb;
+        final long time = System.currentTimeMillis();
+        Vector messages;
+        SafeQueueLineReader reader;
+        long mark;
+
+        PendingAck(byte nb) {
+            this.nb = nb;
+        }
+    }
 
     protected void parseSetting(String settingName) {
         super.parseSetting(settingName);
         if (SETTING_M2MP_LOGQUEUE.equals(settingName)) {
             logQueue = Settings.getBool(settingName);
+        } else if (SETTING_M2MP_COMPRESS_QUEUE.equals(settingName)) {
+            replay.setCompression(Settings.getBool(settingName));
+        } else if (SETTING_M2MP_QUEUE_WINDOW.equals(settingName)) {
+            // The sequence numbers of the window are 0x80 to 0xFF
+            windowSize = Math.max(1, Math.min(Settings.getInt(settingName), 127));
+        } else if (SETTING_M2MP_QUEUE_SHARE.equals(settingName)) {
+            share = Math.max(0, Math.min(Settings.getInt(settingName), 100));
+        } else if (SETTING_M2MP_QUEUE_RATE.equals(settingName)) {
+            replay.setRate(Settings.getInt(settingName));
+        } else if (SETTING_M2MP_LINGER.equals(settingName)) {
+            ackDelay = Math.max(TIME_BEFORE_ACK, Settings.getInt(settingName));
         }
     }
 
     public void getDefaultSettings(Hashtable settings) {
         super.getDefaultSettings(settings);
         settings.put(SETTING_M2MP_LOGQUEUE, "0");
+        settings.put(SETTING_M2MP_COMPRESS_QUEUE, "0");
+        settings.put(SETTING_M2MP_QUEUE_WINDOW, "4");
+        settings.put(SETTING_M2MP_QUEUE_SHARE, "50");
+        settings.put(SETTING_M2MP_QUEUE_RATE, "0");
     }
 
-    private static String stateToString(byte state) {
-        switch (state) {
-            case STATE_SENDING_RT:
-                return "SENDING_RT";
-            case STATE_SENDING_QUEUE:
-                return "SENDING_QUEUE";
-            case STATE_WAITING_FOR_ACK_RT:
-                return "WAITING_FOR_ACK_RT";
-            case STATE_WAITING_FOR_ACK_QUEUE:
-                return "WAITING_FOR_ACK_QUEUE";
-        }
-        return null;
+    /**
+     * Send an acknowledge request, it's added to the window.
+     *
+     * @return Acknowledge request
+     */
+    PendingAck requestAck() {
+        PendingAck ack = new PendingAck((byte) (0x80 | (requestNb++ & 0x7F)));
+        window.addElement(ack);
+        send(new AcknowledgeRequest(ack.nb));
+        return ack;
+    }
+
+    /**
+     * Check if the last real-time messages waited long enough for their
+     * acknowledge request.
+     */
+    private boolean isRtAckDue() {
+        return !sent.isEmpty() && System.currentTimeMillis() - sentTime >= ackDelay;
     }
 
-    private void workSendingRt() {
-        while (!queue.isEmpty()) {
+    /**
+     * Send the real-time messages, up to the next acknowledge request.
+     *
+     * The acknowledge request is sent after LIMIT_BEFORE_ACK messages, or once
+     * the last ones waited ackDelay for the next ones.
+     *
+     * @return Size of the messages sent
+     */
+    private int sendRt() {
+        int size = 0;
+        while (!queue.isEmpty() && sent.size() < LIMIT_BEFORE_ACK) {
             // We get the first element to send
             Object obj = queue.firstElement();
             queue.removeElementAt(0);
             if (obj instanceof NamedData) {
                 NamedData nd = (NamedData) obj;
-                send(nd);
-                safeQueue.addLine(nd.name + "," + Base64.encode(nd.data));
+                size += nd.name.length() + nd.data.length;
             } else if (obj instanceof NamedDataArray) {
                 NamedDataArray nda = (NamedDataArray) obj;
-                byte[][] data = nda.data;
-                send(nda);
-                StringBuffer sb = new StringBuffer();
-                sb.append('.');
-                sb.append(nda.name);
-                for (int i = 0; i < data.length; i++) {
-                    sb.append(',');
-                    sb.append(Base64.encode(data[i]));
+                size += nda.name.length();
+                for (int i = 0; i < nda.data.length; i++) {
+                    size += nda.data[i].length;
                 }
-                safeQueue.addLine(sb.toString());
+            } else {
+                continue;
             }
-            if (dataSent++ == LIMIT_BEFORE_ACK) {
-                changeState(STATE_WAITING_FOR_ACK_RT);
-                //endAckRequest((byte) 4);
-                send(new AcknowledgeRequest((byte) 4));
-                workWaitingForAckRt();
-                break;
+            send((Message) obj);
+            if (sent.isEmpty()) {
+                sentTime = System.currentTimeMillis();
             }
+            sent.addElement(obj);
         }
-    }
-
-    private void workWaitingForAckRt() {
-        // If we didn't got an ack
-        if (currentStateRunningTime() > TIME_WAITING_FOR_ACK) {
-            safeQueue.saveMemoryInFile();
-            dataSent = 0;
-
-            // We're changing back to sending in real-time
-            changeState(STATE_SENDING_RT);
-            schedule();
+        if (sent.size() >= LIMIT_BEFORE_ACK || isRtAckDue()) {
+            PendingAck ack = requestAck();
+            ack.messages = new Vector(sent.size());
+            for (int i = 0; i < sent.size(); i++) {
+                ack.messages.addElement(sent.elementAt(i));
+            }
+            sent.removeAllElements();
         }
+        return size;
     }
-    SafeQueueLineReader sendingQueueReader;
 
-    private void workSendingQueue() {
-        if (currentStateRunningTime() > TIME_SENDING_QUEUE) {
-            // We're changing back to sending in real-time
-            sendingQueueReader = null;
-            changeState(STATE_SENDING_RT);
-        }
-
-        if (safeQueue.hasData()) {
-            if (Logger.BUILD_DEBUG && logQueue) {
-                Logger.log(this + ".workSendingQueue: Sending queue !", true);
-            }
-
-            sendingQueueReader = safeQueue.getFirstItemsSetWaiting();
-            String line;
-            while ((line = sendingQueueReader.readLine()) != null) {
-                // We currently handle only byte[], to handle array of byte[]
-                // we would just need to add commas and an array indicator (like the line starting with ",")
-                int p = line.indexOf(',');
-                String channelName = line.substring(0, p);
-                if (channelName.startsWith(".")) {
-                    continue;
-//					channelName = channelName.substring(1);
-                } else {
-                    byte[] data = Base64.decode(line.substring(p + 1));
-                    send(new NamedData(channelName, data));
-                }
+    private void addRecords(Vector messages) {
+        for (int i = 0; i < messages.size(); i++) {
+            Object obj = messages.elementAt(i);
+            if (obj instanceof NamedData) {
+                NamedData nd = (NamedData) obj;
+                safeQueue.addRecord(nd.name, nd.data);
+            } else {
+                NamedDataArray nda = (NamedDataArray) obj;
+                safeQueue.addRecord(nda.name, nda.data);
             }
-            send(new AcknowledgeRequest((byte) 5));
-            changeState(STATE_WAITING_FOR_ACK_QUEUE);
-        } else {
-            changeState(STATE_SENDING_RT);
         }
     }
 
-    private void workWaitingForAckQueue() {
-        // If we didn't got an ack
-        if (currentStateRunningTime() > TIME_WAITING_FOR_ACK) {
-            dataSent = 0;
-
-            // We're changing back to sending in real-time
-            changeState(STATE_SENDING_RT);
-            schedule();
+    /**
+     * Check that the oldest acknowledge request was answered in time.
+     */
+    private void checkWindow() {
+        if (!window.isEmpty()
+                && System.currentTimeMillis() - ((PendingAck) window.firstElement()).time > TIME_WAITING_FOR_ACK) {
+            if (Logger.BUILD_DEBUG && logQueue) {
+                Logger.log(this + ".checkWindow: No ack received !", true);
+            }
+            failWindow();
+            safeQueue.saveMemoryInFile();
         }
     }
 
-    private void changeState(byte state) {
-        if (Logger.BUILD_DEBUG && logQueue) {
-            Logger.log(this + ".changeState( " + stateToString(state) + " );", true);
+    /**
+     * Forget the acknowledge requests that weren't answered. Their real-time
+     * messages and the ones sent since the last request are queued, the queue
+     * records will be read again.
+     */
+    private void failWindow() {
+        for (int i = 0; i < window.size(); i++) {
+            Vector messages = ((PendingAck) window.elementAt(i)).messages;
+            if (messages != null) {
+                addRecords(messages);
+            }
         }
-        stateStartedTime = System.currentTimeMillis();
-        currentState = state;
-    }
-
-    private long currentStateRunningTime() {
-        return System.currentTimeMillis() - stateStartedTime;
+        addRecords(sent);
+        sent.removeAllElements();
+        window.removeAllElements();
+        replay.reset();
+        linkConfirmed = false;
     }
 
     public void addQueuedData(String name, byte[] data) {
@@ -179,40 +259,142 @@ public class M2MPClientWithQueue extends M2MPClientImpl {
     private class WorkState extends TimerTask {
 
         public void run() {
+            synchronized (wakeUpLock) {
+                if (wakeUpTask == this) {
+                    wakeUpTask = null;
+                }
+            }
             work();
         }
     }
 
-    private void work() {
-        if (Logger.BUILD_DEBUG && M2MPClientImpl.m2mpLog_) {
-            Logger.log("currentState=" + stateToString(currentState));
+    /**
+     * Make work() run after a delay.
+     *
+     * Only one task is scheduled, for the earliest time asked: the timeouts of
+     * the acknowledge requests don't need a task each.
+     *
+     * @param delay Delay (ms)
+     */
+    private void wakeUp(long delay) {
+        delay = Math.max(delay, 0);
+        long time = System.currentTimeMillis() + delay;
+        synchronized (wakeUpLock) {
+            if (wakeUpTask != null) {
+                if (wakeUpTime <= time) {
+                    return;
+                }
+                wakeUpTask.cancel();
+            }
+            wakeUpTask = new WorkState();
+            wakeUpTime = time;
+            Timers.getSlow().schedule(wakeUpTask, delay);
         }
-        switch (currentState) {
-            case STATE_SENDING_RT:
-                workSendingRt();
-                break;
-
-            case STATE_WAITING_FOR_ACK_RT:
-                workWaitingForAckRt();
-                break;
-
-            case STATE_SENDING_QUEUE:
-                workSendingQueue();
-                break;
+    }
 
-            case STATE_WAITING_FOR_ACK_QUEUE:
-                workWaitingForAckQueue();
+    /**
+     * Send the real-time messages and the queue, as long as the window allows
+     * it.
+     *
+     * When both have some data, the queue gets its share of the bytes sent.
+     * The queue is only sent once the server acknowledged something on the
+     * connection, a lone acknowledge request is sent to check it.
+     */
+    private synchronized void work() {
+        if (Logger.BUILD_DEBUG && M2MPClientImpl.m2mpLog_) {
+            Logger.log(this + ".work: queue=" + queue.size() + ", window=" + window.size());
+        }
+        checkWindow();
+        // Each request of the window covers up to CHUNK_MESSAGES messages
+        int maxWindow = Math.min(windowSize, Math.max(1, network.getQueue().capacity() / (QueueReplay.CHUNK_MESSAGES + 1)));
+        boolean backlog = true;
+        while (window.size() < maxWindow) {
+            boolean rt = !queue.isEmpty() || isRtAckDue();
+            backlog = backlog && replay.hasData();
+            if (backlog && !linkConfirmed) {
+                if (window.isEmpty()) {
+                    requestAck();
+                }
+                backlog = false;
+            }
+            long wait = backlog ? replay.getWaitTime() : 0;
+            if (wait > 0) {
+                wakeUp(wait);
+                backlog = false;
+            }
+            if (!rt || !backlog) {
+                // Nothing to share
+                rtBytes = 0;
+                queueBytes = 0;
+            }
+            if (backlog && (!rt || queueBytes * 100 <= (rtBytes + queueBytes) * share)) {
+                if (!queueStatusSent) {
+                    if (Logger.BUILD_DEBUG && logQueue) {
+                        Logger.log(this + ".work: Sending queue !", true);
+                    }
+                    sendStatus(STATUS_QUEUE, safeQueue.getMetrics().toString());
+                    queueStatusSent = true;
+                }
+                int size = replay.sendChunk();
+                if (size < 0) {
+                    backlog = false;
+                } else {
+                    queueBytes += size;
+                }
+            } else if (rt) {
+                rtBytes += sendRt();
+            } else {
                 break;
-
+            }
+        }
+        if (queueStatusSent && !replay.isPending() && !replay.hasData()) {
+            sendStatus(STATUS_QUEUE, safeQueue.getMetrics().toString());
+            queueStatusSent = false;
+        }
+        long now = System.currentTimeMillis();
+        if (!window.isEmpty()) {
+            // Timeout of the oldest request
+            wakeUp(((PendingAck) window.firstElement()).time + TIME_WAITING_FOR_ACK - now + 1);
+        }
+        if (!sent.isEmpty()) {
+            wakeUp(sentTime + ackDelay - now);
         }
     }
     // </editor-fold>
 
     public void start() throws Exception {
         parseSetting(SETTING_M2MP_LOGQUEUE);
+        parseSetting(SETTING_M2MP_COMPRESS_QUEUE);
+        parseSetting(SETTING_M2MP_QUEUE_WINDOW);
+        parseSetting(SETTING_M2MP_QUEUE_SHARE);
+        parseSetting(SETTING_M2MP_QUEUE_RATE);
+        safeQueue.setSegmented(true);
+        safeQueue.setCompression(true);
+        setSpillQueue(safeQueue);
         super.start();
     }
 
+    boolean canDropMessages() {
+        // The data of the acknowledge requests would be acknowledged without being sent
+        return false;
+    }
+
+    protected String getStatus(String name) {
+        if (STATUS_QUEUE.equals(name)) {
+            return safeQueue.getMetrics().toString();
+        }
+        return super.getStatus(name);
+    }
+
+    /**
+     * Get the queue of the data that wasn't acknowledged
+     *
+     * @return Queue
+     */
+    public SafeQueue getQueue() {
+        return safeQueue;
+    }
+
     public void addQueuedData(Message msg) {
         queue.addElement(msg);
         schedule();
@@ -225,49 +407,52 @@ public class M2MPClientWithQueue extends M2MPClientImpl {
     }
 
     private void schedule() {
-        Timers.getSlow().schedule(new WorkState(), 0);
+        wakeUp(0);
+    }
+
+    public void m2mpEvent(Event event) {
+        if (event instanceof AcknowledgeResponse) {
+            onReceivedAckResponse(((AcknowledgeResponse) event).nb);
+        } else if (event instanceof Disconnected) {
+            onDisconnected();
+        }
+        super.m2mpEvent(event);
     }
 
     // If we got an ack from the server
-    void onReceivedAckResponse(byte b) {
-        try {
-            // We reset the dataSentCounter
-            dataSent = 0;
-
-            // And we mark it as switching back to it's original state
-            if (currentState == STATE_WAITING_FOR_ACK_RT) {
-                if (Logger.BUILD_DEBUG && logQueue) {
-                    Logger.log(this + ".onReceivedAckResponse: received RT ACK !", true);
-                }
-                safeQueue.deleteFirstItemsListWaiting();
-                changeState(STATE_SENDING_QUEUE);
-                schedule();
-            } else if (currentState == STATE_WAITING_FOR_ACK_QUEUE) {
-                if (Logger.BUILD_DEBUG && logQueue) {
-                    Logger.log(this + ".onReceivedAckResponse: received QUEUE ACK !", true);
-                }
-                // We need to to delete the data waiting to be sent
-                if (sendingQueueReader != null) {
-                    sendingQueueReader.delete();
-                    sendingQueueReader = null;
-                }
-                changeState(STATE_SENDING_QUEUE);
-                schedule();
-            }
-        } catch (IOException ex) {
-            if (Logger.BUILD_CRITICAL) {
-                Logger.log(this + ".onReceivedAckResponse", ex, true);
+    synchronized void onReceivedAckResponse(byte b) {
+        int i;
+        for (i = 0; i < window.size() && ((PendingAck) window.elementAt(i)).nb != b; i++) {
+        }
+        if (i == window.size()) {
+            // Not one of ours (keep-alive)
+            return;
+        }
+        // The previous requests are acknowledged as well
+        for (; i >= 0; i--) {
+            PendingAck ack = (PendingAck) window.firstElement();
+            window.removeElementAt(0);
+            if (ack.reader != null) {
+                replay.acknowledged(ack.reader, ack.mark);
             }
         }
+        if (Logger.BUILD_DEBUG && logQueue) {
+            Logger.log(this + ".onReceivedAckResponse: received ACK ! window=" + window.size(), true);
+        }
+
+        // The connection works, we can send the queue
+        linkConfirmed = true;
+        schedule();
     }
 
     // If we got disconnected
-    void onDisconnected() {
+    synchronized void onDisconnected() {
+        failWindow();
+
         // We need to save the content of the safe queue in files
         safeQueue.saveMemoryInFile();
 
-        dataSent = 0;
-        changeState(STATE_SENDING_RT);
+        queueStatusSent = false;
     }
 
     public void stop() {
@@ -0,0 +1,33 @@
+package org.javacint.control.m2mp;
+
+import org.javacint.common.BufferWrapper;
+
+/**
+ * Listener of the received data, without copies.
+ *
+ * The data is given as views on the reader's buffer. They are only valid
+ * during the call, the listener has to copy them (BufferWrapper.copy) to keep
+ * them. The data that isn't consumed by the listener is received as
+ * NamedData and NamedDataArray events.
+ */
+public interface M2MPDataListener {
+
+    /**
+     * Data received.
+     *
+     * @param channelName Channel name
+     * @param data View of the data
+     * @return true if the data was consumed
+     */
+    boolean m2mpData(String channelName, BufferWrapper data);
+
+    /**
+     * Data array received.
+     *
+     * @param channelName Channel name
+     * @param data Views of the cells of the array (the first nb ones)
+     * @param nb Number of cells
+     * @return true if the data was consumed
+     */
+    boolean m2mpDataArray(String channelName, BufferWrapper[] data, int nb);
+}
@@ -2,7 +2,7 @@ package org.javacint.control.m2mp;
 
 import java.io.IOException;
 import java.io.InputStream;
-import java.util.Vector;
+import org.javacint.common.BufferWrapper;
 import org.javacint.common.Bytes;
 import org.javacint.control.m2mp.data.AcknowledgeRequest;
 import org.javacint.control.m2mp.data.AcknowledgeResponse;
@@ -12,6 +12,18 @@ import org.javacint.control.m2mp.data.NamedData;
 import org.javacint.control.m2mp.data.NamedDataArray;
 import org.javacint.logging.Logger;
 
+/**
+ * M2MP frames reader.
+ *
+ * The stream is read by bulk reads in a buffer that is reused, the frames are
+ * parsed in place. When the end of the buffer is reached, the bytes that
+ * weren't parsed yet are moved to its beginning, so that a frame is always
+ * contiguous. Frames larger than the buffer are read in a temporary one.<br />
+ * <br />
+ * With a data listener, the received data is first given to it as views on
+ * the buffer. It's only copied in NamedData and NamedDataArray messages when
+ * the listener didn't consume it.
+ */
 public class M2MPReader {
 
     /**
@@ -30,23 +42,15 @@ public class M2MPReader {
             if (Logger.BUILD_DEBUG && M2MPClientImpl.m2mpLog_) {
                 Logger.log(this + ".setName( " + channelId + ", \"" + channelName + "\" );");
             }
-            int iChannelId = (int) channelId;
-
             // We have to take care of the lame all-signed java types
-            if (iChannelId < 0) {
-                iChannelId += 128;
-            }
+            int iChannelId = channelId & 0xFF;
 
             _names[iChannelId] = channelName;
         }
 
         public String getName(byte channelId) {
-            int iChannelId = (int) channelId;
-
             // We have to take care of the lame all-signed java types
-            if (iChannelId < 0) {
-                iChannelId += 128;
-            }
+            int iChannelId = channelId & 0xFF;
 
             String name = _names[iChannelId];
 
@@ -67,290 +71,244 @@ public class M2MPReader {
     }
     // We have no reason to reset this...
     private final ChannelManagementIdToName channelManagement = new ChannelManagementIdToName();
-    private M2MPEventsListener app;
     private final InputStream is;
+    private static final int BUFFER_SIZE = 1024;
+    /**
+     * Buffer, and the temporary buffer of a large frame
+     */
+    private final byte[] base = new byte[BUFFER_SIZE];
+    private byte[] buffer = base;
+    /**
+     * Bytes read and not parsed yet
+     */
+    private int start, end;
+    private M2MPDataListener dataListener;
+    /**
+     * Views given to the data listener
+     */
+    private final BufferWrapper view = new BufferWrapper(base, 0, 0);
+    private BufferWrapper[] views = new BufferWrapper[0];
 
     public M2MPReader(InputStream is) {
         this.is = is;
     }
 
-    private Message treatFrame(byte[] frame) throws IOException {
+    /**
+     * Define the listener receiving the data as views.
+     *
+     * @param listener Listener, null to receive all the data as messages
+     */
+    public void setDataListener(M2MPDataListener listener) {
+        dataListener = listener;
+    }
+
+    /**
+     * Make sure some bytes following the start are in the buffer.
+     *
+     * @param n Number of bytes
+     */
+    private void fill(int n) throws IOException {
+        if (end - start >= n) {
+            return;
+        }
+        if (start + n > buffer.length) {
+            byte[] b = n > base.length ? new byte[n] : base;
+            System.arraycopy(buffer, start, b, 0, end - start);
+            buffer = b;
+            end -= start;
+            start = 0;
+        }
+        while (end - start < n) {
+            int r = is.read(buffer, end, buffer.length - end);
+            if (r < 0) {
+                throw new IOException(this + ".read: We got disconnected !");
+            }
+            end += r;
+        }
+    }
+
+    /**
+     * Read the next message.
+     *
+     * The data consumed by the data listener and the channel definitions are
+     * not returned.
+     *
+     * @return Message
+     */
+    public Message read() throws IOException {
+        while (true) {
+            fill(1);
+            int type = buffer[start];
+            int size;
+            if (type < FrameType.MSG_SPECIALIZED_MAX
+                    && (type == FrameType.R_IDENT_RESULT
+                    || type == FrameType.R_ACK_REQUEST
+                    || type == FrameType.R_ACK_RESPONSE)) {
+                size = 2;
+            } else if (type >= 0 && type < FrameType.NET_MSG_1BYTESIZED_MAX) {
+                fill(2);
+                size = Bytes.byteToInt(buffer[start + 1]) + 2;
+            } else if (type >= 0 && type < FrameType.NET_MSG_2BYTESSIZED_MAX) {
+                fill(3);
+                size = Bytes.bytesToShort(buffer, start + 1) + 3;
+            } else {
+                throw new IOException("M2MPReader.read: Invalid frame type " + type);
+            }
+            if (Logger.BUILD_DEBUG && M2MPClientImpl.m2mpLog_) {
+                Logger.log(this + ".read: type=" + type + ", size=" + size);
+            }
+            fill(size);
+            int off = start;
+            start += size;
+            try {
+                Message msg = treatFrame(buffer, off, size);
+                if (msg != null) {
+                    return msg;
+                }
+            } finally {
+                if (buffer != base && end - start <= base.length) {
+                    // Back to the buffer after a large frame
+                    System.arraycopy(buffer, start, base, 0, end - start);
+                    buffer = base;
+                    end -= start;
+                    start = 0;
+                }
+            }
+        }
+    }
+
+    private Message treatFrame(byte[] frame, int off, int len) throws IOException {
         if (Logger.BUILD_DEBUG && M2MPClientImpl.m2mpLog_) {
-            Logger.log(this + ".receivedFrame( " + Bytes.byteArrayToPrettyString(frame));
+            Logger.log(this + ".receivedFrame( " + Bytes.byteArrayToPrettyString(frame, off, len));
         }
 
-        switch (frame[0]) {
+        switch (frame[off]) {
             case FrameType.R_ACK_REQUEST:
-                return treatFrameAckRequest(frame);
+                return treatFrameAckRequest(frame, off);
 
             case FrameType.R_ACK_RESPONSE:
-                return treatFrameAckResponse(frame);
+                return treatFrameAckResponse(frame, off);
 
             case FrameType.R_IDENT_RESULT:
-                return treatFrameIdentificationResult(frame);
+                return treatFrameIdentificationResult(frame, off);
 
             case FrameType.R_NC_DATA:
-                return treatFrameData(frame);
+                return treatFrameData(frame, off + 2, len - 2);
 
             case FrameType.R_NC_DATA_LARGE:
-                return treatFrameDataLarge(frame);
+                return treatFrameData(frame, off + 3, len - 3);
 
             case FrameType.R_NC_DEF:
-                treatFrameChannelDef(frame);
+                treatFrameChannelDef(frame, off, len);
                 return null;
 
             case FrameType.S_NC_DATAARRAY:
-                return treatFrameDataArray(frame);
+                return treatFrameDataArray(frame, off + 2, len - 2, 1);
 
             case FrameType.S_NC_DATAARRAY_LARGE:
-                return treatFrameDataArrayLarge(frame);
+                return treatFrameDataArray(frame, off + 3, len - 3, 2);
 
             default:
-                throw new IOException("M2MPReader.read: Invalid frame type " + frame[0]);
+                throw new IOException("M2MPReader.read: Invalid frame type " + frame[off]);
         }
     }
-    private int nbUnrepliedAcks;
 
-    private AcknowledgeRequest treatFrameAckRequest(byte[] frame) {
-        if (Logger.BUILD_DEBUG && M2MPClientImpl.m2mpLog_) {
-            Logger.log(this + ".treatFrameAckRequest( " + Bytes.byteArrayToPrettyString(frame) + " );");
-        }
-        //app.onReceivedAckRequest(frame[1]);
-        nbUnrepliedAcks = 0;
-        return new AcknowledgeRequest(frame[1]);
+    private AcknowledgeRequest treatFrameAckRequest(byte[] frame, int off) {
+        return new AcknowledgeRequest(frame[off + 1]);
     }
 
-    private AcknowledgeResponse treatFrameAckResponse(byte[] frame) {
-        if (Logger.BUILD_DEBUG && M2MPClientImpl.m2mpLog_) {
-            Logger.log(this + ".treatFrameAckResponse( " + Bytes.byteArrayToPrettyString(frame) + " );");
-        }
-        //app.onReceivedAckResponse(frame[1]);
-        nbUnrepliedAcks = 0;
-        return new AcknowledgeResponse(frame[1]);
+    private AcknowledgeResponse treatFrameAckResponse(byte[] frame, int off) {
+        return new AcknowledgeResponse(frame[off + 1]);
     }
 
-    private void treatFrameChannelDef(byte[] frame) {
-        if (Logger.BUILD_DEBUG && M2MPClientImpl.m2mpLog_) {
-            Logger.log(this + ".treatFrameChannelDef( " + Bytes.byteArrayToPrettyString(frame) + " );");
-        }
+    private void treatFrameChannelDef(byte[] frame, int off, int len) {
         /*
          * Bytes are : =========== 0 : Type 1 : Size 2 : Channel id 3-X :
          * Channel name
          */
-        byte channelId = frame[2];
+        byte channelId = frame[off + 2];
 
-        String channelName = new String(frame, 3, frame.length - 3);
+        String channelName = new String(frame, off + 3, len - 3);
 
         channelManagement.setName(channelId, channelName);
     }
 
-    private NamedData treatFrameData(byte[] frame) {
-        if (Logger.BUILD_DEBUG && M2MPClientImpl.m2mpLog_) {
-            Logger.log(this + ".treatFrameData( " + Bytes.byteArrayToPrettyString(frame) + " );");
-        }
-
-        /*
-         * Bytes are : 0 : Type 1 : Size 2 : Channel Id 3-X : Data
-         */
-        byte channelId = frame[2];
-        String channelName = channelManagement.getName(channelId);
-
-        byte[] data = new byte[(frame.length - 3)];
-        System.arraycopy(frame, 3, data, 0, data.length);
-
-        //app.onReceivedData(channelName, data);
-        return new NamedData(channelName, data);
-    }
-
-    private NamedData treatFrameDataLarge(byte[] frame) {
-        if (Logger.BUILD_DEBUG && M2MPClientImpl.m2mpLog_) {
-            Logger.log(this + ".treatFrameDataLarge( " + Bytes.byteArrayToPrettyString(frame) + " );");
+    /**
+     * Treat a data frame.
+     *
+     * @param frame Buffer
+     * @param off Offset of the channel id (following the type and the size)
+     * @param len Size of the channel id and the data
+     */
+    private NamedData treatFrameData(byte[] frame, int off, int len) {
+        String channelName = channelManagement.getName(frame[off]);
+
+        if (dataListener != null) {
+            view.buffer = frame;
+            view.offset = off + 1;
+            view.length = len - 1;
+            if (dataListener.m2mpData(channelName, view)) {
+                return null;
+            }
         }
 
-        /*
-         * Bytes are : 0 : Type 1-2 : Size 3 : Channel Id 4-X : Data
-         */
-
-        byte channelId = frame[3];
-        String channelName = channelManagement.getName(channelId);
-
-        byte[] data = new byte[(frame.length - 4)];
-        System.arraycopy(frame, 4, data, 0, data.length);
-
-        //app.onReceivedData(channelName, data);
+        byte[] data = new byte[len - 1];
+        System.arraycopy(frame, off + 1, data, 0, data.length);
         return new NamedData(channelName, data);
     }
 
-    private NamedDataArray treatFrameDataArray(byte[] frame) {
-        if (Logger.BUILD_DEBUG && M2MPClientImpl.m2mpLog_) {
-            Logger.log(this + ".treatFrameDataArray( " + Bytes.byteArrayToPrettyString(frame) + " );");
+    /**
+     * Treat a data array frame.
+     *
+     * @param frame Buffer
+     * @param off Offset of the channel id (following the type and the size)
+     * @param len Size of the channel id and the cells
+     * @param sizeLength Length of the size of the cells (1 or 2 bytes)
+     */
+    private NamedDataArray treatFrameDataArray(byte[] frame, int off, int len, int sizeLength) throws IOException {
+        String channelName = channelManagement.getName(frame[off]);
+        int frameEnd = off + len;
+
+        // The cells are first parsed as views
+        int nb = 0;
+        for (int p = off + 1; p < frameEnd; nb++) {
+            int size = sizeLength == 1 ? Bytes.byteToInt(frame[p]) : Bytes.bytesToShort(frame, p);
+            p += sizeLength;
+            if (p + size > frameEnd) {
+                throw new IOException("M2MPReader.read: Invalid data array cell size " + size);
+            }
+            if (nb == views.length) {
+                BufferWrapper[] v = new BufferWrapper[nb + 4];
+                System.arraycopy(views, 0, v, 0, nb);
+                for (int i = nb; i < v.length; i++) {
+                    v[i] = new BufferWrapper(frame, 0, 0);
+                }
+                views = v;
+            }
+            BufferWrapper cell = views[nb];
+            cell.buffer = frame;
+            cell.offset = p;
+            cell.length = size;
+            p += size;
         }
 
-        /*
-         * Bytes are : 0 : Type 1 : Size 2 : Channel Id 3-X : Data
-         */
-
-        // first byte for the size
-        int off = 2;
-
-        byte channelId = frame[off++];
-        String channelName = channelManagement.getName(channelId);
-
-        Vector content = new Vector();
-
-        while (off < frame.length) {
-            int size = frame[off++];
-            byte[] subData = new byte[size];
-            System.arraycopy(frame, off, subData, 0, size);
-            off += size;
-            content.addElement(subData);
+        if (dataListener != null && dataListener.m2mpDataArray(channelName, views, nb)) {
+            return null;
         }
 
-        byte[][] data = new byte[content.size()][];
-        content.copyInto(data);
-
-        //app.onReceivedData(channelName, data);
-        return new NamedDataArray(channelName, data);
-    }
-
-    private NamedDataArray treatFrameDataArrayLarge(byte[] frame) {
-        if (Logger.BUILD_DEBUG && M2MPClientImpl.m2mpLog_) {
-            Logger.log(this + ".treatFrameDataArrayLarge( " + Bytes.byteArrayToPrettyString(frame) + " );");
+        byte[][] data = new byte[nb][];
+        for (int i = 0; i < nb; i++) {
+            BufferWrapper cell = views[i];
+            data[i] = new byte[cell.length];
+            System.arraycopy(frame, cell.offset, data[i], 0, cell.length);
         }
-
-        /*
-         * Bytes are : 0 : Type 1-2 : Size 3 : Channel Id 4-X : Data
-         */
-        int off = 3;
-
-        byte channelId = frame[off++];
-        String channelName = channelManagement.getName(channelId);
-
-        Vector content = new Vector();
-
-
-        while (off < frame.length) {
-            int size = Bytes.bytesToShort(frame, off);
-            off += 2;
-
-            byte[] subData = new byte[size];
-            System.arraycopy(frame, off, subData, 0, size);
-            off += size;
-
-            content.addElement(subData);
-        }
-
-        byte[][] data = new byte[content.size()][];
-        content.copyInto(data);
-
-        //app.onReceivedData(channelName, data);
         return new NamedDataArray(channelName, data);
     }
 
-    private IdentificationResponse treatFrameIdentificationResult(byte[] frame) {
-        if (Logger.BUILD_DEBUG && M2MPClientImpl.m2mpLog_) {
-            Logger.log(this + ".treatFrameIdentificationResult( " + Bytes.byteArrayToPrettyString(frame) + " );");
-        }
-
-        boolean identified = frame[1] == 0x01;
-        //app.onReceivedIdentificationResult(identified);
+    private IdentificationResponse treatFrameIdentificationResult(byte[] frame, int off) {
+        boolean identified = frame[off + 1] == 0x01;
         return new IdentificationResponse(identified);
     }
-    private int offset = 0;
-    private byte[] frame;
-    private int type = 0;
-    private byte[] header = new byte[3];
-
-    public Message read() throws IOException {
-        while (true) {
-            // If we don't yet have a packet
-            if (frame == null) {
-                if (offset == 0) {
-                    type = is.read();
-                    header[offset++] = (byte) type;
-                    if (Logger.BUILD_DEBUG && M2MPClientImpl.m2mpLog_) {
-                        Logger.log(this + ".read:27: _type = " + type);
-                    }
-
-                    if (type < FrameType.MSG_SPECIALIZED_MAX
-                            && (type == FrameType.R_IDENT_RESULT
-                            || type == FrameType.R_ACK_REQUEST
-                            || type == FrameType.R_ACK_RESPONSE)) {
-                        frame = new byte[2];
-                        frame[0] = header[0];
-                    }
-                } else {
-                    int b = is.read();
-
-                    if (b == -1) {
-                        throw new IOException(this + ".read:28: We got disconnected !");
-                    }
-
-                    header[offset++] = (byte) b;
-
-//						if (Logger.BUILD_DEBUG && M2MPClientImpl.m2mpLog) {
-//							Logger.log("tcpIn=" + b + " / _offset=" + _offset);
-//						}
-
-                    // If it's a one-byte sized message
-                    if (offset == 2 && type < FrameType.NET_MSG_1BYTESIZED_MAX) {
-//							if (Logger.BUILD_DEBUG && M2MPClientImpl.m2mpLog) {
-//								Logger.log("_type = " + _type + " < " + IProtocolLayer.NET_MSG_1BYTESIZED_MAX);
-//							}
-
-                        int size = Bytes.byteToInt(header[1]) + 2;
-                        frame = new byte[size];
-                        System.arraycopy(header, 0, frame, 0, 2);
-
-                        if (Logger.BUILD_DEBUG && M2MPClientImpl.m2mpLog_) {
-                            Logger.log(this + ".read:30: size=" + size);
-                        }
-
-
-                    } // If it's two-bytes sized message
-                    else if (offset == 3 && type < FrameType.NET_MSG_2BYTESSIZED_MAX) {
-                        if (Logger.BUILD_DEBUG && M2MPClientImpl.m2mpLog_) {
-                            Logger.log("_type = " + type + " < " + FrameType.NET_MSG_2BYTESSIZED_MAX);
-                        }
-
-                        int size = Bytes.bytesToShort(header, 1) + 3;
-                        frame = new byte[size];
-                        System.arraycopy(header, 0, frame, 0, 3);
-
-                        if (Logger.BUILD_DEBUG && M2MPClientImpl.m2mpLog_) {
-                            Logger.log(this + ".read:32: size=" + size);
-                        }
-                    }
-                }
-            } else {
-                // We try to read as much as possible
-//					if (Logger.BUILD_DEBUG && M2MPClientImpl.m2mpLog) {
-//						Logger.log("_offset=" + _offset + " / _frame.length=" + _frame.length);
-//					}
-                offset += is.read(frame, offset, frame.length - offset);
-//					if (Logger.BUILD_DEBUG && M2MPClientImpl.m2mpLog) {
-//						Logger.log("_offset=" + _offset + " / _frame.length=" + _frame.length);
-//					}
-            }
-
-
-            if (frame != null && offset == frame.length) {
-                try {
-                    return treatFrame(frame);
-                } finally {
-                    resetFrame();
-                }
-            }
-        }
-    }
-
-    private void resetFrame() {
-        if (Logger.BUILD_DEBUG && M2MPClientImpl.m2mpLog_) {
-            Logger.log(this + ".resetFrame();");
-        }
-        offset = 0;
-        frame = null;
-    }
 
     public void close() throws IOException {
         is.close();
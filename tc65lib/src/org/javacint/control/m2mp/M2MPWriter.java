@@ -12,13 +12,47 @@ import org.javacint.control.m2mp.data.NamedData;
 import org.javacint.control.m2mp.data.NamedDataArray;
 import org.javacint.logging.Logger;
 
+/**
+ * M2MP frames writer.
+ *
+ * The frames are serialized in a buffer that is reused, and written to the
+ * stream with one write: after each message by default, or when flush() is
+ * called (several messages in one write). Frames larger than the buffer are
+ * written directly after their header.
+ */
 public class M2MPWriter {
 
     private final ChannelManagementNameToId cm = new ChannelManagementNameToId();
     private final OutputStream os;
-
+    private final byte[] buffer;
+    private int len;
+    private final boolean autoFlush;
+    private static final int DEFAULT_BUFFER_SIZE = 256;
+
+    /**
+     * Writer writing each message to the stream.
+     *
+     * @param os Stream
+     */
     public M2MPWriter(OutputStream os) {
+        this(os, DEFAULT_BUFFER_SIZE, true);
+    }
+
+    /**
+     * Writer keeping the messages until flush() is called or the buffer is
+     * full.
+     *
+     * @param os Stream
+     * @param bufferSize Size of the buffer
+     */
+    public M2MPWriter(OutputStream os, int bufferSize) {
+        this(os, bufferSize, false);
+    }
+
+    private M2MPWriter(OutputStream os, int bufferSize, boolean autoFlush) {
         this.os = os;
+        this.buffer = new byte[bufferSize];
+        this.autoFlush = autoFlush;
     }
 
     private class ChannelManagementNameToId {
@@ -69,14 +103,68 @@ public class M2MPWriter {
         } else {
             throw new RuntimeException(this + ".write: Could not handle message " + m);
         }
+        if (autoFlush) {
+            flush();
+        }
+    }
+
+    /**
+     * Write the buffered frames to the stream.
+     */
+    public void flush() throws IOException {
+        writeBuffer();
+        os.flush();
+    }
+
+    /**
+     * Get the size of the buffered frames.
+     *
+     * @return Size
+     */
+    public int size() {
+        return len;
+    }
+
+    private void writeBuffer() throws IOException {
+        if (len > 0) {
+            os.write(buffer, 0, len);
+            len = 0;
+        }
+    }
+
+    /**
+     * Make room for some bytes in the buffer.
+     */
+    private void reserve(int n) throws IOException {
+        if (len + n > buffer.length) {
+            writeBuffer();
+        }
+    }
+
+    private void put(int b) {
+        buffer[len++] = (byte) b;
+    }
+
+    private void put(byte[] data) throws IOException {
+        reserve(data.length);
+        if (data.length > buffer.length) {
+            os.write(data);
+        } else {
+            System.arraycopy(data, 0, buffer, len, data.length);
+            len += data.length;
+        }
     }
 
     private void sendAckRequest(byte b) throws IOException {
-        os.write(new byte[]{FrameType.S_ACK_REQUEST, b});
+        reserve(2);
+        put(FrameType.S_ACK_REQUEST);
+        put(b);
     }
 
     private void sendAckResponse(byte b) throws IOException {
-        os.write(new byte[]{FrameType.S_ACK_RESPONSE, b});
+        reserve(2);
+        put(FrameType.S_ACK_RESPONSE);
+        put(b);
     }
 
     private void sendData(String channelName, String data) throws IOException {
@@ -99,26 +187,22 @@ public class M2MPWriter {
          }
          */
 
-        byte[] frame;
-        int offset = 0;
         if (data.length <= 254) {
-            frame = new byte[(data.length + 3)];
-            frame[offset++] = FrameType.S_NC_DATA;
-            frame[offset++] = (byte) (data.length + 1);
-            frame[offset++] = channelId;
+            reserve(3);
+            put(FrameType.S_NC_DATA);
+            put(data.length + 1);
+            put(channelId);
         } else if (data.length <= 65534) {
-            frame = new byte[(data.length + 4)];
-            frame[offset++] = FrameType.S_NC_DATA_LARGE;
-            Bytes.intTo2Bytes((data.length + 1), frame, offset);
-            offset += 2;
-            frame[offset++] = channelId;
+            reserve(4);
+            put(FrameType.S_NC_DATA_LARGE);
+            Bytes.intTo2Bytes((data.length + 1), buffer, len);
+            len += 2;
+            put(channelId);
         } else {
             return;
         }
 
-        System.arraycopy(data, 0, frame, offset, data.length);
-
-        os.write(frame);
+        put(data);
     }
 
     private static int dataArraySize(byte[][] data) {
@@ -156,44 +240,36 @@ public class M2MPWriter {
         }
         // We have 1 byte for the type
         int size = dataArraySize(data);
-        byte[] frame;
-        int offset = 0;
         if (size <= 254) {
-            frame = new byte[(size + 2)];
-            frame[offset++] = FrameType.S_NC_DATAARRAY;
-            Bytes.intTo1Byte(size, frame, offset++);
-            frame[offset++] = channelId;
+            reserve(3);
+            put(FrameType.S_NC_DATAARRAY);
+            put(size);
+            put(channelId);
 
             for (int i = 0; i < data.length; ++i) {
                 byte[] subData = data[i];
-                Bytes.intTo1Byte(subData.length, frame, offset++);
-                System.arraycopy(subData, 0, frame, offset, subData.length);
-                offset += subData.length;
+                reserve(1);
+                put(subData.length);
+                put(subData);
             }
         } else if (size <= 65534) {
-            frame = new byte[(size + 3)];
-            frame[offset++] = FrameType.S_NC_DATAARRAY_LARGE;
-            Bytes.intTo2Bytes(size, frame, offset);
-            offset += 2;
-            frame[offset++] = channelId;
+            reserve(4);
+            put(FrameType.S_NC_DATAARRAY_LARGE);
+            Bytes.intTo2Bytes(size, buffer, len);
+            len += 2;
+            put(channelId);
 
             for (int i = 0; i < data.length; ++i) {
                 byte[] subData = data[i];
-                Bytes.intTo2Bytes(subData.length, frame, offset);
-                offset += 2;
-                System.arraycopy(subData, 0, frame, offset, subData.length);
-                offset += subData.length;
+                reserve(2);
+                Bytes.intTo2Bytes(subData.length, buffer, len);
+                len += 2;
+                put(subData);
             }
         } else // We won't handle more as it would be absurd on a such little equipment
         {
             return;
         }
-
-//		if (Logger.BUILD_DEBUG) {
-//			Logger.log("m2mp.sendData: offset=" + offset);
-//		}
-
-        os.write(frame);
     }
 
     private void sendNamedChannel(String name, byte bId) throws IOException {
@@ -201,21 +277,19 @@ public class M2MPWriter {
             Logger.log(this + ".sendNamedChannel( \"" + name + "\", " + bId + " );");
         }
         byte[] bName = name.getBytes();
-        byte[] frame = new byte[(bName.length + 3)];
-        frame[0] = FrameType.S_NC_DEF;
-        frame[1] = (byte) (frame.length - 2);
-        frame[2] = bId;
-        System.arraycopy(bName, 0, frame, 3, bName.length);
-        os.write(frame);
+        reserve(3);
+        put(FrameType.S_NC_DEF);
+        put(bName.length + 1);
+        put(bId);
+        put(bName);
     }
 
     private void sendIdentificationRequest(IdentificationRequest msg) throws IOException {
         byte[] rawId = msg.ident.getBytes();
-        byte[] frame = new byte[(rawId.length + 2)];
-        frame[0] = FrameType.S_IDENT;
-        frame[1] = (byte) rawId.length;
-        System.arraycopy(rawId, 0, frame, 2, rawId.length);
-        os.write(frame);
+        reserve(2);
+        put(FrameType.S_IDENT);
+        put(rawId.length);
+        put(rawId);
     }
 
     public void close() throws IOException {
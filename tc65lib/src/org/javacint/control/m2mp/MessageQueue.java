@@ -0,0 +1,224 @@
+package org.javacint.control.m2mp;
+
+import org.javacint.common.safequeue.SafeQueue;
+import org.javacint.control.m2mp.data.Event;
+import org.javacint.control.m2mp.data.NamedData;
+import org.javacint.control.m2mp.data.NamedDataArray;
+import org.javacint.logging.Logger;
+
+/**
+ * Outbound messages queue.
+ *
+ * The messages are kept in a bounded ring buffer. When it's full, the overflow
+ * policy applies:
+ * <ul>
+ * <li>POLICY_BLOCK: the producer waits for some room.</li>
+ * <li>POLICY_DROP_OLDEST: the oldest message is dropped.</li>
+ * <li>POLICY_SPILL: the data messages are added to a SafeQueue instead, the
+ * other ones are dropped.</li>
+ * </ul>
+ * The sending thread takes the messages (next) without removing them, writes
+ * them without holding the lock, and then removes them (commit) or takes them
+ * again from the first one (rollback).
+ */
+final class MessageQueue {
+
+    static final int // Overflow policies:
+            POLICY_BLOCK = 0,
+            POLICY_DROP_OLDEST = 1,
+            POLICY_SPILL = 2;
+    private Event[] items;
+    /**
+     * Index of the first message, number of messages, number of messages taken
+     * by the sending thread
+     */
+    private int head, size, taken;
+    private int policy = POLICY_DROP_OLDEST;
+    private SafeQueue spill;
+    private int dropped, spilled;
+
+    /**
+     * @param capacity Maximum number of messages
+     */
+    MessageQueue(int capacity) {
+        items = new Event[capacity];
+    }
+
+    /**
+     * Change the capacity, the oldest messages that don't fit are dropped.
+     *
+     * @param capacity Maximum number of messages
+     */
+    synchronized void setCapacity(int capacity) {
+        if (capacity < 1 || capacity == items.length) {
+            return;
+        }
+        while (size > capacity) {
+            dropOldest();
+        }
+        Event[] newItems = new Event[capacity];
+        for (int i = 0; i < size; i++) {
+            newItems[i] = items[(head + i) % items.length];
+        }
+        items = newItems;
+        head = 0;
+        notifyAll();
+    }
+
+    synchronized void setPolicy(int policy) {
+        this.policy = policy;
+        notifyAll();
+    }
+
+    /**
+     * Define the queue receiving the data messages of the spill policy.
+     *
+     * @param spill Queue
+     */
+    synchronized void setSpillQueue(SafeQueue spill) {
+        this.spill = spill;
+    }
+
+    /**
+     * Add a message, applying the overflow policy when the queue is full.
+     *
+     * @param evt Message
+     */
+    void put(Event evt) throws InterruptedException {
+        SafeQueue spillTo = null;
+        synchronized (this) {
+            while (size == items.length && policy == POLICY_BLOCK) {
+                wait();
+            }
+            if (size < items.length) {
+                add(evt);
+                return;
+            }
+            if (policy == POLICY_SPILL && spill != null) {
+                if (!(evt instanceof NamedData || evt instanceof NamedDataArray)) {
+                    dropped++;
+                    return;
+                }
+                spillTo = spill;
+                spilled++;
+            } else {
+                dropOldest();
+                add(evt);
+                return;
+            }
+        }
+        // The flash isn't written while holding the lock
+        if (evt instanceof NamedData) {
+            NamedData nd = (NamedData) evt;
+            spillTo.addRecord(nd.name, nd.data);
+        } else if (evt instanceof NamedDataArray) {
+            NamedDataArray nda = (NamedDataArray) evt;
+            spillTo.addRecord(nda.name, nda.data);
+        }
+    }
+
+    /**
+     * Add a message if there's some room, without waiting.
+     *
+     * @param evt Message
+     * @return true if it was added
+     */
+    synchronized boolean offer(Event evt) {
+        if (size == items.length) {
+            return false;
+        }
+        add(evt);
+        return true;
+    }
+
+    private void add(Event evt) {
+        items[(head + size) % items.length] = evt;
+        size++;
+        notifyAll();
+    }
+
+    private void dropOldest() {
+        items[head] = null;
+        head = (head + 1) % items.length;
+        size--;
+        if (taken > 0) {
+            // It's being sent, it won't be sent again
+            taken--;
+        }
+        dropped++;
+        if (Logger.BUILD_DEBUG && M2MPClientImpl.m2mpLog_) {
+            Logger.log(this + ".dropOldest: dropped=" + dropped);
+        }
+    }
+
+    /**
+     * Take the next message to send, it stays in the queue until the commit.
+     *
+     * @param time Maximum time to wait for a message (ms), 0 to not wait
+     * @return Message, or null if there isn't any
+     */
+    synchronized Event next(long time) throws InterruptedException {
+        if (taken == size && time > 0) {
+            wait(time);
+        }
+        if (taken == size) {
+            return null;
+        }
+        return items[(head + taken++) % items.length];
+    }
+
+    /**
+     * Remove the taken messages, they were sent.
+     */
+    synchronized void commit() {
+        for (; taken > 0; taken--) {
+            items[head] = null;
+            head = (head + 1) % items.length;
+            size--;
+        }
+        notifyAll();
+    }
+
+    /**
+     * Forget the taken messages, they will be taken again.
+     */
+    synchronized void rollback() {
+        taken = 0;
+    }
+
+    synchronized int capacity() {
+        return items.length;
+    }
+
+    synchronized int size() {
+        return size;
+    }
+
+    synchronized boolean isEmpty() {
+        return size == 0;
+    }
+
+    synchronized int getNbDropped() {
+        return dropped;
+    }
+
+    synchronized int getNbSpilled() {
+        return spilled;
+    }
+
+    /**
+     * Wait for a message, or for a notification.
+     *
+     * @param time Maximum time to wait (ms)
+     * @param always Wait even if there are messages
+     */
+    synchronized void await(long time, boolean always) throws InterruptedException {
+        if (always || taken == size) {
+            wait(time);
+        }
+    }
+
+    public String toString() {
+        return "MessageQueue";
+    }
+}
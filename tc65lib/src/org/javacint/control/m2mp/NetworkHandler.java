@@ -3,11 +3,12 @@ package org.javacint.control.m2mp;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.util.Vector;
 import javax.microedition.io.Connector;
 import javax.microedition.io.SocketConnection;
 import org.javacint.at.ATExecution;
+import org.javacint.common.BufferWrapper;
 import org.javacint.common.Strings;
+import org.javacint.common.safequeue.SafeQueue;
 import org.javacint.control.m2mp.data.AcknowledgeRequest;
 import org.javacint.control.m2mp.data.Disconnected;
 import org.javacint.control.m2mp.data.Event;
@@ -58,20 +59,78 @@ class NetworkHandler {
     void setKeepAlive(int aInt) {
         keepAlive = aInt;
     }
+    /**
+     * Time (ms) to wait for more messages before writing a batch
+     */
+    private int linger;
+
+    void setLinger(int linger) {
+        this.linger = linger;
+    }
+    /**
+     * Size of the writer's buffer, and size of the batch above which it's
+     * written without waiting for more messages
+     */
+    private static final int WRITE_BUFFER_SIZE = 1460;
+    private static final int BATCH_SIZE = 1024;
+    /**
+     * Default maximum number of queued messages
+     */
+    static final int QUEUE_SIZE = 256;
     private M2MPEventsListener listener;
 
     public void setListener(M2MPEventsListener listener) {
         this.listener = listener;
     }
+    /**
+     * Define the capacity of the outbound queue.
+     *
+     * @param size Maximum number of queued messages
+     */
+    void setQueueSize(int size) {
+        send.dataOutQueue.setCapacity(size);
+    }
+
+    /**
+     * Define what happens when the outbound queue is full.
+     *
+     * @param policy MessageQueue.POLICY_BLOCK, POLICY_DROP_OLDEST or
+     * POLICY_SPILL
+     * @param spill Queue receiving the data messages of POLICY_SPILL
+     */
+    void setQueuePolicy(int policy, SafeQueue spill) {
+        send.dataOutQueue.setPolicy(policy);
+        send.dataOutQueue.setSpillQueue(spill);
+    }
+
+    MessageQueue getQueue() {
+        return send.dataOutQueue;
+    }
+    private M2MPDataListener dataListener;
+
+    /**
+     * Define the listener receiving the data without copies.
+     *
+     * It's applied at the next connection.
+     *
+     * @param dataListener Listener
+     */
+    void setDataListener(M2MPDataListener dataListener) {
+        this.dataListener = dataListener;
+    }
 
     /**
      * Takes care of sending data.
      *
+     * The queued messages are written by batches, with one write on the
+     * socket per batch. They're removed from the queue once the batch was
+     * written, a batch that failed is sent again after the reconnection.
+     *
      * This class is permanently loaded.
      */
     private class NetworkSend implements Runnable {
 
-        final Vector dataOutQueue = new Vector();
+        final MessageQueue dataOutQueue = new MessageQueue(QUEUE_SIZE);
 
         public void run() {
             if (Logger.BUILD_VERBOSE && M2MPClientImpl.m2mpLog_) {
@@ -81,26 +140,21 @@ class NetworkHandler {
                 while (true) {
                     try {
                         consider();
-                        synchronized (dataOutQueue) {
-                            if (writer != null && dataOutQueue.size() > 0) {
-                                Message msg = (Message) dataOutQueue.elementAt(0);
-                                if (Logger.BUILD_DEBUG && M2MPClientImpl.m2mpLog_) {
-                                    Logger.log(this + ".run: Sending... / size = " + dataOutQueue.size());
-                                }
-                                writer.write(msg);
-                                dataOutQueue.removeElement(msg);
-                            } else {
-                                long w = keepAlive * 1000 / 3;
-                                if (Logger.BUILD_DEBUG && M2MPClientImpl.m2mpLog_) {
-                                    Logger.log(this + ".run: Sleeping " + w + " ms.");
-                                }
-                                dataOutQueue.wait(w);
+                        M2MPWriter w = writer;
+                        if (w == null || dataOutQueue.isEmpty()) {
+                            long time = keepAlive * 1000 / 3;
+                            if (Logger.BUILD_DEBUG && M2MPClientImpl.m2mpLog_) {
+                                Logger.log(this + ".run: Sleeping " + time + " ms.");
                             }
+                            dataOutQueue.await(time, w == null);
+                            continue;
                         }
+                        sendBatch(w);
                     } catch (Exception ex) {
                         if (Logger.BUILD_CRITICAL) {
                             Logger.log(this + ".run", ex);
                         }
+                        dataOutQueue.rollback();
                         writer = null;
                     }
                 }
@@ -110,12 +164,42 @@ class NetworkHandler {
                 }
             }
         }
+
+        /**
+         * Write the queued messages, up to the batch size.
+         *
+         * The messages are serialized outside of the queue lock, the queue
+         * can be filled in the meantime.
+         */
+        private void sendBatch(M2MPWriter w) throws IOException, InterruptedException {
+            int nb = 0;
+            long end = System.currentTimeMillis() + linger;
+            while (w.size() < BATCH_SIZE) {
+                long time = end - System.currentTimeMillis();
+                Message msg = (Message) dataOutQueue.next(time > 0 ? time : 0);
+                if (msg == null) {
+                    if (time <= 0) {
+                        break;
+                    }
+                    continue;
+                }
+                w.write(msg);
+                nb++;
+            }
+            if (Logger.BUILD_DEBUG && M2MPClientImpl.m2mpLog_) {
+                Logger.log(this + ".sendBatch: Sending " + nb + " messages / " + w.size() + " bytes");
+            }
+            w.flush();
+            dataOutQueue.commit();
+        }
         private byte requestNb;
 
         private void consider() {
             long time = DateManagement.time();
             if (time - lastDataRecvTime > keepAlive && time - lastDataSendTime > (keepAlive / 2)) {
-                queue(new AcknowledgeRequest(requestNb++));
+                // The sending thread can't wait for some room
+                // 0x80 to 0xFF are the acknowledge requests of M2MPClientWithQueue
+                dataOutQueue.offer(new AcknowledgeRequest((byte) (requestNb++ & 0x7F)));
             }
             if (writer == null) {
                 connect();
@@ -127,9 +211,12 @@ class NetworkHandler {
                 Logger.log(this + ".queue( " + evt + " ); / size = " + dataOutQueue.size());
             }
             lastDataSendTime = DateManagement.time();
-            synchronized (dataOutQueue) {
-                dataOutQueue.addElement(evt);
-                dataOutQueue.notify();
+            try {
+                dataOutQueue.put(evt);
+            } catch (InterruptedException ex) {
+                if (Logger.BUILD_CRITICAL) {
+                    Logger.log(this + ".queue", ex);
+                }
             }
         }
 
@@ -186,7 +273,8 @@ class NetworkHandler {
                             OutputStream os = socket.openOutputStream();
 
                             reader = new M2MPReader(is);
-                            writer = new M2MPWriter(os);
+                            reader.setDataListener(dataListener != null ? recv : null);
+                            writer = new M2MPWriter(os, WRITE_BUFFER_SIZE);
 
                             state = STATE_CONNECTED;
 
@@ -195,6 +283,7 @@ class NetworkHandler {
                             }
 
                             writer.write(new IdentificationRequest(ident));
+                            writer.flush();
 
                             if (Logger.BUILD_VERBOSE && M2MPClientImpl.m2mpLog_) {
                                 Logger.log(this + ".connect: Identification request sent...");
@@ -252,12 +341,28 @@ class NetworkHandler {
     /**
      * Takes care of receiving data
      */
-    private class NetworkReceive implements Runnable {
+    private class NetworkReceive implements Runnable, M2MPDataListener {
 
         public String toString() {
             return "NetworkReceive";
         }
 
+        /**
+         * The internal channels ("_" prefix) are always received as messages.
+         */
+        private boolean accepts(String channelName) {
+            lastDataRecvTime = DateManagement.time();
+            return channelName != null && !channelName.startsWith("_");
+        }
+
+        public boolean m2mpData(String channelName, BufferWrapper data) {
+            return accepts(channelName) && dataListener.m2mpData(channelName, data);
+        }
+
+        public boolean m2mpDataArray(String channelName, BufferWrapper[] data, int nb) {
+            return accepts(channelName) && dataListener.m2mpDataArray(channelName, data, nb);
+        }
+
         public void run() {
             while (true) {
                 try {
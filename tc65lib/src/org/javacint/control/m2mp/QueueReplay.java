@@ -0,0 +1,267 @@
+package org.javacint.control.m2mp;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Vector;
+import org.javacint.common.Base64;
+import org.javacint.common.Bytes;
+import org.javacint.common.LZ4;
+import org.javacint.common.safequeue.SafeQueue;
+import org.javacint.common.safequeue.SafeQueueLineReader;
+import org.javacint.common.safequeue.SafeQueueRecord;
+import org.javacint.control.m2mp.data.Message;
+import org.javacint.control.m2mp.data.NamedData;
+import org.javacint.control.m2mp.data.NamedDataArray;
+import org.javacint.logging.Logger;
+
+/**
+ * Replay of the data of a SafeQueue.
+ *
+ * The records are streamed from the files by chunks, each chunk is followed by
+ * an acknowledge request of the client's window. The acknowledged position is
+ * saved by the queue (in the index of the segments), a reconnection resumes
+ * where the server stopped acknowledging. The records only in memory are saved
+ * in the files before being sent.<br />
+ * <br />
+ * The bandwidth can be limited (setRate): the chunks are sent as long as the
+ * bytes sent in the last second don't exceed the rate.
+ */
+final class QueueReplay {
+
+    /**
+     * Size of the queued data sent before asking for an ack
+     */
+    static final int CHUNK_SIZE = 2048;
+    /**
+     * Maximum number of records of a chunk (unless they're part of compressed
+     * records), the window's chunks have to fit in the outbound queue
+     */
+    static final int CHUNK_MESSAGES = 32;
+    private final M2MPClientWithQueue client;
+    private final SafeQueue queue;
+    private SafeQueueLineReader reader;
+    /**
+     * Chunks of the reader waiting for their ack, and reader that has nothing
+     * more to read
+     */
+    private int chunks;
+    private boolean readerEnd;
+    /**
+     * The queued data is sent compressed, in one data array of the "_lz"
+     * channel: the uncompressed size (4 bytes) and the LZ4 block of the M2MP
+     * frames of the data (with their own channel definitions).
+     */
+    private boolean compress;
+    static final String CHANNEL_COMPRESSED = "_lz";
+    private LZ4 lz4;
+    /**
+     * Maximum bytes per second (0 for no limit), bytes that can be sent and
+     * time they were computed
+     */
+    private int rate;
+    private long credit;
+    private long creditTime;
+
+    QueueReplay(M2MPClientWithQueue client, SafeQueue queue) {
+        this.client = client;
+        this.queue = queue;
+    }
+
+    void setCompression(boolean compress) {
+        this.compress = compress;
+    }
+
+    /**
+     * Limit the bandwidth of the replay.
+     *
+     * @param rate Bytes per second, 0 for no limit
+     */
+    void setRate(int rate) {
+        this.rate = rate;
+    }
+
+    /**
+     * Check if there's something to replay.
+     *
+     * @return true if a chunk can be sent (regardless of the rate)
+     */
+    boolean hasData() {
+        return !readerEnd && (reader != null || queue.hasData());
+    }
+
+    /**
+     * Check if the replay is waiting for some acks.
+     *
+     * @return true if some chunks weren't acknowledged
+     */
+    boolean isPending() {
+        return chunks > 0;
+    }
+
+    /**
+     * Get the time to wait before sending the next chunk.
+     *
+     * @return Time (ms), 0 if a chunk can be sent now
+     */
+    long getWaitTime() {
+        if (rate <= 0) {
+            return 0;
+        }
+        long now = System.currentTimeMillis();
+        credit = Math.min(credit + (now - creditTime) * rate / 1000, rate);
+        creditTime = now;
+        return credit > 0 ? 0 : 1 - credit * 1000 / rate;
+    }
+
+    /**
+     * Send the next chunk and its acknowledge request.
+     *
+     * @return Size of the records sent, -1 if there was nothing to send
+     */
+    int sendChunk() {
+        if (reader == null) {
+            // The progress of the records in memory couldn't be saved
+            queue.saveMemoryInFile();
+            reader = queue.getFirstItemsSetWaitingFile();
+            if (reader == null) {
+                return -1;
+            }
+        }
+        ByteArrayOutputStream frames = compress ? new ByteArrayOutputStream() : null;
+        M2MPWriter writer = compress ? new M2MPWriter(frames) : null;
+        SafeQueueRecord record;
+        int nb = 0;
+        int size = 0;
+        // Only what is sent before the ack request is acknowledged, the next chunk starts after it
+        for (; ((size < CHUNK_SIZE && nb < CHUNK_MESSAGES) || reader.inBlock()) && (record = reader.readRecord()) != null; size += record.size()) {
+            nb++;
+            Message msg = toMessage(record);
+            if (msg == null) {
+                continue;
+            }
+            if (writer != null) {
+                try {
+                    writer.write(msg);
+                } catch (IOException ex) {
+                    // Writing in memory
+                }
+            } else {
+                client.send(msg);
+            }
+        }
+        long mark = reader.mark();
+        if (nb == 0 && mark != Long.MAX_VALUE) {
+            end();
+            return -1;
+        }
+        if (writer != null && frames.size() > 0) {
+            byte[] data = frames.toByteArray();
+            byte[] length = new byte[4];
+            Bytes.longToUInt32Bytes(data.length, length, 0);
+            if (lz4 == null) {
+                lz4 = new LZ4();
+            }
+            client.send(new NamedDataArray(CHANNEL_COMPRESSED, new byte[][]{length, lz4.compress(data)}));
+        }
+        // The end of a file is acknowledged to delete it
+        M2MPClientWithQueue.PendingAck ack = client.requestAck();
+        ack.reader = reader;
+        ack.mark = mark;
+        chunks++;
+        credit -= size;
+        if (mark == Long.MAX_VALUE) {
+            end();
+        }
+        return size;
+    }
+
+    /**
+     * The reader has nothing more to read, the next one starts where it was
+     * acknowledged.
+     */
+    private void end() {
+        readerEnd = true;
+        if (chunks == 0) {
+            reset();
+        }
+    }
+
+    /**
+     * A chunk was acknowledged.
+     *
+     * @param reader Reader of the chunk
+     * @param mark Position following the chunk
+     */
+    void acknowledged(SafeQueueLineReader reader, long mark) {
+        try {
+            reader.acknowledge(mark);
+        } catch (IOException ex) {
+            if (Logger.BUILD_CRITICAL) {
+                Logger.log(this + ".acknowledged", ex, true);
+            }
+        }
+        if (reader == this.reader && --chunks == 0 && readerEnd) {
+            reset();
+        }
+    }
+
+    /**
+     * Forget the chunks that weren't acknowledged, they will be read again.
+     */
+    void reset() {
+        if (reader != null) {
+            try {
+                reader.close();
+            } catch (IOException ex) {
+                if (Logger.BUILD_CRITICAL) {
+                    Logger.log(this + ".reset", ex, true);
+                }
+            }
+        }
+        reader = null;
+        chunks = 0;
+        readerEnd = false;
+    }
+
+    /**
+     * Get the message of a record of the queue.
+     *
+     * @param record Record
+     * @return Message, null if the record isn't a data record
+     */
+    private static Message toMessage(SafeQueueRecord record) {
+        if (!record.isLine()) {
+            if (record.array) {
+                return new NamedDataArray(record.channel, record.data);
+            } else {
+                return new NamedData(record.channel, record.data[0]);
+            }
+        }
+        // Lines of the files written before the records
+        String line = record.line;
+        int p = line.indexOf(',');
+        if (p < 0) {
+            return null;
+        }
+        String channelName = line.substring(0, p);
+        if (channelName.startsWith(".")) {
+            Vector data = new Vector();
+            for (int q = p + 1; q <= line.length(); q = p + 1) {
+                p = line.indexOf(',', q);
+                if (p < 0) {
+                    p = line.length();
+                }
+                data.addElement(Base64.decode(line.substring(q, p)));
+            }
+            byte[][] array = new byte[data.size()][];
+            data.copyInto(array);
+            return new NamedDataArray(channelName.substring(1), array);
+        } else {
+            return new NamedData(channelName, Base64.decode(line.substring(p + 1)));
+        }
+    }
+
+    public String toString() {
+        return "QueueReplay";
+    }
+}
@@ -6,7 +6,6 @@ import com.siemens.icm.io.*;
 //# import com.cinterion.io.*;
 //#endif
 import org.javacint.at.ATCommands;
-import org.javacint.at.ATURCQueueHandler;
 import org.javacint.common.Strings;
 import org.javacint.logging.Logger;
 
@@ -16,8 +15,7 @@ import org.javacint.logging.Logger;
 public class GSMEventConverter implements ATCommandListener {
 
     private final GSMEventConsumer consumer;
-    // Maybe this should be handled at the ATCommands level...
-    private final ATURCQueueHandler handler = new ATURCQueueHandler(this);
+    private static final String[] URCS = {"+CIEV"};
 
     public GSMEventConverter(GSMEventConsumer consumer) {
         this.consumer = consumer;
@@ -27,7 +25,7 @@ public class GSMEventConverter implements ATCommandListener {
      * Start the events handling.
      */
     public void start() {
-        ATCommands.addListener(handler);
+        ATCommands.addListener(URCS, this);
         ATCommands.sendUrc("AT+CMER=2,0,0,2");
     }
 
@@ -35,7 +33,7 @@ public class GSMEventConverter implements ATCommandListener {
      * Stop the events handling.
      */
     public void stop() {
-        ATCommands.removeListener(handler);
+        ATCommands.removeListener(URCS, this);
     }
 
     public void ATEvent(String event) {
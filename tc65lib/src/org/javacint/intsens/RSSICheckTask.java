@@ -1,11 +1,23 @@
 package org.javacint.intsens;
 
+//#if sdkns == "siemens"
+import com.siemens.icm.io.*;
+//#elif sdkns == "cinterion"
+//# import com.cinterion.io.*;
+//#endif
 import java.util.TimerTask;
+import org.javacint.at.ATCommands;
 import org.javacint.at.ATExecution;
 import org.javacint.logging.Logger;
 import org.javacint.task.Timers;
 
-public abstract class RSSICheckTask extends TimerTask {
+/**
+ * RSSI checking timer task base class.
+ *
+ * The AT+CSQ command is queued asynchronously, the timer thread doesn't wait
+ * for the modem. changed() is called on the timer thread.
+ */
+public abstract class RSSICheckTask extends TimerTask implements ATCommandResponseListener {
 
     private final int diffSend;
     private int last = -1000;
@@ -19,12 +31,16 @@ public abstract class RSSICheckTask extends TimerTask {
     }
 
     public void run() {
+        ATCommands.sendAsync("AT+CSQ", this);
+    }
+
+    public void ATResponse(String response) {
         try {
-            int rssi = ATExecution.getRssi();
+            int rssi = ATExecution.parseRssi(response);
 
             if (Math.abs(rssi - last) >= diffSend) {
                 last = rssi;
-                changed(rssi);
+                notifyChanged(rssi);
             }
 
             if (rssi < -100) {
@@ -33,7 +49,7 @@ public abstract class RSSICheckTask extends TimerTask {
 
         } catch (Exception ex) {
             if (Logger.BUILD_CRITICAL) {
-                Logger.log(this + ".run", ex, true);
+                Logger.log(this + ".ATResponse", ex, true);
             }
 
             // If we fail, it's best that we don't run anymore
@@ -41,6 +57,27 @@ public abstract class RSSICheckTask extends TimerTask {
         }
     }
 
+    /**
+     * Call changed on the timer thread, the modem response thread isn't
+     * blocked.
+     */
+    private void notifyChanged(final int rssi) {
+        Timers.getFast().schedule(new TimerTask() {
+            public void run() {
+                try {
+                    changed(rssi);
+                } catch (Exception ex) {
+                    if (Logger.BUILD_CRITICAL) {
+                        Logger.log(RSSICheckTask.this + ".changed", ex, true);
+                    }
+
+                    // If we fail, it's best that we don't run anymore
+                    RSSICheckTask.this.cancel();
+                }
+            }
+        }, 0);
+    }
+
     public void schedule() {
         schedule(60000);
     }
@@ -50,5 +87,10 @@ public abstract class RSSICheckTask extends TimerTask {
         Timers.getFast().schedule(this, 0, period);
     }
 
+    /**
+     * Called on the timer thread (of Timers.getFast) when the level changed.
+     *
+     * @param level RSSI level
+     */
     public abstract void changed(int level);
 }
@@ -1,14 +1,23 @@
 package org.javacint.intsens;
 
+//#if sdkns == "siemens"
+import com.siemens.icm.io.*;
+//#elif sdkns == "cinterion"
+//# import com.cinterion.io.*;
+//#endif
 import java.util.TimerTask;
+import org.javacint.at.ATCommands;
 import org.javacint.at.ATExecution;
 import org.javacint.logging.Logger;
 import org.javacint.task.Timers;
 
 /**
  * Temperature checking timer task base class.
+ *
+ * The AT^SCTM? command is queued asynchronously, the timer thread doesn't wait
+ * for the modem. changed() is called on the timer thread.
  */
-public abstract class TempCheckTask extends TimerTask {
+public abstract class TempCheckTask extends TimerTask implements ATCommandResponseListener {
 
     private final int diffSend;
     private int lastTemp = -1000;
@@ -28,11 +37,24 @@ public abstract class TempCheckTask extends TimerTask {
                 lastTemp = -500;
             }
 
-            int temp = ATExecution.getTemp();
+            ATCommands.sendAsync("AT^SCTM?", this);
+        } catch (Exception ex) {
+            if (Logger.BUILD_CRITICAL) {
+                Logger.log(this + ".run", ex, true);
+            }
+
+            // If we fail, it's best that we don't run anymore
+            cancel();
+        }
+    }
+
+    public void ATResponse(String response) {
+        try {
+            int temp = ATExecution.parseTemp(response);
 
             if (Math.abs(temp - lastTemp) >= diffSend) {
                 lastTemp = temp;
-                changed(temp);
+                notifyChanged(temp);
             }
 
             if (temp < -100) {
@@ -41,7 +63,7 @@ public abstract class TempCheckTask extends TimerTask {
 
         } catch (Exception ex) {
             if (Logger.BUILD_CRITICAL) {
-                Logger.log(this + ".run", ex, true);
+                Logger.log(this + ".ATResponse", ex, true);
             }
 
             // If we fail, it's best that we don't run anymore
@@ -49,6 +71,27 @@ public abstract class TempCheckTask extends TimerTask {
         }
     }
 
+    /**
+     * Call changed on the timer thread, the modem response thread isn't
+     * blocked.
+     */
+    private void notifyChanged(final int temp) {
+        Timers.getSlow().schedule(new TimerTask() {
+            public void run() {
+                try {
+                    changed(temp);
+                } catch (Exception ex) {
+                    if (Logger.BUILD_CRITICAL) {
+                        Logger.log(TempCheckTask.this + ".changed", ex, true);
+                    }
+
+                    // If we fail, it's best that we don't run anymore
+                    TempCheckTask.this.cancel();
+                }
+            }
+        }, 0);
+    }
+
     public String toString() {
         return "TempCheckTask";
     }
@@ -58,5 +101,11 @@ public abstract class TempCheckTask extends TimerTask {
         Timers.getSlow().schedule(this, 0, 2 * 60 * 1000);
     }
 
+    /**
+     * Called on the timer thread (of Timers.getSlow) when the temperature
+     * changed.
+     *
+     * @param temp Temperature of the chip
+     */
     public abstract void changed(int temp);
 }
@@ -1,14 +1,23 @@
 package org.javacint.intsens;
 
+//#if sdkns == "siemens"
+import com.siemens.icm.io.*;
+//#elif sdkns == "cinterion"
+//# import com.cinterion.io.*;
+//#endif
 import java.util.TimerTask;
+import org.javacint.at.ATCommands;
 import org.javacint.at.ATExecution;
 import org.javacint.logging.Logger;
 import org.javacint.task.Timers;
 
 /**
  * Voltage checking timer task base class.
+ *
+ * The AT^SBV command is queued asynchronously, the timer thread doesn't wait
+ * for the modem. changed() is called on the timer thread.
  */
-public abstract class VoltageCheckTask extends TimerTask {
+public abstract class VoltageCheckTask extends TimerTask implements ATCommandResponseListener {
 
     private final int step;
     private int lastVoltage;
@@ -18,15 +27,19 @@ public abstract class VoltageCheckTask extends TimerTask {
     }
 
     public void run() {
+        ATCommands.sendAsync("AT^SBV", this);
+    }
+
+    public void ATResponse(String response) {
         try {
-            int voltage = ATExecution.getVoltage();
+            int voltage = ATExecution.parseVoltage(response);
             if (Math.abs(voltage - lastVoltage) > step) {
                 lastVoltage = voltage;
-                changed(voltage);
+                notifyChanged(voltage);
             }
         } catch (Throwable ex) {
             if (Logger.BUILD_CRITICAL) {
-                Logger.log("VoltageCheckTask.run", ex, true);
+                Logger.log("VoltageCheckTask.ATResponse", ex, true);
             }
 
             // If we fail, it's best that we don't run anymore
@@ -34,10 +47,36 @@ public abstract class VoltageCheckTask extends TimerTask {
         }
     }
 
+    /**
+     * Call changed on the timer thread, the modem response thread isn't
+     * blocked.
+     */
+    private void notifyChanged(final int voltage) {
+        Timers.getSlow().schedule(new TimerTask() {
+            public void run() {
+                try {
+                    changed(voltage);
+                } catch (Exception ex) {
+                    if (Logger.BUILD_CRITICAL) {
+                        Logger.log("VoltageCheckTask.changed", ex, true);
+                    }
+
+                    // If we fail, it's best that we don't run anymore
+                    VoltageCheckTask.this.cancel();
+                }
+            }
+        }, 0);
+    }
+
     public void schedule(long period) {
         // Every minute
         Timers.getSlow().schedule(this, 0, period);
     }
 
+    /**
+     * Called on the timer thread (of Timers.getSlow) when the voltage changed.
+     *
+     * @param voltage Voltage (mV)
+     */
     public abstract void changed(int voltage);
 }
@@ -9,7 +9,6 @@ import java.util.Enumeration;
 import java.util.TimerTask;
 import java.util.Vector;
 import org.javacint.at.ATCommands;
-import org.javacint.at.ATURCQueueHandler;
 import org.javacint.common.Strings;
 import org.javacint.logging.Logger;
 import org.javacint.task.Timers;
@@ -21,6 +20,7 @@ public class SMSReceiver implements ATCommandListener {
 
     private static final Vector consumers = new Vector();
     private static SMSReceiver instance = new SMSReceiver();
+    private static final String[] URCS = {"+CMTI"};
 
     private SMSReceiver() {
     }
@@ -68,7 +68,7 @@ public class SMSReceiver implements ATCommandListener {
      * the SMS Receiver <li>Start the SMS receiver (and only now) </ul>
      */
     public static void start() {
-        ATCommands.addListener(new ATURCQueueHandler(instance)); // This indirection prevents the URC call from being blocked
+        ATCommands.addListener(URCS, instance); // Called from the URC dispatcher, so the URC call isn't blocked
 
         // text mode (PDU mode is too complex for now)
         ATCommands.sendAll("AT+CMGF=1");
@@ -90,7 +90,7 @@ public class SMSReceiver implements ATCommandListener {
         // We are getting the messagest list in asynchronous mode, so we
         // can't have a timeout error but the response can still be too long
         // to be retrieved.
-        String response = ATCommands.sendLong("AT+CMGL=\"ALL\"");
+        String response = ATCommands.sendLong("AT+CMGL=\"ALL\"", ATCommands.PRIORITY_BULK);
         if (response != null) {
             final String[] lines = Strings.split('\n', response);
             for (int i = 0; i < lines.length; i++) {
@@ -122,7 +122,7 @@ public class SMSReceiver implements ATCommandListener {
      * Stop SMS reception
      */
     public static void stop() {
-        ATCommands.removeListener(instance);
+        ATCommands.removeListener(URCS, instance);
     }
 
     public void ATEvent(String urc) {
@@ -171,7 +171,7 @@ public class SMSReceiver implements ATCommandListener {
         }
         try {
             String cmd = "AT+CMGR=" + index;
-            String rawSms = ATCommands.send(cmd);
+            String rawSms = ATCommands.send(cmd, ATCommands.PRIORITY_CRITICAL);
             if (Logger.BUILD_DEBUG && LOG_SMS_RECEPTION) {
                 Logger.log("Raw: " + rawSms.replace('\r', '%').replace('\n', '$'));
             }
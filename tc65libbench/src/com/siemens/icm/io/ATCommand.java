@@ -0,0 +1,116 @@
+package com.siemens.icm.io;
+
+import java.util.Vector;
+import org.javacint.bench.emu.ModemEmulator;
+
+/**
+ * Host stand-in of the SDK's ATCommand.
+ *
+ * Each instance is an AT channel of the emulated modem: commands are answered
+ * by the ModemEmulator script after its configured latency, and instances
+ * created with URC monitoring receive the URCs injected in the emulator.
+ */
+public class ATCommand {
+
+    private final Vector listeners = new Vector();
+    private final boolean urc;
+    private final Vector urcQueue = new Vector();
+    private Thread urcThread;
+    private boolean released;
+
+    public ATCommand(boolean csdSupport) throws ATCommandFailedException {
+        this(csdSupport, false, false, false, false, false);
+    }
+
+    public ATCommand(boolean csdSupport, boolean urcSupport, boolean ringSupport, boolean dcdSupport, boolean dsrSupport, boolean connSupport) throws ATCommandFailedException {
+        this.urc = urcSupport;
+        if (urc) {
+            // Like on the module, URCs are delivered by the instance's listener thread
+            urcThread = new Thread(new Runnable() {
+                public void run() {
+                    deliverUrcs();
+                }
+            }, "urc");
+            urcThread.setDaemon(true);
+            urcThread.start();
+        }
+        ModemEmulator.register(this);
+    }
+
+    public synchronized String send(String cmd) throws ATCommandFailedException {
+        if (released) {
+            throw new ATCommandFailedException("Released");
+        }
+        return ModemEmulator.execute(cmd);
+    }
+
+    public void send(final String cmd, final ATCommandResponseListener listener) throws ATCommandFailedException {
+        if (released) {
+            throw new ATCommandFailedException("Released");
+        }
+        Thread thread = new Thread(new Runnable() {
+            public void run() {
+                String response = null;
+                try {
+                    response = send(cmd);
+                } catch (ATCommandFailedException ex) {
+                    ex.printStackTrace();
+                }
+                listener.ATResponse(response);
+            }
+        }, "atr");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public void addListener(ATCommandListener listener) {
+        listeners.addElement(listener);
+    }
+
+    public void removeListener(ATCommandListener listener) {
+        listeners.removeElement(listener);
+    }
+
+    public void release() throws ATCommandFailedException {
+        released = true;
+    }
+
+    /**
+     * Queue a URC for this instance's listeners (called by the emulator).
+     *
+     * @param event URC
+     */
+    public void injectUrc(String event) {
+        if (!urc) {
+            return;
+        }
+        synchronized (urcQueue) {
+            urcQueue.addElement(event);
+            urcQueue.notify();
+        }
+    }
+
+    private void deliverUrcs() {
+        while (true) {
+            String event;
+            synchronized (urcQueue) {
+                while (urcQueue.isEmpty()) {
+                    try {
+                        urcQueue.wait();
+                    } catch (InterruptedException ex) {
+                        return;
+                    }
+                }
+                event = (String) urcQueue.elementAt(0);
+                urcQueue.removeElementAt(0);
+            }
+            for (int i = 0; i < listeners.size(); i++) {
+                try {
+                    ((ATCommandListener) listeners.elementAt(i)).ATEvent(event);
+                } catch (Throwable ex) {
+                    ex.printStackTrace();
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,14 @@
+package com.siemens.icm.io;
+
+/**
+ * Host stand-in of the SDK's AT command failure exception.
+ */
+public class ATCommandFailedException extends Exception {
+
+    public ATCommandFailedException() {
+    }
+
+    public ATCommandFailedException(String message) {
+        super(message);
+    }
+}
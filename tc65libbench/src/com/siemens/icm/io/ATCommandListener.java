@@ -0,0 +1,17 @@
+package com.siemens.icm.io;
+
+/**
+ * Host stand-in of the SDK's URC and signal lines listener.
+ */
+public interface ATCommandListener {
+
+    void ATEvent(String event);
+
+    void RINGChanged(boolean signalState);
+
+    void DCDChanged(boolean signalState);
+
+    void DSRChanged(boolean signalState);
+
+    void CONNChanged(boolean signalState);
+}
@@ -0,0 +1,9 @@
+package com.siemens.icm.io;
+
+/**
+ * Host stand-in of the SDK's asynchronous response listener.
+ */
+public interface ATCommandResponseListener {
+
+    void ATResponse(String response);
+}
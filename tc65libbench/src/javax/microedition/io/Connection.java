@@ -0,0 +1,11 @@
+package javax.microedition.io;
+
+import java.io.IOException;
+
+/**
+ * Host stand-in of the GCF base connection.
+ */
+public interface Connection {
+
+    void close() throws IOException;
+}
@@ -0,0 +1,16 @@
+package javax.microedition.io;
+
+import java.io.IOException;
+
+/**
+ * Host stand-in of the GCF unsupported connection exception.
+ */
+public class ConnectionNotFoundException extends IOException {
+
+    public ConnectionNotFoundException() {
+    }
+
+    public ConnectionNotFoundException(String message) {
+        super(message);
+    }
+}
@@ -0,0 +1,54 @@
+package javax.microedition.io;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import org.javacint.bench.emu.FlashEmulator;
+
+/**
+ * Host stand-in of the GCF connections factory.
+ *
+ * Only the "file://" protocol is supported, on the FlashEmulator.
+ */
+public class Connector {
+
+    public static final int READ = 1;
+    public static final int WRITE = 2;
+    public static final int READ_WRITE = 3;
+
+    private Connector() {
+    }
+
+    public static Connection open(String name) throws IOException {
+        return open(name, READ_WRITE, false);
+    }
+
+    public static Connection open(String name, int mode) throws IOException {
+        return open(name, mode, false);
+    }
+
+    public static Connection open(String name, int mode, boolean timeouts) throws IOException {
+        if (name.startsWith("file:///")) {
+            return FlashEmulator.open(name);
+        }
+        throw new ConnectionNotFoundException(name);
+    }
+
+    public static InputStream openInputStream(String name) throws IOException {
+        return ((InputConnection) open(name, READ)).openInputStream();
+    }
+
+    public static DataInputStream openDataInputStream(String name) throws IOException {
+        return new DataInputStream(openInputStream(name));
+    }
+
+    public static OutputStream openOutputStream(String name) throws IOException {
+        return ((OutputConnection) open(name, WRITE)).openOutputStream();
+    }
+
+    public static DataOutputStream openDataOutputStream(String name) throws IOException {
+        return new DataOutputStream(openOutputStream(name));
+    }
+}
@@ -0,0 +1,15 @@
+package javax.microedition.io;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Host stand-in of the GCF input connection.
+ */
+public interface InputConnection extends Connection {
+
+    InputStream openInputStream() throws IOException;
+
+    DataInputStream openDataInputStream() throws IOException;
+}
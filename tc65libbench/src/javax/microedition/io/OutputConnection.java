@@ -0,0 +1,15 @@
+package javax.microedition.io;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Host stand-in of the GCF output connection.
+ */
+public interface OutputConnection extends Connection {
+
+    OutputStream openOutputStream() throws IOException;
+
+    DataOutputStream openDataOutputStream() throws IOException;
+}
@@ -0,0 +1,7 @@
+package javax.microedition.io;
+
+/**
+ * Host stand-in of the GCF socket connection.
+ */
+public interface SocketConnection extends StreamConnection {
+}
@@ -0,0 +1,7 @@
+package javax.microedition.io;
+
+/**
+ * Host stand-in of the GCF stream connection.
+ */
+public interface StreamConnection extends InputConnection, OutputConnection {
+}
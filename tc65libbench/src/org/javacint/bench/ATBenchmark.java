@@ -0,0 +1,234 @@
+package org.javacint.bench;
+
+import com.siemens.icm.io.ATCommandListener;
+import org.javacint.at.ATCommandFuture;
+import org.javacint.at.ATCommandPool;
+import org.javacint.at.ATCommands;
+import org.javacint.at.ATURCDispatcher;
+import org.javacint.at.ATURCQueueHandler;
+import org.javacint.bench.emu.ModemEmulator;
+
+/**
+ * Benchmarks of the org.javacint.at layer on the emulated modem.
+ *
+ * Arguments (all optional): latency=&lt;ms&gt; pool=&lt;instances&gt;
+ * threads=&lt;n&gt; ops=&lt;operations per thread&gt;
+ */
+public class ATBenchmark {
+
+    private static int latency = 20;
+    private static int poolSize = 2;
+    private static int threads = 8;
+    private static int ops = 50;
+
+    /**
+     * Benchmark of the AT layer, reporting the pool waits.
+     */
+    private static abstract class ATLayerBenchmark extends Benchmark {
+
+        private int waited, timeouts, merged;
+        private long waitTime;
+
+        ATLayerBenchmark(String name, int threads) {
+            super(name, threads, ops, Math.max(ops / 10, 1));
+        }
+
+        protected void beforeMeasure() {
+            ATCommandPool pool = ATCommands.getPool();
+            waited = pool.getNbWaited();
+            timeouts = pool.getNbTimeouts();
+            waitTime = pool.getTotalWaitTime();
+            merged = ATCommands.getNbMerged();
+            ModemEmulator.resetCounters();
+        }
+
+        protected String counters() {
+            ATCommandPool pool = ATCommands.getPool();
+            int w = pool.getNbWaited() - waited;
+            long wt = pool.getTotalWaitTime() - waitTime;
+            return "poolWaits=" + w
+                    + " poolWaitAvg=" + (w > 0 ? wt / w : 0) + "ms"
+                    + " poolTimeouts=" + (pool.getNbTimeouts() - timeouts)
+                    + " merged=" + (ATCommands.getNbMerged() - merged)
+                    + " modemCmds=" + ModemEmulator.getNbExecuted()
+                    + " modemParallel=" + ModemEmulator.getMaxRunning();
+        }
+    }
+
+    /**
+     * URC delivery benchmark: each operation injects a burst of URCs and waits
+     * for the delivery of the last one through an ATURCQueueHandler or the
+     * URC router.
+     */
+    private static class URCBenchmark extends Benchmark implements ATCommandListener {
+
+        private final String[] URCS = {"+CIEV"};
+        private final Object lock = new Object();
+        private final int burst;
+        private final boolean routed;
+        private int received = -1, next;
+
+        URCBenchmark(String name, int burst, boolean routed) {
+            super(name, 1, ops, Math.max(ops / 10, 1));
+            this.burst = burst;
+            this.routed = routed;
+        }
+
+        private ATURCQueueHandler handler;
+
+        protected void setUp() {
+            if (routed) {
+                ATCommands.addListener(URCS, this);
+            } else {
+                handler = new ATURCQueueHandler(this, new String[]{"+CIEV: bench,"});
+                ATCommands.addListener(handler);
+            }
+        }
+
+        protected void tearDown() {
+            if (routed) {
+                ATCommands.removeListener(URCS, this);
+            } else {
+                ATCommands.removeListener(handler);
+            }
+        }
+
+        protected void beforeMeasure() {
+            ATURCDispatcher.getDefault().resetCounters();
+        }
+
+        protected String counters() {
+            return ATURCDispatcher.getDefault()
+                    + (routed ? " " + ATCommands.getRouter() : "");
+        }
+
+        protected void operation(int thread, int i) throws Exception {
+            synchronized (lock) {
+                int last = next + burst - 1;
+                while (next <= last) {
+                    ModemEmulator.injectUrc("+CIEV: bench," + next++);
+                }
+                while (received < last) {
+                    lock.wait();
+                }
+            }
+        }
+
+        public void ATEvent(String event) {
+            event = event.trim();
+            if (event.startsWith("+CIEV: bench,")) {
+                synchronized (lock) {
+                    received = Math.max(received, Integer.parseInt(event.substring("+CIEV: bench,".length())));
+                    lock.notifyAll();
+                }
+            }
+        }
+
+        public void RINGChanged(boolean bln) {
+        }
+
+        public void DCDChanged(boolean bln) {
+        }
+
+        public void DSRChanged(boolean bln) {
+        }
+
+        public void CONNChanged(boolean bln) {
+        }
+    }
+
+    private static void parseArgs(String[] args) {
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            int p = arg.indexOf('=');
+            if (p < 0) {
+                continue;
+            }
+            String key = arg.substring(0, p);
+            int value = Integer.parseInt(arg.substring(p + 1));
+            if (key.equals("latency")) {
+                latency = value;
+            } else if (key.equals("pool")) {
+                poolSize = value;
+            } else if (key.equals("threads")) {
+                threads = value;
+            } else if (key.equals("ops")) {
+                ops = value;
+            }
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        parseArgs(args);
+        ModemEmulator.setLatency(latency, latency);
+        ATCommands.setPoolSize(poolSize);
+        System.out.println("# AT layer benchmark: latency=" + latency + "ms pool=" + ATCommands.getPool().size()
+                + " threads=" + threads + " ops=" + ops);
+
+        new ATLayerBenchmark("send/single", 1) {
+            protected void operation(int thread, int i) {
+                ATCommands.send("AT+CMGR=1");
+            }
+        }.run(System.out);
+
+        new ATLayerBenchmark("send/multi", threads) {
+            protected void operation(int thread, int i) {
+                ATCommands.send("AT+CMGR=1");
+            }
+        }.run(System.out);
+
+        new ATLayerBenchmark("send-readonly/multi", threads) {
+            protected void operation(int thread, int i) {
+                ATCommands.send("AT+COPS?");
+            }
+        }.run(System.out);
+
+        new ATLayerBenchmark("async/multi", threads) {
+            protected void operation(int thread, int i) {
+                ATCommandFuture future = ATCommands.sendAsync("AT+CMGR=1");
+                future.get();
+            }
+        }.run(System.out);
+
+        // Half of the threads send slow bulk commands, the other half critical ones
+        ModemEmulator.setLatency("AT+CMGL", latency * 10);
+        new ATLayerBenchmark("priority/mixed", threads) {
+            private long[] waitTime = new long[3];
+            private int[] waited = new int[3];
+
+            protected void beforeMeasure() {
+                super.beforeMeasure();
+                ATCommandPool pool = ATCommands.getPool();
+                for (int p = 0; p < 3; p++) {
+                    waitTime[p] = pool.getTotalWaitTime(p);
+                    waited[p] = pool.getNbWaited(p);
+                }
+            }
+
+            protected void operation(int thread, int i) {
+                if (thread % 2 == 0) {
+                    ATCommands.sendLong("AT+CMGL=\"ALL\"", ATCommands.PRIORITY_BULK);
+                } else {
+                    ATCommands.send("AT+CMGR=1", ATCommands.PRIORITY_CRITICAL);
+                }
+            }
+
+            protected String counters() {
+                ATCommandPool pool = ATCommands.getPool();
+                StringBuffer sb = new StringBuffer(super.counters());
+                for (int p = 0; p < 3; p++) {
+                    int w = pool.getNbWaited(p) - waited[p];
+                    sb.append(" P").append(p).append("waitAvg=").
+                            append(w > 0 ? (pool.getTotalWaitTime(p) - waitTime[p]) / w : 0).append("ms");
+                }
+                return sb.toString();
+            }
+        }.run(System.out);
+
+        new URCBenchmark("urc/queue-handler", 1, false).run(System.out);
+        new URCBenchmark("urc/burst-16", 16, false).run(System.out);
+        new URCBenchmark("urc/routed-burst-16", 16, true).run(System.out);
+
+        System.exit(0);
+    }
+}
@@ -0,0 +1,144 @@
+package org.javacint.bench;
+
+import java.io.PrintStream;
+import java.util.Arrays;
+
+/**
+ * Benchmark base class.
+ *
+ * A benchmark runs an operation a number of times on a number of threads,
+ * first for warmup and then for measurement, and reports the throughput and
+ * the latency percentiles of the measured operations.
+ */
+public abstract class Benchmark {
+
+    private final String name;
+    private final int threads;
+    private final int ops;
+    private final int warmupOps;
+
+    /**
+     * @param name Name of the benchmark
+     * @param threads Number of threads
+     * @param ops Number of measured operations per thread
+     * @param warmupOps Number of warmup operations per thread
+     */
+    protected Benchmark(String name, int threads, int ops, int warmupOps) {
+        this.name = name;
+        this.threads = threads;
+        this.ops = ops;
+        this.warmupOps = warmupOps;
+    }
+
+    /**
+     * Prepare the benchmark, called before the warmup.
+     */
+    protected void setUp() throws Exception {
+    }
+
+    /**
+     * Clean up the benchmark, called after the measurement.
+     */
+    protected void tearDown() throws Exception {
+    }
+
+    /**
+     * Called between warmup and measurement (to reset the counters).
+     */
+    protected void beforeMeasure() {
+    }
+
+    /**
+     * Additional results of the benchmark, called after the measurement.
+     *
+     * @return Results to display (can be null)
+     */
+    protected String counters() {
+        return null;
+    }
+
+    /**
+     * Run one operation.
+     *
+     * @param thread Thread number
+     * @param i Operation number
+     */
+    protected abstract void operation(int thread, int i) throws Exception;
+
+    private long[] runThreads(final int nb) throws InterruptedException {
+        final long[] latencies = new long[threads * nb];
+        Thread[] th = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            final int thread = t;
+            th[t] = new Thread(new Runnable() {
+                public void run() {
+                    for (int i = 0; i < nb; i++) {
+                        long start = System.nanoTime();
+                        try {
+                            operation(thread, i);
+                        } catch (Exception ex) {
+                            ex.printStackTrace();
+                        }
+                        latencies[thread * nb + i] = System.nanoTime() - start;
+                    }
+                }
+            }, name + "-" + t);
+        }
+        for (int t = 0; t < threads; t++) {
+            th[t].start();
+        }
+        for (int t = 0; t < threads; t++) {
+            th[t].join();
+        }
+        return latencies;
+    }
+
+    /**
+     * Run the benchmark and print its results.
+     *
+     * @param out Output
+     */
+    public void run(PrintStream out) throws Exception {
+        setUp();
+        runThreads(warmupOps);
+        beforeMeasure();
+        long start = System.nanoTime();
+        long[] latencies = runThreads(ops);
+        long elapsed = System.nanoTime() - start;
+        Arrays.sort(latencies);
+        int total = latencies.length;
+        StringBuffer sb = new StringBuffer();
+        sb.append(pad(name, 24)).
+                append(" threads=").append(threads).
+                append(" ops=").append(total).
+                append(" ops/s=").append(total * 1000000000L / Math.max(elapsed, 1)).
+                append(" p50=").append(ms(latencies[total / 2])).
+                append(" p99=").append(ms(latencies[Math.min(total - 1, total * 99 / 100)])).
+                append(" max=").append(ms(latencies[total - 1]));
+        String counters = counters();
+        if (counters != null) {
+            sb.append(' ').append(counters);
+        }
+        out.println(sb.toString());
+        tearDown();
+    }
+
+    /**
+     * Format a nanoseconds duration in milliseconds.
+     *
+     * @param ns Duration (ns)
+     * @return Duration (ms) with two decimals
+     */
+    protected static String ms(long ns) {
+        long cent = ns / 10000;
+        return (cent / 100) + "." + (cent % 100 < 10 ? "0" : "") + (cent % 100) + "ms";
+    }
+
+    private static String pad(String s, int len) {
+        StringBuffer sb = new StringBuffer(s);
+        while (sb.length() < len) {
+            sb.append(' ');
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,230 @@
+package org.javacint.bench;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import org.javacint.bench.emu.SocketEmulator;
+import org.javacint.common.BufferWrapper;
+import org.javacint.control.m2mp.M2MPDataListener;
+import org.javacint.control.m2mp.M2MPReader;
+import org.javacint.control.m2mp.M2MPWriter;
+import org.javacint.control.m2mp.data.AcknowledgeRequest;
+import org.javacint.control.m2mp.data.AcknowledgeResponse;
+import org.javacint.control.m2mp.data.Message;
+import org.javacint.control.m2mp.data.NamedData;
+import org.javacint.control.m2mp.data.NamedDataArray;
+
+/**
+ * Benchmarks of the M2MP writer on the socket stand-in, and of the M2MP
+ * reader.
+ *
+ * The messages are dated sensor data (timestamp and ~30 bytes) on three
+ * channels. Each operation writes or reads one message. Arguments (all
+ * optional):
+ * ops=&lt;messages&gt; send=&lt;ms per write&gt; batch=&lt;messages per
+ * flush&gt;
+ */
+public class M2MPBenchmark {
+
+    private static int ops = 2000;
+    private static int sendLatency = 1;
+    private static int batch = 20;
+    private static final String[] CHANNELS = {"sen:gps", "sen:bat", "sta:gsm"};
+
+    /**
+     * Benchmark of a writer, reporting the socket writes per message.
+     */
+    private static abstract class WriterBenchmark extends Benchmark {
+
+        protected SocketEmulator socket;
+        protected M2MPWriter writer;
+
+        WriterBenchmark(String name) {
+            super(name, 1, ops, Math.max(ops / 10, 1));
+        }
+
+        protected void setUp() throws Exception {
+            socket = new SocketEmulator(sendLatency);
+        }
+
+        protected void tearDown() throws Exception {
+            socket.close();
+        }
+
+        protected void beforeMeasure() {
+            socket.resetCounters();
+        }
+
+        protected String counters() {
+            return "writes/msg=" + ratio(socket.getNbWrites(), ops)
+                    + " data/msg=" + socket.getBytesWritten() / ops + "B"
+                    + " wire/msg=" + socket.getWireBytes() / ops + "B";
+        }
+
+        protected Message message(int i) {
+            byte[] value = ("4807.038,N,01131.000,E," + (i % 1000)).getBytes();
+            if (i % 10 == 9) {
+                return new NamedData(CHANNELS[i % CHANNELS.length], value);
+            }
+            byte[] time = {0x54, 0x12, (byte) (i >> 8), (byte) i};
+            return new NamedDataArray(CHANNELS[i % CHANNELS.length], new byte[][]{time, value});
+        }
+    }
+
+    /**
+     * Benchmark of the reader, reporting the stream reads per message.
+     *
+     * Each message is followed by an acknowledge request, so that the reader
+     * returns after each message even when the data is consumed by a
+     * listener. The request sent by the writer is received as a response, the
+     * frame types depend on the direction.
+     */
+    private static abstract class ReaderBenchmark extends WriterBenchmark {
+
+        protected M2MPReader reader;
+        protected int nbReads;
+        protected int checksum;
+
+        ReaderBenchmark(String name) {
+            super(name);
+        }
+
+        protected void setUp() throws Exception {
+            ByteArrayOutputStream bos = new ByteArrayOutputStream();
+            M2MPWriter w = new M2MPWriter(bos, 1460);
+            for (int i = 0; i < ops + Math.max(ops / 10, 1); i++) {
+                w.write(message(i));
+                w.write(new AcknowledgeRequest((byte) i));
+            }
+            w.flush();
+            reader = new M2MPReader(new ByteArrayInputStream(bos.toByteArray()) {
+                public synchronized int read() {
+                    nbReads++;
+                    return super.read();
+                }
+
+                public synchronized int read(byte[] b, int off, int len) {
+                    nbReads++;
+                    return super.read(b, off, len);
+                }
+            });
+        }
+
+        protected void tearDown() throws Exception {
+        }
+
+        protected void beforeMeasure() {
+            nbReads = 0;
+        }
+
+        protected String counters() {
+            return "reads/msg=" + ratio(nbReads, ops);
+        }
+
+        /**
+         * Read the acknowledge following the message.
+         */
+        protected void readAck() throws IOException {
+            if (!(reader.read() instanceof AcknowledgeResponse)) {
+                throw new IOException("Unexpected message");
+            }
+        }
+    }
+
+    private static String ratio(int a, int b) {
+        int cent = a * 100 / Math.max(b, 1);
+        return (cent / 100) + "." + (cent % 100 < 10 ? "0" : "") + (cent % 100);
+    }
+
+    private static void parseArgs(String[] args) {
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            int p = arg.indexOf('=');
+            if (p < 0) {
+                continue;
+            }
+            String key = arg.substring(0, p);
+            int value = Integer.parseInt(arg.substring(p + 1));
+            if (key.equals("ops")) {
+                ops = value;
+            } else if (key.equals("send")) {
+                sendLatency = value;
+            } else if (key.equals("batch")) {
+                batch = value;
+            }
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        parseArgs(args);
+        System.out.println("# M2MP benchmark: ops=" + ops + " send=" + sendLatency + "ms batch=" + batch);
+
+        // One write per message
+        new WriterBenchmark("write-each") {
+            protected void setUp() throws Exception {
+                super.setUp();
+                writer = new M2MPWriter(socket.getOutputStream());
+            }
+
+            protected void operation(int thread, int i) throws Exception {
+                writer.write(message(i));
+            }
+        }.run(System.out);
+
+        // One write per batch, as the network sending thread
+        new WriterBenchmark("write-batch") {
+            protected void setUp() throws Exception {
+                super.setUp();
+                writer = new M2MPWriter(socket.getOutputStream(), 1460);
+            }
+
+            protected void operation(int thread, int i) throws Exception {
+                writer.write(message(i));
+                if (i % batch == batch - 1) {
+                    writer.flush();
+                }
+            }
+
+            protected void tearDown() throws Exception {
+                writer.flush();
+                super.tearDown();
+            }
+        }.run(System.out);
+
+        // Messages copied by the reader
+        new ReaderBenchmark("read-copy") {
+            protected void operation(int thread, int i) throws Exception {
+                Message msg = reader.read();
+                if (msg instanceof NamedDataArray) {
+                    checksum += ((NamedDataArray) msg).data[1][0];
+                } else {
+                    checksum += ((NamedData) msg).data[0];
+                }
+                readAck();
+            }
+        }.run(System.out);
+
+        // Data consumed as views by a listener
+        new ReaderBenchmark("read-view") {
+            protected void setUp() throws Exception {
+                super.setUp();
+                reader.setDataListener(new M2MPDataListener() {
+                    public boolean m2mpData(String channelName, BufferWrapper data) {
+                        checksum += data.buffer[data.offset];
+                        return true;
+                    }
+
+                    public boolean m2mpDataArray(String channelName, BufferWrapper[] data, int nb) {
+                        checksum += data[1].buffer[data[1].offset];
+                        return true;
+                    }
+                });
+            }
+
+            protected void operation(int thread, int i) throws Exception {
+                readAck();
+            }
+        }.run(System.out);
+        System.exit(0);
+    }
+}
@@ -0,0 +1,273 @@
+package org.javacint.bench;
+
+import java.io.OutputStream;
+import org.javacint.bench.emu.FlashEmulator;
+import org.javacint.common.safequeue.SafeQueue;
+import org.javacint.common.safequeue.SafeQueueLineReader;
+
+/**
+ * Benchmarks of the SafeQueue storages on the emulated flash.
+ *
+ * The queue has the HTTP queue configuration (30 lines in memory, 128 files of
+ * 4 KB). The data records are line size bytes of binary data. Arguments (all optional): files=&lt;files to drain&gt;
+ * line=&lt;line size&gt; open=&lt;ms&gt; meta=&lt;ms&gt; writekb=&lt;ms&gt;
+ */
+public class SafeQueueBenchmark {
+
+    private static int files = 64;
+    private static int lineSize = 100;
+    private static int openLatency = 1;
+    private static int metaLatency = 5;
+    private static int writeLatency = 2;
+    private static final int MEMORY = 30;
+    private static final int FILE_NB = 128;
+    private static final int FILE_SIZE = 4096;
+
+    /**
+     * Benchmark of a queue, reporting the flash operations per queue
+     * operation.
+     */
+    private static abstract class QueueBenchmark extends Benchmark {
+
+        protected final boolean segmented;
+        protected final boolean compression;
+        protected SafeQueue queue;
+        protected final String line;
+        protected final byte[] data;
+
+        QueueBenchmark(String name, boolean segmented, int ops) {
+            this(name, segmented, false, ops);
+        }
+
+        QueueBenchmark(String name, boolean segmented, boolean compression, int ops) {
+            super(name + (segmented ? "/segments" : "/rotation") + (compression ? "+lz4" : ""), 1, ops, Math.max(ops / 10, 1));
+            this.segmented = segmented;
+            this.compression = compression;
+            StringBuffer sb = new StringBuffer();
+            while (sb.length() < lineSize) {
+                sb.append("$GPRMC,123519,A,4807.038,N,01131.000,E,022.4,084.4,230394,003.1,W*6A;");
+            }
+            sb.setLength(lineSize);
+            line = sb.toString();
+            data = new byte[lineSize];
+            for (int i = 0; i < data.length; i++) {
+                data[i] = (byte) (i * 31);
+            }
+        }
+
+        protected void setUp() throws Exception {
+            FlashEmulator.format();
+            queue = new SafeQueue("bench", MEMORY, FILE_NB, FILE_SIZE);
+            queue.setSegmented(segmented);
+            queue.setCompression(compression);
+        }
+
+        protected void beforeMeasure() {
+            FlashEmulator.resetCounters();
+        }
+
+        protected int nbOps() {
+            return files;
+        }
+
+        protected String counters() {
+            int ops = nbOps();
+            return "opens/op=" + ratio(FlashEmulator.getNbOpens(), ops)
+                    + " metaOps/op=" + ratio(FlashEmulator.getNbMetaOps(), ops)
+                    + " written/op=" + FlashEmulator.getBytesWritten() / ops + "B"
+                    + " flash=" + FlashEmulator.getUsedSize("a:/bench") + "B";
+        }
+
+        /**
+         * Get a position line (line size bytes) whose fields change like the
+         * ones of a moving tracker.
+         *
+         * @param n Number of the line
+         */
+        protected String line(int n) {
+            StringBuffer sb = new StringBuffer();
+            while (sb.length() < lineSize) {
+                int t = 123519 + n;
+                sb.append("$GPRMC,").append(t).append(",A,4807.").append(38 + n * 7 % 1000)
+                        .append(",N,01131.").append(n * 13 % 1000).append(",E,0").append(20 + n % 7)
+                        .append('.').append(n % 10).append(",084.4,230394,003.1,W*6A;");
+            }
+            sb.setLength(lineSize);
+            return sb.toString();
+        }
+
+        /**
+         * Fill the queue until it has a number of files.
+         */
+        protected void fill(int nbFiles) {
+            for (int n = 0; queue.getNbFiles() < nbFiles; n++) {
+                queue.addLine(line(n));
+            }
+        }
+    }
+
+    private static String ratio(int a, int b) {
+        int cent = a * 100 / Math.max(b, 1);
+        return (cent / 100) + "." + (cent % 100 < 10 ? "0" : "") + (cent % 100);
+    }
+
+    private static void parseArgs(String[] args) {
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            int p = arg.indexOf('=');
+            if (p < 0) {
+                continue;
+            }
+            String key = arg.substring(0, p);
+            int value = Integer.parseInt(arg.substring(p + 1));
+            if (key.equals("files")) {
+                files = value;
+            } else if (key.equals("line")) {
+                lineSize = value;
+            } else if (key.equals("open")) {
+                openLatency = value;
+            } else if (key.equals("meta")) {
+                metaLatency = value;
+            } else if (key.equals("writekb")) {
+                writeLatency = value;
+            }
+        }
+    }
+
+    private static void run(final boolean segmented) throws Exception {
+        // Each operation adds a memory queue worth of lines, so one flush
+        new QueueBenchmark("fill", segmented, files) {
+            protected void operation(int thread, int i) {
+                for (int j = 0; j < MEMORY; j++) {
+                    queue.addLine(line(i * MEMORY + j));
+                }
+            }
+        }.run(System.out);
+
+        // Same with binary data (Base64 lines in the rotation storage)
+        new QueueBenchmark("fill-data", segmented, files) {
+            protected void operation(int thread, int i) {
+                for (int j = 0; j < MEMORY; j++) {
+                    queue.addRecord("gps", data);
+                }
+            }
+        }.run(System.out);
+
+        // Each operation adds one line, saved by the flush thread: the latency
+        // is the producer's one, it only waits when both buffers are full
+        new QueueBenchmark("fill-async", segmented, files * MEMORY) {
+            protected void setUp() throws Exception {
+                super.setUp();
+                queue.startFlushThread(1000);
+            }
+
+            protected void tearDown() {
+                queue.stopFlushThread();
+            }
+
+            protected String counters() {
+                return super.counters() + " dropped=" + queue.getNbDropped();
+            }
+
+            protected void operation(int thread, int i) {
+                queue.addLine(line);
+            }
+        }.run(System.out);
+
+        // Each operation reads the first file and acknowledges it
+        new QueueBenchmark("drain", segmented, files) {
+            protected void setUp() throws Exception {
+                super.setUp();
+                fill(files + Math.max(files / 10, 1) + 1);
+            }
+
+            protected void operation(int thread, int i) {
+                SafeQueueLineReader reader = queue.getFirstItemsSetWaiting();
+                while (reader.readLine() != null) {
+                }
+                queue.deleteFirstItemsListWaiting();
+            }
+        }.run(System.out);
+
+        if (!segmented) {
+            // The text files can't be partially acknowledged
+            return;
+        }
+        // Same as fill and drain, with the compressed segments
+        new QueueBenchmark("fill", segmented, true, files) {
+            protected void operation(int thread, int i) {
+                for (int j = 0; j < MEMORY; j++) {
+                    queue.addLine(line(i * MEMORY + j));
+                }
+            }
+        }.run(System.out);
+
+        new QueueBenchmark("drain", segmented, true, files) {
+            protected void setUp() throws Exception {
+                super.setUp();
+                fill(files + Math.max(files / 10, 1) + 1);
+            }
+
+            protected void operation(int thread, int i) {
+                SafeQueueLineReader reader = queue.getFirstItemsSetWaiting();
+                while (reader.readLine() != null) {
+                }
+                queue.deleteFirstItemsListWaiting();
+            }
+        }.run(System.out);
+
+        // Each operation reads 1 KB of lines and acknowledges them
+        new QueueBenchmark("drain-1k", segmented, files) {
+            protected void setUp() throws Exception {
+                super.setUp();
+                fill(files + 1);
+            }
+
+            protected void operation(int thread, int i) {
+                try {
+                    SafeQueueLineReader reader = queue.getFirstItemsSetWaiting();
+                    reader.toVector(1024);
+                    reader.acknowledge();
+                } catch (Exception ex) {
+                    throw new RuntimeException(ex.toString());
+                }
+            }
+        }.run(System.out);
+
+        // Same, the lines being written in a stream (as the HTTP requests)
+        new QueueBenchmark("drain-1k-stream", segmented, files) {
+            private final OutputStream os = new OutputStream() {
+                public void write(int b) {
+                }
+
+                public void write(byte[] b, int off, int len) {
+                }
+            };
+
+            protected void setUp() throws Exception {
+                super.setUp();
+                fill(files + 1);
+            }
+
+            protected void operation(int thread, int i) {
+                try {
+                    SafeQueueLineReader reader = queue.getFirstItemsSetWaiting();
+                    reader.writeTo(os, 1024);
+                    reader.acknowledge();
+                } catch (Exception ex) {
+                    throw new RuntimeException(ex.toString());
+                }
+            }
+        }.run(System.out);
+    }
+
+    public static void main(String[] args) throws Exception {
+        parseArgs(args);
+        FlashEmulator.setLatency(openLatency, metaLatency, writeLatency);
+        System.out.println("# SafeQueue benchmark: files=" + files + " line=" + lineSize + "B open=" + openLatency
+                + "ms meta=" + metaLatency + "ms writekb=" + writeLatency + "ms");
+        run(false);
+        run(true);
+        System.exit(0);
+    }
+}
@@ -0,0 +1,254 @@
+package org.javacint.bench.emu;
+
+import com.siemens.icm.io.file.FileConnection;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Enumeration;
+
+/**
+ * File connection on the FlashEmulator.
+ */
+final class EmulatedFileConnection implements FileConnection {
+
+    private final String url;
+    private String path;
+    private boolean open = true;
+
+    EmulatedFileConnection(String url) {
+        this.url = url;
+        this.path = FlashEmulator.pathOf(url);
+    }
+
+    private FlashEmulator.Node node() {
+        return FlashEmulator.get(path);
+    }
+
+    private FlashEmulator.Node file() throws IOException {
+        FlashEmulator.Node n = node();
+        if (n == null || n.dir) {
+            throw new IOException("Not a file: " + path);
+        }
+        return n;
+    }
+
+    public boolean isOpen() {
+        return open;
+    }
+
+    public void close() {
+        open = false;
+    }
+
+    public InputStream openInputStream() throws IOException {
+        FlashEmulator.Node n = file();
+        byte[] copy;
+        synchronized (n) {
+            copy = new byte[n.size];
+            System.arraycopy(n.data, 0, copy, 0, n.size);
+        }
+        return new FilterInputStream(new ByteArrayInputStream(copy)) {
+            public int read() throws IOException {
+                int b = super.read();
+                if (b >= 0) {
+                    FlashEmulator.read(1);
+                }
+                return b;
+            }
+
+            public int read(byte[] b, int off, int len) throws IOException {
+                int r = super.read(b, off, len);
+                if (r > 0) {
+                    FlashEmulator.read(r);
+                }
+                return r;
+            }
+        };
+    }
+
+    public DataInputStream openDataInputStream() throws IOException {
+        return new DataInputStream(openInputStream());
+    }
+
+    public OutputStream openOutputStream() throws IOException {
+        return openOutputStream(0);
+    }
+
+    public DataOutputStream openDataOutputStream() throws IOException {
+        return new DataOutputStream(openOutputStream());
+    }
+
+    public OutputStream openOutputStream(final long byteOffset) throws IOException {
+        final FlashEmulator.Node n = file();
+        return new OutputStream() {
+            private int pos = (int) byteOffset;
+            private int written;
+
+            public void write(int b) throws IOException {
+                write(new byte[]{(byte) b}, 0, 1);
+            }
+
+            public void write(byte[] b, int off, int len) throws IOException {
+                if (len > FlashEmulator.available()) {
+                    throw new IOException("No space left on device");
+                }
+                synchronized (n) {
+                    n.ensure(pos + len);
+                    System.arraycopy(b, off, n.data, pos, len);
+                    pos += len;
+                    if (pos > n.size) {
+                        n.size = pos;
+                    }
+                    n.modified = System.currentTimeMillis();
+                }
+                written += len;
+            }
+
+            public void flush() {
+                if (written > 0) {
+                    FlashEmulator.written(written);
+                    written = 0;
+                }
+            }
+
+            public void close() {
+                flush();
+            }
+        };
+    }
+
+    public long totalSize() {
+        return FlashEmulator.available() + FlashEmulator.sizeUnder("a:");
+    }
+
+    public long availableSize() {
+        return FlashEmulator.available();
+    }
+
+    public long usedSize() {
+        return FlashEmulator.sizeUnder("a:");
+    }
+
+    public long directorySize(boolean includeSubDirs) throws IOException {
+        FlashEmulator.meta();
+        return FlashEmulator.sizeUnder(path);
+    }
+
+    public long fileSize() throws IOException {
+        return file().size;
+    }
+
+    public boolean canRead() {
+        return true;
+    }
+
+    public boolean canWrite() {
+        return true;
+    }
+
+    public boolean isHidden() {
+        return false;
+    }
+
+    public void setReadable(boolean readable) {
+    }
+
+    public void setWritable(boolean writable) {
+    }
+
+    public void setHidden(boolean hidden) {
+    }
+
+    public Enumeration list() throws IOException {
+        return list("*", false);
+    }
+
+    public Enumeration list(String filter, boolean includeHidden) throws IOException {
+        FlashEmulator.meta();
+        return FlashEmulator.children(path);
+    }
+
+    public void create() throws IOException {
+        FlashEmulator.meta();
+        if (node() != null) {
+            throw new IOException("Already exists: " + path);
+        }
+        FlashEmulator.put(path, new FlashEmulator.Node(false));
+    }
+
+    public void mkdir() throws IOException {
+        FlashEmulator.meta();
+        if (node() != null) {
+            throw new IOException("Already exists: " + path);
+        }
+        FlashEmulator.put(path, new FlashEmulator.Node(true));
+    }
+
+    public boolean exists() {
+        return node() != null;
+    }
+
+    public boolean isDirectory() {
+        FlashEmulator.Node n = node();
+        return n != null && n.dir;
+    }
+
+    public void delete() throws IOException {
+        FlashEmulator.meta();
+        if (node() == null) {
+            throw new IOException("Doesn't exist: " + path);
+        }
+        FlashEmulator.remove(path);
+        open = false;
+    }
+
+    public void rename(String newName) throws IOException {
+        FlashEmulator.meta();
+        FlashEmulator.Node n = node();
+        if (n == null) {
+            throw new IOException("Doesn't exist: " + path);
+        }
+        String newPath = path.substring(0, path.lastIndexOf('/') + 1) + newName;
+        if (FlashEmulator.get(newPath) != null) {
+            throw new IOException("Already exists: " + newPath);
+        }
+        FlashEmulator.remove(path);
+        FlashEmulator.put(newPath, n);
+        path = newPath;
+    }
+
+    public void truncate(long byteOffset) throws IOException {
+        FlashEmulator.meta();
+        FlashEmulator.Node n = file();
+        synchronized (n) {
+            if (byteOffset < n.size) {
+                n.size = (int) byteOffset;
+            }
+        }
+    }
+
+    public void setFileConnection(String fileName) throws IOException {
+        path = path + "/" + fileName;
+    }
+
+    public String getName() {
+        return path.substring(path.lastIndexOf('/') + 1);
+    }
+
+    public String getPath() {
+        return "/" + path.substring(0, path.lastIndexOf('/') + 1);
+    }
+
+    public String getURL() {
+        return "file:///" + path;
+    }
+
+    public long lastModified() {
+        FlashEmulator.Node n = node();
+        return n != null ? n.modified : 0;
+    }
+}
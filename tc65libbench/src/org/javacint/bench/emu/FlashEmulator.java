@@ -0,0 +1,216 @@
+package org.javacint.bench.emu;
+
+import com.siemens.icm.io.file.FileConnection;
+import java.util.Enumeration;
+import java.util.Hashtable;
+import java.util.Vector;
+
+/**
+ * Emulated flash file system behind the FileConnection stand-in.
+ *
+ * Files are kept in memory. Each metadata operation (open, create, delete,
+ * rename, mkdir, truncate, listing) takes a configurable latency, and writes
+ * take a latency per started kilobyte, to model the module's flash.
+ */
+public final class FlashEmulator {
+
+    private FlashEmulator() {
+    }
+
+    static final class Node {
+
+        final boolean dir;
+        byte[] data = new byte[0];
+        int size;
+        long modified = System.currentTimeMillis();
+
+        Node(boolean dir) {
+            this.dir = dir;
+        }
+
+        void ensure(int capacity) {
+            if (capacity > data.length) {
+                byte[] d = new byte[Math.max(capacity, data.length * 2)];
+                System.arraycopy(data, 0, d, 0, size);
+                data = d;
+            }
+        }
+    }
+    private static final Hashtable nodes = new Hashtable();
+    private static long capacity = 1024 * 1024 * 2;
+    private static int openLatency, metaLatency, writeLatencyPerKb;
+    private static int nbOpens, nbMetaOps, nbWrites;
+    private static long bytesWritten, bytesRead;
+
+    static {
+        format();
+    }
+
+    /**
+     * Delete all the files.
+     */
+    public static synchronized void format() {
+        nodes.clear();
+        nodes.put("a:", new Node(true));
+    }
+
+    /**
+     * Define the latencies of the flash.
+     *
+     * @param open Latency of a Connector.open (ms)
+     * @param meta Latency of a metadata operation (ms)
+     * @param writePerKb Latency of each started kilobyte written (ms)
+     */
+    public static void setLatency(int open, int meta, int writePerKb) {
+        openLatency = open;
+        metaLatency = meta;
+        writeLatencyPerKb = writePerKb;
+    }
+
+    public static void setCapacity(long c) {
+        capacity = c;
+    }
+
+    /**
+     * Open a file connection (called by the Connector stand-in).
+     *
+     * @param url URL like "file:///a:/dir/file"
+     * @return File connection
+     */
+    public static FileConnection open(String url) {
+        synchronized (FlashEmulator.class) {
+            nbOpens++;
+        }
+        sleep(openLatency);
+        return new EmulatedFileConnection(url);
+    }
+
+    static String pathOf(String url) {
+        String path = url.substring("file:///".length());
+        while (path.endsWith("/")) {
+            path = path.substring(0, path.length() - 1);
+        }
+        return path;
+    }
+
+    static synchronized Node get(String path) {
+        return (Node) nodes.get(path);
+    }
+
+    static void meta() {
+        synchronized (FlashEmulator.class) {
+            nbMetaOps++;
+        }
+        sleep(metaLatency);
+    }
+
+    static synchronized void put(String path, Node node) {
+        nodes.put(path, node);
+    }
+
+    static synchronized void remove(String path) {
+        nodes.remove(path);
+    }
+
+    static synchronized Enumeration children(String path) {
+        Vector v = new Vector();
+        String prefix = path + "/";
+        for (Enumeration en = nodes.keys(); en.hasMoreElements();) {
+            String p = (String) en.nextElement();
+            if (p.startsWith(prefix) && p.indexOf('/', prefix.length()) < 0) {
+                v.addElement(p.substring(prefix.length()) + (((Node) nodes.get(p)).dir ? "/" : ""));
+            }
+        }
+        return v.elements();
+    }
+
+    static synchronized long sizeUnder(String path) {
+        long total = 0;
+        String prefix = path + "/";
+        for (Enumeration en = nodes.keys(); en.hasMoreElements();) {
+            String p = (String) en.nextElement();
+            if (p.startsWith(prefix)) {
+                total += ((Node) nodes.get(p)).size;
+            }
+        }
+        return total;
+    }
+
+    static long available() {
+        return capacity - sizeUnder("a:");
+    }
+
+    static void written(int len) {
+        synchronized (FlashEmulator.class) {
+            nbWrites++;
+            bytesWritten += len;
+        }
+        sleep(((len + 1023) / 1024) * writeLatencyPerKb);
+    }
+
+    static synchronized void read(int len) {
+        bytesRead += len;
+    }
+
+    private static void sleep(int ms) {
+        if (ms <= 0) {
+            return;
+        }
+        try {
+            Thread.sleep(ms);
+        } catch (InterruptedException ex) {
+            // The benchmark is stopping
+        }
+    }
+
+    /**
+     * Get the number of Connector.open calls.
+     *
+     * @return Number of opens
+     */
+    public static synchronized int getNbOpens() {
+        return nbOpens;
+    }
+
+    /**
+     * Get the number of metadata operations (create, delete, rename, mkdir,
+     * truncate, list).
+     *
+     * @return Number of operations
+     */
+    public static synchronized int getNbMetaOps() {
+        return nbMetaOps;
+    }
+
+    /**
+     * Get the number of closed output streams.
+     *
+     * @return Number of writes
+     */
+    public static synchronized int getNbWrites() {
+        return nbWrites;
+    }
+
+    public static synchronized long getBytesWritten() {
+        return bytesWritten;
+    }
+
+    public static synchronized long getBytesRead() {
+        return bytesRead;
+    }
+
+    /**
+     * Get the space used by the files of a directory.
+     *
+     * @param dir Directory ("a:/http")
+     * @return Size (bytes)
+     */
+    public static long getUsedSize(String dir) {
+        return sizeUnder(dir);
+    }
+
+    public static synchronized void resetCounters() {
+        nbOpens = nbMetaOps = nbWrites = 0;
+        bytesWritten = bytesRead = 0;
+    }
+}
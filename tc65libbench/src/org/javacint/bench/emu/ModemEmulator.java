@@ -0,0 +1,242 @@
+package org.javacint.bench.emu;
+
+import com.siemens.icm.io.ATCommand;
+import java.util.Enumeration;
+import java.util.Hashtable;
+import java.util.Random;
+import java.util.Vector;
+
+/**
+ * Emulated modem behind the ATCommand stand-in.
+ *
+ * Responses are scripted per command (exact match first, then longest prefix),
+ * each command takes a configurable latency and URCs can be injected to all
+ * the URC monitoring instances.
+ */
+public final class ModemEmulator {
+
+    private ModemEmulator() {
+    }
+    private static final Vector instances = new Vector();
+    private static final Hashtable exact = new Hashtable();
+    private static final Vector prefixes = new Vector(); // String[]{prefix, response}
+    private static final Hashtable latencies = new Hashtable();
+    private static final Random random = new Random();
+    private static final Object modem = new Object();
+    private static String unknownResponse = "OK";
+    private static int minLatency, maxLatency;
+    private static boolean serialized;
+    private static int nbExecuted, nbRunning, maxRunning;
+
+    static {
+        loadDefaultScript();
+    }
+
+    /**
+     * Load the responses of the commands used by the library.
+     */
+    public static void loadDefaultScript() {
+        script("AT+CSQ", "+CSQ: 20,99");
+        script("AT^SBV", "^SBV: 12034");
+        script("AT^SCTM?", "^SCTM: 1,0,34");
+        script("AT+CPIN?", "+CPIN: READY");
+        script("AT^SPIC", "^SPIC: 3");
+        script("AT+GSN", "359000000000001");
+        script("AT+CIMI", "208010000000001");
+        script("AT^SCID", "^SCID: 89330000000000000001");
+        script("ATI", "Cinterion\r\nTC65i\r\nREVISION 03.001");
+        script("AT+CNUM", "+CNUM: \"\",\"+33600000001\",145");
+        script("AT+COPS?", "+COPS: 0,0,\"Orange F\"");
+        script("AT^SMONC", "^SMONC: 208,01,3008,6FA2,26,50,46,-64,255");
+        script("AT+CMGL=\"ALL\"", "");
+        scriptPrefix("AT+CMGR=", "+CMGR: \"REC READ\",\"+33600000002\",,\"14/01/01,00:00:00+04\"\r\nping");
+    }
+
+    /**
+     * Define the response of a command.
+     *
+     * @param cmd AT command (without the ending "\r")
+     * @param body Response lines, the echo and the final "OK" are added
+     */
+    public static void script(String cmd, String body) {
+        exact.put(cmd, body);
+    }
+
+    /**
+     * Define the response of all the commands starting with a prefix.
+     *
+     * @param prefix Prefix of the AT commands
+     * @param body Response lines, the echo and the final "OK" are added
+     */
+    public static void scriptPrefix(String prefix, String body) {
+        synchronized (prefixes) {
+            prefixes.addElement(new String[]{prefix, body});
+        }
+    }
+
+    /**
+     * Define the response of the commands that aren't scripted.
+     *
+     * @param result Final result code ("OK", "ERROR", ...)
+     */
+    public static void setUnknownResponse(String result) {
+        unknownResponse = result;
+    }
+
+    /**
+     * Define the latency of each command.
+     *
+     * @param min Minimum latency (ms)
+     * @param max Maximum latency (ms)
+     */
+    public static void setLatency(int min, int max) {
+        minLatency = min;
+        maxLatency = max;
+    }
+
+    /**
+     * Define the latency of the commands starting with a prefix.
+     *
+     * @param prefix Prefix of the AT commands
+     * @param latency Latency (ms)
+     */
+    public static void setLatency(String prefix, int latency) {
+        latencies.put(prefix, new Integer(latency));
+    }
+
+    /**
+     * Make the modem execute one command at a time, whatever the channel.
+     *
+     * @param s true to serialize the commands
+     */
+    public static void setSerialized(boolean s) {
+        serialized = s;
+    }
+
+    /**
+     * Send a URC to all the URC monitoring instances.
+     *
+     * @param urc URC (without the surrounding "\r\n")
+     */
+    public static void injectUrc(String urc) {
+        String event = "\r\n" + urc + "\r\n";
+        synchronized (instances) {
+            for (int i = 0; i < instances.size(); i++) {
+                ((ATCommand) instances.elementAt(i)).injectUrc(event);
+            }
+        }
+    }
+
+    public static void register(ATCommand atc) {
+        instances.addElement(atc);
+    }
+
+    /**
+     * Execute a command (called by the ATCommand stand-in).
+     *
+     * @param raw Raw command, as sent by the ATCommand user
+     * @return Response, with the echo and the final result code
+     */
+    public static String execute(String raw) {
+        String cmd = raw.trim();
+        if (serialized) {
+            synchronized (modem) {
+                return run(raw, cmd);
+            }
+        }
+        return run(raw, cmd);
+    }
+
+    private static String run(String raw, String cmd) {
+        synchronized (ModemEmulator.class) {
+            nbRunning++;
+            if (nbRunning > maxRunning) {
+                maxRunning = nbRunning;
+            }
+        }
+        try {
+            sleep(latencyOf(cmd));
+            return raw + "\r\n" + responseOf(cmd);
+        } finally {
+            synchronized (ModemEmulator.class) {
+                nbRunning--;
+                nbExecuted++;
+            }
+        }
+    }
+
+    private static int latencyOf(String cmd) {
+        for (Enumeration en = latencies.keys(); en.hasMoreElements();) {
+            String prefix = (String) en.nextElement();
+            if (cmd.startsWith(prefix)) {
+                return ((Integer) latencies.get(prefix)).intValue();
+            }
+        }
+        if (maxLatency <= minLatency) {
+            return minLatency;
+        }
+        synchronized (random) {
+            return minLatency + random.nextInt(maxLatency - minLatency + 1);
+        }
+    }
+
+    private static String responseOf(String cmd) {
+        String body = (String) exact.get(cmd);
+        if (body == null) {
+            int best = -1;
+            synchronized (prefixes) {
+                for (int i = 0; i < prefixes.size(); i++) {
+                    String[] p = (String[]) prefixes.elementAt(i);
+                    if (cmd.startsWith(p[0]) && p[0].length() > best) {
+                        best = p[0].length();
+                        body = p[1];
+                    }
+                }
+            }
+        }
+        if (body == null) {
+            return unknownResponse + "\r\n";
+        }
+        if (body.length() == 0) {
+            return "OK\r\n";
+        }
+        return body + "\r\n\r\nOK\r\n";
+    }
+
+    private static void sleep(int ms) {
+        if (ms <= 0) {
+            return;
+        }
+        try {
+            Thread.sleep(ms);
+        } catch (InterruptedException ex) {
+            // The benchmark is stopping
+        }
+    }
+
+    /**
+     * Get the number of executed commands.
+     *
+     * @return Number of commands
+     */
+    public static synchronized int getNbExecuted() {
+        return nbExecuted;
+    }
+
+    /**
+     * Get the maximum number of commands executed at the same time.
+     *
+     * @return Maximum parallelism
+     */
+    public static synchronized int getMaxRunning() {
+        return maxRunning;
+    }
+
+    /**
+     * Reset the counters.
+     */
+    public static synchronized void resetCounters() {
+        nbExecuted = 0;
+        maxRunning = 0;
+    }
+}
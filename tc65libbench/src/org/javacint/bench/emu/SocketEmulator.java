@@ -0,0 +1,129 @@
+package org.javacint.bench.emu;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+/**
+ * Socket stand-in: a loopback TCP connection without Nagle's algorithm.
+ *
+ * Like the module's GPRS sockets, each write is sent as its own segment. Each
+ * write takes a configurable latency (the cost of a packet on the radio
+ * link), and the bytes on the wire include a TCP/IP header per segment.
+ */
+public final class SocketEmulator {
+
+    /**
+     * Size of the TCP/IP headers of a segment
+     */
+    public static final int HEADER_SIZE = 40;
+    private final ServerSocket server;
+    private final Socket client;
+    private final Socket peer;
+    private final OutputStream os;
+    private final int writeLatency;
+    private int nbWrites;
+    private long bytesWritten;
+    private long bytesReceived;
+
+    /**
+     * Open a connection.
+     *
+     * @param writeLatency Latency of each write (ms)
+     */
+    public SocketEmulator(int writeLatency) throws IOException {
+        this.writeLatency = writeLatency;
+        server = new ServerSocket(0);
+        client = new Socket("127.0.0.1", server.getLocalPort());
+        client.setTcpNoDelay(true);
+        peer = server.accept();
+        final OutputStream out = client.getOutputStream();
+        os = new OutputStream() {
+            public void write(int b) throws IOException {
+                write(new byte[]{(byte) b}, 0, 1);
+            }
+
+            public void write(byte[] b, int off, int len) throws IOException {
+                sleep();
+                out.write(b, off, len);
+                synchronized (SocketEmulator.this) {
+                    nbWrites++;
+                    bytesWritten += len;
+                }
+            }
+        };
+        Thread drain = new Thread(new Runnable() {
+            public void run() {
+                drain();
+            }
+        }, "socket-peer");
+        drain.setDaemon(true);
+        drain.start();
+    }
+
+    private void sleep() {
+        if (writeLatency > 0) {
+            try {
+                Thread.sleep(writeLatency);
+            } catch (InterruptedException ex) {
+            }
+        }
+    }
+
+    private void drain() {
+        byte[] buffer = new byte[4096];
+        try {
+            InputStream is = peer.getInputStream();
+            for (int n; (n = is.read(buffer)) > 0;) {
+                synchronized (this) {
+                    bytesReceived += n;
+                }
+            }
+        } catch (IOException ex) {
+            // Closed
+        }
+    }
+
+    /**
+     * Get the stream of the client side.
+     *
+     * @return Stream
+     */
+    public OutputStream getOutputStream() {
+        return os;
+    }
+
+    public synchronized void resetCounters() {
+        nbWrites = 0;
+        bytesWritten = 0;
+    }
+
+    public synchronized int getNbWrites() {
+        return nbWrites;
+    }
+
+    public synchronized long getBytesWritten() {
+        return bytesWritten;
+    }
+
+    /**
+     * Get the bytes on the wire: the data and the headers of the segments.
+     *
+     * @return Size
+     */
+    public synchronized long getWireBytes() {
+        return bytesWritten + (long) nbWrites * HEADER_SIZE;
+    }
+
+    public synchronized long getBytesReceived() {
+        return bytesReceived;
+    }
+
+    public void close() throws IOException {
+        client.close();
+        peer.close();
+        server.close();
+    }
+}
@@ -4,6 +4,7 @@ import java.util.TimerTask;
 import javax.microedition.io.CommConnection;
 import javax.microedition.io.HttpConnection;
 import org.javacint.apnauto.APNAutodetection;
+import org.javacint.at.ATCommandCache;
 import org.javacint.at.ATExecution;
 import org.javacint.console.AddNetworkConsoleCommand;
 import org.javacint.console.ConsiderUpdateCommand;
@@ -61,6 +62,7 @@ public class StartupLoader extends TimerTask {
         loader.addRunnable(new NamedRunnable("init") {
             public void run() {
                 ATExecution.setSsync(0);
+                ATCommandCache.start();
             }
         });
 